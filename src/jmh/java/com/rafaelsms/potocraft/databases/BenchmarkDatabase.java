@@ -0,0 +1,115 @@
+package com.rafaelsms.potocraft.databases;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugin databases on an embedded MariaDB or H2 file filled with a {@link SyntheticWorld}, no server or network
+ * needed.
+ * <p>
+ * Each block count gets its own data directory under build/, so the world is only inserted on the first run.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+
+    private static final long SEED = 20_221_231L;
+    private static final String DATABASE_NAME = "blockprotection";
+
+    // MariaDB is reached over TCP on localhost, as a single server would
+    @Param({ "mariadb", "embedded" })
+    public String backend;
+
+    @Param({ "4", "10", "32" })
+    public int poolSize;
+
+    @Param({ "1000000" })
+    public long blockCount;
+
+    // Turns off the natural verdict memo and the player decisions to measure the queries alone
+    @Param({ "true" })
+    public boolean memoized;
+
+    private DB database;
+    private DatabasePool pool;
+    private SchemaMigration migration;
+    private PlayerDatabase playerDatabase;
+    private BlockDatabase blockDatabase;
+    private SyntheticWorld world;
+    private World bukkitWorld;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port = 0;
+        if (backend.equals("mariadb")) {
+            DBConfigurationBuilder databaseConfiguration = DBConfigurationBuilder.newBuilder();
+            databaseConfiguration.setPort(0);
+            databaseConfiguration.setDataDir(new File("build/jmh-mariadb/%d".formatted(blockCount)).getAbsolutePath());
+            this.database = DB.newEmbeddedDB(databaseConfiguration.build());
+            database.start();
+            database.createDB(DATABASE_NAME);
+            port = database.getConfiguration().getPort();
+        }
+
+        Configuration configuration = getConfiguration(port);
+        this.pool = new DatabasePool(configuration, new Metrics(), LoggerFactory.getLogger("PotoCraft"));
+        this.migration = new SchemaMigration(pool);
+        this.world = new SyntheticWorld(SEED, blockCount);
+        world.populate(pool, migration);
+
+        this.playerDatabase = new PlayerDatabase(configuration, pool, migration);
+        this.blockDatabase = new BlockDatabase(configuration, pool, migration, playerDatabase);
+        this.bukkitWorld = DatabaseFixtures.createWorld(world.getWorldId());
+    }
+
+    private Configuration getConfiguration(int port) throws Exception {
+        YamlConfiguration yaml = DatabaseFixtures.getConfiguration(backend,
+            "build/jmh-h2/%d/protection".formatted(blockCount),
+            "jdbc:mariadb://127.0.0.1:%d/%s?useSSL=false".formatted(port, DATABASE_NAME), poolSize);
+        if (!memoized) {
+            yaml.set("protection.natural_verdict_ttl_millis", 0);
+            yaml.set("protection.player_decision_sections", 0);
+        }
+        return new Configuration(yaml);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        blockDatabase.close(1, TimeUnit.MINUTES);
+        migration.close();
+        pool.close();
+        if (database != null) {
+            database.stop();
+        }
+    }
+
+    public Location getLocation(int x, int y, int z) {
+        return new Location(bukkitWorld, x, y, z);
+    }
+
+    public SyntheticWorld getWorld() {
+        return world;
+    }
+
+    public PlayerDatabase getPlayerDatabase() {
+        return playerDatabase;
+    }
+
+    public BlockDatabase getBlockDatabase() {
+        return blockDatabase;
+    }
+}
@@ -0,0 +1,89 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block writes, each followed by a check in the same area so the queued writes are flushed and measured.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(4)
+public class BlockWriteBenchmark {
+
+    // A cube with enough blocks for the last ones to become permanent and promote the others
+    private static final int CUBE_SIZE = (int) Math.ceil(Math.cbrt(Configuration.BLOCK_COUNT_TO_PROTECT + 1));
+    private static final int REMOVED_BLOCKS = 64;
+
+    @Benchmark
+    public Optional<UUID> addProtectedBlocks(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        Location corner = visitor.nextFreshArea();
+        for (Location location : getCube(database, corner, CUBE_SIZE)) {
+            database.getBlockDatabase().addProtectedBlock(visitor.getPlayerId(), location);
+        }
+        return database.getBlockDatabase().getBlockOwnerToWrite(corner);
+    }
+
+    @Benchmark
+    public Optional<UUID> removeBlocks(BenchmarkDatabase database, PlacedBlocks placedBlocks)
+        throws ExecutionException {
+        database.getBlockDatabase().removeBlocks(placedBlocks.positions);
+        return database.getBlockDatabase().getBlockOwnerToWrite(placedBlocks.locations.get(0));
+    }
+
+    /**
+     * Blocks written before each removal.
+     */
+    @State(Scope.Thread)
+    public static class PlacedBlocks {
+
+        private List<Location> locations;
+        private List<BlockPosition> positions;
+
+        @Setup(Level.Invocation)
+        public void setUp(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+            Location corner = visitor.nextFreshArea();
+            this.locations = getCube(database, corner, (int) Math.ceil(Math.cbrt(REMOVED_BLOCKS)));
+            this.positions = locations.stream().map(BlockPosition::of).toList();
+            for (Location location : locations) {
+                database.getBlockDatabase().addProtectedBlock(visitor.getPlayerId(), location);
+            }
+            database.getBlockDatabase().getBlockOwnerToWrite(corner);
+        }
+    }
+
+    private static List<Location> getCube(BenchmarkDatabase database, Location corner, int size) {
+        List<Location> locations = new ArrayList<>();
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    locations.add(database.getLocation(corner.getBlockX() + x, corner.getBlockY() + y,
+                        corner.getBlockZ() + z));
+                }
+            }
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,43 @@
+package com.rafaelsms.potocraft.databases;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allow list commands.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(4)
+public class PlayerDatabaseBenchmark {
+
+    @Benchmark
+    public boolean allowAndDisallow(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        UUID otherPlayer = visitor.nextOtherPlayer();
+        boolean added = database.getPlayerDatabase().addAllowedPlayer(visitor.getPlayerId(), otherPlayer);
+        // Keeps the trust graph as generated
+        if (added) {
+            database.getPlayerDatabase().removeAllowedPlayer(visitor.getPlayerId(), otherPlayer);
+        }
+        return added;
+    }
+
+    @Benchmark
+    public List<UUID> getPlayersAllowed(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        return database.getPlayerDatabase().getPlayersAllowed(visitor.getPlayerId());
+    }
+}
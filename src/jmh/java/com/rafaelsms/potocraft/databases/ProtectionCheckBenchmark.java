@@ -0,0 +1,43 @@
+package com.rafaelsms.potocraft.databases;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protection checks done by the listeners. Sample time reports the latency percentiles (p50, p99), throughput the
+ * checks per millisecond across every thread.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(16)
+public class ProtectionCheckBenchmark {
+
+    @Benchmark
+    public Optional<UUID> read(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        return database.getBlockDatabase().getBlockOwnerToRead(visitor.getPlayerId(), visitor.nextLocation());
+    }
+
+    @Benchmark
+    public Optional<UUID> write(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        return database.getBlockDatabase().getBlockOwnerToWrite(visitor.getPlayerId(), visitor.nextLocation());
+    }
+
+    @Benchmark
+    public Optional<UUID> natural(BenchmarkDatabase database, Visitor visitor) throws ExecutionException {
+        return database.getBlockDatabase().getBlockOwnerToNaturalAction(visitor.nextLocation());
+    }
+}
@@ -0,0 +1,285 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A survival world after a few years: players build bases (hollow boxes of walls, floors and roofs) around villages,
+ * scatter a few lone blocks and allow some of their neighbours.
+ * <p>
+ * The layout only depends on the seed and the block count, so it is generated again for every fork and the rows are
+ * only inserted once per database.
+ */
+public class SyntheticWorld {
+
+    private static final int ROWS_PER_STATEMENT = 1_000;
+    private static final int BASES_PER_VILLAGE = 50;
+    private static final int PLAYERS_PER_VILLAGE = 30;
+    private static final int VILLAGE_SPREAD = 20_000;
+    private static final int BASE_SPREAD = 400;
+    // Share of lone temporary blocks among every block
+    private static final double LONE_BLOCKS = 0.02;
+
+    private final UUID worldId;
+    private final List<UUID> players = new ArrayList<>();
+    private final List<Base> bases = new ArrayList<>();
+    private final List<BlockPosition> loneBlocks = new ArrayList<>();
+    private final List<List<UUID>> allowedPlayers = new ArrayList<>();
+    private final long blockCount;
+
+    public SyntheticWorld(long seed, long blockCount) {
+        SplittableRandom random = new SplittableRandom(seed);
+        this.worldId = new UUID(random.nextLong(), random.nextLong());
+
+        // Bases until the block count is reached
+        long blocks = 0;
+        List<int[]> villages = new ArrayList<>();
+        while (blocks < blockCount * (1 - LONE_BLOCKS)) {
+            if (bases.size() % BASES_PER_VILLAGE == 0) {
+                villages.add(new int[] { random.nextInt(-VILLAGE_SPREAD, VILLAGE_SPREAD),
+                                         random.nextInt(-VILLAGE_SPREAD, VILLAGE_SPREAD) });
+                for (int i = 0; i < PLAYERS_PER_VILLAGE; i++) {
+                    players.add(new UUID(random.nextLong(), random.nextLong()));
+                }
+            }
+            int[] village = villages.get(villages.size() - 1);
+            int villagePlayers = players.size() - PLAYERS_PER_VILLAGE;
+            Base base = new Base(players.get(villagePlayers + random.nextInt(PLAYERS_PER_VILLAGE)),
+                village[0] + (int) (random.nextDouble(-1, 1) * BASE_SPREAD), random.nextInt(50, 80),
+                village[1] + (int) (random.nextDouble(-1, 1) * BASE_SPREAD), random.nextInt(6, 40),
+                random.nextInt(4, 16), random.nextInt(6, 40),
+                random.nextInt(Configuration.DAYS_PROTECTED * 3 / 2));
+            bases.add(base);
+            blocks += base.getBlockCount();
+        }
+
+        // Lone blocks near the villages, temporary as nothing is around them
+        while (blocks < blockCount) {
+            int[] village = villages.get(random.nextInt(villages.size()));
+            loneBlocks.add(new BlockPosition(worldId, village[0] + random.nextInt(-2 * BASE_SPREAD, 2 * BASE_SPREAD),
+                random.nextInt(40, 90), village[1] + random.nextInt(-2 * BASE_SPREAD, 2 * BASE_SPREAD)));
+            blocks++;
+        }
+        this.blockCount = blocks;
+
+        // Players allow up to four neighbours of their own village
+        for (int player = 0; player < players.size(); player++) {
+            int village = player / PLAYERS_PER_VILLAGE;
+            Set<UUID> allowed = new HashSet<>();
+            for (int i = random.nextInt(5); i > 0; i--) {
+                int neighbour = village * PLAYERS_PER_VILLAGE + random.nextInt(PLAYERS_PER_VILLAGE);
+                if (neighbour != player) {
+                    allowed.add(players.get(neighbour));
+                }
+            }
+            allowedPlayers.add(List.copyOf(allowed));
+        }
+    }
+
+    /**
+     * Inserts the world unless the database already has protected blocks.
+     */
+    public void populate(DatabasePool pool, SchemaMigration migration) throws ExecutionException {
+        pool.executeFuture(connection -> {
+            migration.registerWorld(connection, worldId);
+        });
+        // Both backends take the same rows, only the table differs
+        String table = pool.getBackend() == StorageBackend.EMBEDDED ? "protectedBlocksH2" : "protectedBlocksV2";
+        if (pool.executeFuture(connection -> {
+            return hasBlocks(connection, table);
+        })) {
+            pool.getLogger().info("Reusing synthetic world with {} blocks.", blockCount);
+            return;
+        }
+
+        pool.getLogger().info("Generating synthetic world with {} blocks in {} bases...", blockCount, bases.size());
+        long start = System.nanoTime();
+        Schema schema = migration.getReadSchema();
+        List<List<Base>> batches = new ArrayList<>();
+        List<Base> baseBatch = new ArrayList<>();
+        long batchBlocks = 0;
+        for (Base base : bases) {
+            baseBatch.add(base);
+            batchBlocks += base.getBlockCount();
+            if (batchBlocks >= ROWS_PER_STATEMENT * 10L) {
+                batches.add(baseBatch);
+                baseBatch = new ArrayList<>();
+                batchBlocks = 0;
+            }
+        }
+        batches.add(baseBatch);
+
+        // Batches are inserted by every connection of the pool
+        List<Future<Void>> futures = new ArrayList<>();
+        for (List<Base> batch : batches) {
+            futures.add(pool.execute(connection -> {
+                insertBases(connection, schema, table, batch);
+            }));
+        }
+        futures.add(pool.execute(connection -> {
+            insertLoneBlocks(connection, schema, table);
+            insertAllowedPlayers(connection, schema);
+        }));
+        waitAll(pool, futures);
+
+        // Cells are built once every block is in place, bases may share cells with other batches
+        Set<ProtectionCell> builtCells = new HashSet<>();
+        for (List<Base> batch : batches) {
+            List<ProtectionCell> cells = new ArrayList<>();
+            for (Base base : batch) {
+                for (ProtectionCell cell : base.getCells(worldId)) {
+                    if (builtCells.add(cell)) {
+                        cells.add(cell);
+                    }
+                }
+            }
+            futures.add(pool.execute(connection -> {
+                schema.refreshCells(connection, cells);
+            }));
+        }
+        waitAll(pool, futures);
+        pool.getLogger().info("Generated synthetic world in {}s.",
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    private static void waitAll(DatabasePool pool, List<Future<Void>> futures) throws ExecutionException {
+        for (Future<Void> future : futures) {
+            pool.handleFuture(future);
+        }
+        futures.clear();
+    }
+
+    private static boolean hasBlocks(Connection connection, String table) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            "SELECT EXISTS(SELECT 1 FROM %s);".formatted(table));
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    private void insertBases(Connection connection, Schema schema, String table, List<Base> bases)
+        throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        for (Base base : bases) {
+            Timestamp date = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(base.age()));
+            base.forEachBlock(worldId, position -> rows.add(new Row(position, base.ownerId(), date, false)));
+        }
+        insertRows(connection, schema, table, rows);
+    }
+
+    private void insertLoneBlocks(Connection connection, Schema schema, String table) throws SQLException {
+        Timestamp date = new Timestamp(System.currentTimeMillis());
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < loneBlocks.size(); i++) {
+            rows.add(new Row(loneBlocks.get(i), players.get(i % players.size()), date, true));
+        }
+        insertRows(connection, schema, table, rows);
+    }
+
+    private void insertRows(Connection connection, Schema schema, String table, List<Row> rows)
+        throws SQLException {
+        String rowTemplate = "(?, ?, ?, ?, ?, ?, ?)";
+        for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT) {
+            List<Row> statementRows = rows.subList(start, Math.min(start + ROWS_PER_STATEMENT, rows.size()));
+            // Bases may overlap, the first one keeps the block
+            String query = """
+                INSERT IGNORE INTO %s(worldId, x, y, z, playerId, dateModified, temporaryBlock)
+                VALUES %s;
+                """.formatted(table, String.join(", ", Collections.nCopies(statementRows.size(), rowTemplate)));
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                int index = 0;
+                for (Row row : statementRows) {
+                    schema.setWorldId(preparedStatement, ++index, worldId);
+                    preparedStatement.setInt(++index, row.position().x());
+                    preparedStatement.setInt(++index, row.position().y());
+                    preparedStatement.setInt(++index, row.position().z());
+                    schema.setPlayerId(preparedStatement, ++index, row.ownerId());
+                    preparedStatement.setTimestamp(++index, row.date());
+                    preparedStatement.setBoolean(++index, row.temporaryBlock());
+                }
+                preparedStatement.executeUpdate();
+            }
+        }
+    }
+
+    private void insertAllowedPlayers(Connection connection, Schema schema) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.ADD_ALLOWED_PLAYER))) {
+            for (int player = 0; player < players.size(); player++) {
+                for (UUID allowedPlayer : allowedPlayers.get(player)) {
+                    schema.setPlayerId(preparedStatement, 1, players.get(player));
+                    schema.setPlayerId(preparedStatement, 2, allowedPlayer);
+                    preparedStatement.addBatch();
+                }
+            }
+            preparedStatement.executeBatch();
+        }
+    }
+
+    public UUID getWorldId() {
+        return worldId;
+    }
+
+    public List<UUID> getPlayers() {
+        return Collections.unmodifiableList(players);
+    }
+
+    public List<Base> getBases() {
+        return Collections.unmodifiableList(bases);
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * A hollow box of blocks owned by one player, last modified some days ago.
+     */
+    public record Base(UUID ownerId, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ, int age) {
+
+        public long getBlockCount() {
+            long inside = (long) Math.max(0, sizeX - 2) * Math.max(0, sizeY - 2) * Math.max(0, sizeZ - 2);
+            return (long) sizeX * sizeY * sizeZ - inside;
+        }
+
+        public Set<ProtectionCell> getCells(UUID worldId) {
+            Set<ProtectionCell> cells = new HashSet<>();
+            BlockPosition center = new BlockPosition(worldId, minX + sizeX / 2, minY + sizeY / 2, minZ + sizeZ / 2);
+            ProtectionCell.addAround(cells, center, Math.max(sizeX, Math.max(sizeY, sizeZ)) / 2 + 1);
+            return cells;
+        }
+
+        public void forEachBlock(UUID worldId, Consumer<BlockPosition> consumer) {
+            for (int x = 0; x < sizeX; x++) {
+                for (int y = 0; y < sizeY; y++) {
+                    for (int z = 0; z < sizeZ; z++) {
+                        boolean border = x == 0 || y == 0 || z == 0 || x == sizeX - 1 || y == sizeY - 1 ||
+                                         z == sizeZ - 1;
+                        if (border) {
+                            consumer.accept(new BlockPosition(worldId, minX + x, minY + y, minZ + z));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private record Row(BlockPosition position, UUID ownerId, Timestamp date, boolean temporaryBlock) {
+    }
+}
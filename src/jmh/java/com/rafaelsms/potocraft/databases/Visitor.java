@@ -0,0 +1,80 @@
+package com.rafaelsms.potocraft.databases;
+
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A player walking around the synthetic world, one per benchmark thread.
+ * <p>
+ * Most locations are inside or next to bases, the rest are in the wilderness between villages. Each player stays
+ * around a base for a while, like players mining or farming do.
+ */
+@State(Scope.Thread)
+public class Visitor {
+
+    private static final double WILDERNESS_CHANCE = 0.2;
+    private static final int STEPS_PER_BASE = 64;
+    private static final int BASE_BORDER = 16;
+    // Fresh areas for new blocks, far away from the synthetic world
+    private static final int FRESH_AREA_Z = 5_000_000;
+    private static final AtomicInteger freshAreas = new AtomicInteger();
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private BenchmarkDatabase database;
+    private UUID playerId;
+    private SyntheticWorld.Base base;
+    private int steps = 0;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkDatabase database) {
+        this.database = database;
+        List<UUID> players = database.getWorld().getPlayers();
+        this.playerId = players.get(random.nextInt(players.size()));
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    public Location nextLocation() {
+        if (random.nextDouble() < WILDERNESS_CHANCE) {
+            return database.getLocation(random.nextInt(-1_000_000, 1_000_000), random.nextInt(-64, 320),
+                random.nextInt(-1_000_000, 1_000_000));
+        }
+
+        if (base == null || steps++ >= STEPS_PER_BASE) {
+            List<SyntheticWorld.Base> bases = database.getWorld().getBases();
+            this.base = bases.get(random.nextInt(bases.size()));
+            this.steps = 0;
+        }
+        return database.getLocation(
+            random.nextInt(base.minX() - BASE_BORDER, base.minX() + base.sizeX() + BASE_BORDER),
+            random.nextInt(base.minY() - BASE_BORDER, base.minY() + base.sizeY() + BASE_BORDER),
+            random.nextInt(base.minZ() - BASE_BORDER, base.minZ() + base.sizeZ() + BASE_BORDER));
+    }
+
+    /**
+     * @return the minimum corner of an area where nothing was placed yet
+     */
+    public Location nextFreshArea() {
+        return database.getLocation(freshAreas.getAndIncrement() * 128, 64, FRESH_AREA_Z);
+    }
+
+    /**
+     * @return a player other than this one
+     */
+    public UUID nextOtherPlayer() {
+        List<UUID> players = database.getWorld().getPlayers();
+        UUID otherPlayer = players.get(random.nextInt(players.size()));
+        return otherPlayer.equals(playerId) ? nextOtherPlayer() : otherPlayer;
+    }
+}
@@ -1,9 +1,13 @@
 package com.rafaelsms.potocraft;
 
+import com.rafaelsms.potocraft.databases.AttemptType;
+import com.rafaelsms.potocraft.databases.StorageBackend;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 public class Configuration {
@@ -22,6 +26,18 @@ public class Configuration {
         this.configuration = plugin.getConfig();
     }
 
+    /**
+     * Uses an already loaded configuration, such as the default one outside the server.
+     */
+    public Configuration(FileConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    public StorageBackend getStorageBackend() {
+        String backend = (String) Objects.requireNonNull(configuration.get("sql.backend"));
+        return StorageBackend.valueOf(backend.toUpperCase(Locale.ROOT));
+    }
+
     public String getSQLUser() {
         return (String) Objects.requireNonNull(configuration.get("sql.user"));
     }
@@ -31,10 +47,19 @@ public class Configuration {
     }
 
     public String getSQLJdbcUrl() {
+        if (getStorageBackend() == StorageBackend.EMBEDDED) {
+            // H2 only accepts absolute paths, the page cache (in KiB) holds the indexes of most servers
+            String file = (String) Objects.requireNonNull(configuration.get("sql.embeddedFile"));
+            return "jdbc:h2:file:%s;MODE=MariaDB;DB_CLOSE_ON_EXIT=FALSE;CACHE_SIZE=65536;LOCK_TIMEOUT=10000".formatted(
+                new File(file).getAbsolutePath());
+        }
         return (String) Objects.requireNonNull(configuration.get("sql.jdbcUrl"));
     }
 
     public String getSQLDriverClassName() {
+        if (getStorageBackend() == StorageBackend.EMBEDDED) {
+            return "org.h2.Driver";
+        }
         return (String) Objects.requireNonNull(configuration.get("sql.driverClassName"));
     }
 
@@ -42,6 +67,133 @@ public class Configuration {
         return (int) Objects.requireNonNull(configuration.get("sql.poolSize"));
     }
 
+    @SuppressWarnings("unchecked")
+    public List<String> getSQLReplicaJdbcUrls() {
+        return (List<String>) Objects.requireNonNull(configuration.getList("sql.replicas"));
+    }
+
+    public int getSQLReplicaPoolSize() {
+        return (int) Objects.requireNonNull(configuration.get("sql.replicaPoolSize"));
+    }
+
+    public int getSQLReplicaPinMillis() {
+        return (int) Objects.requireNonNull(configuration.get("sql.replicaPinMillis"));
+    }
+
+    public int getSQLBreakerFailures() {
+        return (int) Objects.requireNonNull(configuration.get("sql.breakerFailures"));
+    }
+
+    public int getSQLBreakerOpenMillis() {
+        return (int) Objects.requireNonNull(configuration.get("sql.breakerOpenMillis"));
+    }
+
+    public boolean isSQLVirtualThreads() {
+        return (boolean) Objects.requireNonNull(configuration.get("sql.virtualThreads"));
+    }
+
+    public int getWriteBatchSize() {
+        return (int) Objects.requireNonNull(configuration.get("sql.writeBatchSize"));
+    }
+
+    public int getWriteQueueCapacity() {
+        return (int) Objects.requireNonNull(configuration.get("sql.writeQueueCapacity"));
+    }
+
+    public int getWriteFlushIntervalMillis() {
+        return (int) Objects.requireNonNull(configuration.get("sql.writeFlushIntervalMillis"));
+    }
+
+    public int getWriteDrainTimeoutSeconds() {
+        return (int) Objects.requireNonNull(configuration.get("sql.writeDrainTimeoutSeconds"));
+    }
+
+    public int getNaturalVerdictTtlMillis() {
+        return (int) Objects.requireNonNull(configuration.get("protection.natural_verdict_ttl_millis"));
+    }
+
+    public int getNaturalQueriesPerTick() {
+        return (int) Objects.requireNonNull(configuration.get("protection.natural_queries_per_tick"));
+    }
+
+    public int getPlayerDecisionTtlMillis() {
+        return (int) Objects.requireNonNull(configuration.get("protection.player_decision_ttl_millis"));
+    }
+
+    public int getPlayerDecisionSections() {
+        return (int) Objects.requireNonNull(configuration.get("protection.player_decision_sections"));
+    }
+
+    public int getDenialNotificationMillis() {
+        return (int) Objects.requireNonNull(configuration.get("protection.denial_notification_millis"));
+    }
+
+    public boolean isRegionStoreEnabled() {
+        return (boolean) Objects.requireNonNull(configuration.get("protection.region_files"));
+    }
+
+    public String getRegionStoreDirectory() {
+        return (String) Objects.requireNonNull(configuration.get("protection.region_directory"));
+    }
+
+    public int getRegionCompactionSeconds() {
+        return (int) Objects.requireNonNull(configuration.get("protection.region_compaction_seconds"));
+    }
+
+    public int getWarmUpConcurrency() {
+        return (int) Objects.requireNonNull(configuration.get("protection.warmup_concurrency"));
+    }
+
+    public int getWarmUpRecentPlayerHours() {
+        return (int) Objects.requireNonNull(configuration.get("protection.warmup_recent_player_hours"));
+    }
+
+    public int getWarmUpHoldMinutes() {
+        return (int) Objects.requireNonNull(configuration.get("protection.warmup_hold_minutes"));
+    }
+
+    public int getCheckDeadlineMillis(AttemptType attemptType) {
+        return (int) Objects.requireNonNull(configuration.get(
+            "protection.check_deadline_%s_millis".formatted(attemptType.name().toLowerCase(Locale.ROOT))));
+    }
+
+    /**
+     * @return true if the attempt is allowed when the database is unavailable and no verdict is known
+     */
+    public boolean isAllowedWhileUnavailable(AttemptType attemptType) {
+        String policy = (String) Objects.requireNonNull(configuration.get(
+            "protection.unavailable_policy_%s".formatted(attemptType.name().toLowerCase(Locale.ROOT))));
+        return switch (policy.toLowerCase(Locale.ROOT)) {
+            case "allow" -> true;
+            case "deny" -> false;
+            default -> throw new IllegalArgumentException("Unknown unavailable policy: " + policy);
+        };
+    }
+
+    public int getTrustRefreshSeconds() {
+        return (int) Objects.requireNonNull(configuration.get("protection.trust_refresh_seconds"));
+    }
+
+    public int getSweepIntervalMinutes() {
+        return (int) Objects.requireNonNull(configuration.get("protection.sweep_interval_minutes"));
+    }
+
+    public int getSweepBatchSize() {
+        return (int) Objects.requireNonNull(configuration.get("protection.sweep_batch_size"));
+    }
+
+    public int getSweepBatchDelayMillis() {
+        return (int) Objects.requireNonNull(configuration.get("protection.sweep_batch_delay_millis"));
+    }
+
+    /**
+     * @return days temporary blocks are kept without being promoted, at least the days protected
+     */
+    public int getSweepTemporaryDays() {
+        return Math.max(DAYS_PROTECTED,
+            (int) Objects.requireNonNull(configuration.get("protection.sweep_temporary_days")));
+    }
+
     @SuppressWarnings("unchecked")
     public List<String> getProtectedMaterialList() {
         return (List<String>) Objects.requireNonNull(configuration.getList("protection.protected_blocks"));
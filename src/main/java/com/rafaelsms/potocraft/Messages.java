@@ -1,23 +1,92 @@
 package com.rafaelsms.potocraft;
 
+import com.rafaelsms.potocraft.metrics.LatencyHistogram;
+import com.rafaelsms.potocraft.names.PlayerNameIndex;
 import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.ComponentLike;
 import net.kyori.adventure.text.JoinConfiguration;
+import net.kyori.adventure.text.TextReplacementConfig;
 import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
 import net.kyori.adventure.text.minimessage.tag.resolver.TagResolver;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
+/**
+ * Messages are parsed once when the plugin starts. Placeholders are filled by replacing markers in the parsed
+ * components, so sending a message never parses MiniMessage again.
+ */
 public class Messages {
 
+    private static final int OWNER_MESSAGE_CACHE_SIZE = 256;
+    private static final String UNKNOWN_PLAYER = "(desconhecido)";
+
     private final JavaPlugin plugin;
+    private final PlayerNameIndex playerNames;
+    // Owner -> "block nearby has owner" message, checked against the current name of the owner
+    private final Map<UUID, OwnerMessage> ownerMessages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, OwnerMessage> eldest) {
+            return size() > OWNER_MESSAGE_CACHE_SIZE;
+        }
+    };
 
-    public Messages(JavaPlugin plugin) {
+    private final Template blockNearbyHasOwner = new Template("<red>Bloco próximo possui dono: <dark_red><owner>", "owner");
+    private final Template attemptsBlocked =
+        new Template("<last_message> <gray>(<attempts> tentativas bloqueadas)", "last_message", "attempts");
+    private final Component unsafePermissionSet = parse("<red>Permissão de sobrescrita: o bloco não será protegido");
+    private final Component prohibitedLavaCasts = parse("<red>Note: <i>lavacast</i> é proíbido");
+    private final Template playersAllowed = new Template("<yellow>Jogadores permitidos: <player_list>", "player_list");
+    private final Template playerListEntry = new Template("<gold><player_name></gold>", "player_name");
+    private final Component playerListSeparator = parse("<yellow>, </yellow>");
+    private final Template playerAllowed =
+        new Template("<yellow>Jogador <gold><player_name></gold> está permitido!", "player_name");
+    private final Template playerAlreadyAllowed =
+        new Template("<red>Jogador <dark_red><player_name></dark_red> já está permitido!", "player_name");
+    private final Template playerAlreadyNotAllowed =
+        new Template("<red>Jogador <dark_red><player_name></dark_red> já não está permitido!", "player_name");
+    private final Template playerNotAllowed =
+        new Template("<yellow>Jogador <gold><player_name></gold> foi removido da lista!", "player_name");
+    private final Component playersNotAllowed = parse("<yellow>Todos os jogadores foram removidos da lista!");
+    private final Template playerNotFound =
+        new Template("<red>Jogador <dark_red><player_name></dark_red> não encontrado!", "player_name");
+    private final Component databaseAccessError = parse("<red>Falha ao acessar banco de dados!");
+    private final Component commandStillRunning = parse("<red>Aguarde o comando anterior terminar!");
+    private final Component allowCommandHelp =
+        parse("<gold>Para permitir que pessoas quebrem/coloquem blocos juntos ao seus: <yellow>/allow (nome)");
+    private final Component allowListCommandHelp =
+        parse("<gold>Para listar que pessoas podem quebrar/colocar blocos juntos ao seus: <yellow>/allowlist");
+    private final Component disallowCommandHelp =
+        parse("<gold>Para proibir que pessoas quebrem/coloquem blocos juntos ao seus: <yellow>/disallow (nome)");
+    private final Component statsCommandHelp =
+        parse("<gold>Para ver latências e conexões do banco de dados: <yellow>/potocraft stats<newline>" +
+              "<gold>Para remover blocos expirados agora: <yellow>/potocraft sweep");
+    private final Component sweepStarted = parse("<yellow>Removendo blocos expirados...");
+    private final Component sweepStillRunning = parse("<red>A remoção de blocos expirados já está em andamento!");
+    private final Template sweepFinished =
+        new Template("<yellow>Blocos expirados removidos: <gold><block_count>", "block_count");
+    private final Component statsHeader =
+        parse("<gold>Latências do último minuto (p50, p99, máximo, média por tick, pior tick):");
+    private final Template statsHistogram =
+        new Template("<yellow><name>: <gold><count></gold>x, <p50>, <p99>, <max>, <tick_average>, <tick_max>", "name",
+            "count", "p50", "p99", "max", "tick_average", "tick_max");
+    private final Template statsGauge = new Template("<yellow><name>: <gold><value>", "name", "value");
+    private final Component unsafeCombatMessage =
+        parse("<dark_red>Você está em combate! <red>Perderá os itens se morrer ou sair!");
+    private final Component defaultCombatMessage =
+        parse("<red>Você está em combate! Perderá experiência se morrer ou sair!");
+    private final Component safeCombatMessage = parse("<red>Você está em combate!");
+    private final Component commandCombatMessage = parse("<red>Você está em combate e não pode executar este comando!");
+
+    public Messages(JavaPlugin plugin, PlayerNameIndex playerNames) {
         this.plugin = plugin;
+        this.playerNames = playerNames;
     }
 
     public Component getNoPermission() {
@@ -25,92 +94,131 @@ public class Messages {
     }
 
     public Component getBlockNearbyHasOwner(UUID owner) {
-        String ownerName = getOr(plugin.getServer().getOfflinePlayer(owner).getName(), "(desconhecido)");
-        TagResolver.Single ownerNameResolver = Placeholder.unparsed("owner", ownerName);
-        return parse("<red>Bloco próximo possui dono: <dark_red><owner>", ownerNameResolver);
+        String ownerName = getOr(playerNames.getName(owner), UNKNOWN_PLAYER);
+        synchronized (ownerMessages) {
+            OwnerMessage ownerMessage = ownerMessages.get(owner);
+            if (ownerMessage == null || !ownerMessage.ownerName().equals(ownerName)) {
+                ownerMessage = new OwnerMessage(ownerName, blockNearbyHasOwner.render(ownerName));
+                ownerMessages.put(owner, ownerMessage);
+            }
+            return ownerMessage.message();
+        }
+    }
+
+    public Component getAttemptsBlocked(Component lastMessage, int attempts) {
+        return attemptsBlocked.render(lastMessage, String.valueOf(attempts));
     }
 
     public Component getUnsafePermissionSet() {
-        return parse("<red>Permissão de sobrescrita: o bloco não será protegido");
+        return unsafePermissionSet;
     }
 
     public Component getProhibitedLavaCasts() {
-        return parse("<red>Note: <i>lavacast</i> é proíbido");
+        return prohibitedLavaCasts;
     }
 
     public Component getPlayersAllowed(List<String> playerList) {
-        TagResolver.Single playerListTag = Placeholder.component("player_list", getPlayerList(playerList));
-        return parse("<yellow>Jogadores permitidos: <player_list>", playerListTag);
+        return playersAllowed.render(getPlayerList(playerList));
     }
 
     private Component getPlayerList(List<String> playerList) {
         List<Component> entries = new ArrayList<>(playerList.size());
         for (String playerName : playerList) {
-            TagResolver.Single playerNameTag = Placeholder.unparsed("player_name", playerName);
-            entries.add(parse("<gold><player_name></gold>", playerNameTag));
+            entries.add(playerListEntry.render(playerName));
         }
-        return Component.join(JoinConfiguration.separator(parse("<yellow>, </yellow>")), entries);
+        return Component.join(JoinConfiguration.separator(playerListSeparator), entries);
     }
 
     public Component getPlayerAllowed(String playerName) {
-        TagResolver.Single player = Placeholder.unparsed("player_name", playerName);
-        return parse("<yellow>Jogador <gold><player_name></gold> está permitido!", player);
+        return playerAllowed.render(playerName);
     }
 
     public Component getPlayerAlreadyAllowed(String playerName) {
-        TagResolver.Single player = Placeholder.unparsed("player_name", playerName);
-        return parse("<red>Jogador <dark_red><player_name></dark_red> já está permitido!", player);
+        return playerAlreadyAllowed.render(playerName);
     }
 
     public Component getPlayerAlreadyNotAllowed(String playerName) {
-        TagResolver.Single player = Placeholder.unparsed("player_name", playerName);
-        return parse("<red>Jogador <dark_red><player_name></dark_red> já não está permitido!", player);
+        return playerAlreadyNotAllowed.render(playerName);
     }
 
     public Component getPlayerNotAllowed(String playerName) {
-        TagResolver.Single player = Placeholder.unparsed("player_name", playerName);
-        return parse("<yellow>Jogador <gold><player_name></gold> foi removido da lista!", player);
+        return playerNotAllowed.render(playerName);
     }
 
     public Component getPlayersNotAllowed() {
-        return parse("<yellow>Todos os jogadores foram removidos da lista!");
+        return playersNotAllowed;
     }
 
     public Component getPlayerNotFound(String playerName) {
-        TagResolver.Single player = Placeholder.unparsed("player_name", playerName);
-        return parse("<red>Jogador <dark_red><player_name></dark_red> não encontrado!", player);
+        return playerNotFound.render(playerName);
     }
 
     public Component getDatabaseAccessError() {
-        return parse("<red>Falha ao acessar banco de dados!");
+        return databaseAccessError;
+    }
+
+    public Component getCommandStillRunning() {
+        return commandStillRunning;
     }
 
     public Component getAllowCommandHelp() {
-        return parse("<gold>Para permitir que pessoas quebrem/coloquem blocos juntos ao seus: <yellow>/allow (nome)");
+        return allowCommandHelp;
     }
 
     public Component getAllowListCommandHelp() {
-        return parse("<gold>Para listar que pessoas podem quebrar/colocar blocos juntos ao seus: <yellow>/allowlist");
+        return allowListCommandHelp;
     }
 
     public Component getDisallowCommandHelp() {
-        return parse("<gold>Para proibir que pessoas quebrem/coloquem blocos juntos ao seus: <yellow>/disallow (nome)");
+        return disallowCommandHelp;
+    }
+
+    public Component getStatsCommandHelp() {
+        return statsCommandHelp;
+    }
+
+    public Component getSweepStarted() {
+        return sweepStarted;
+    }
+
+    public Component getSweepStillRunning() {
+        return sweepStillRunning;
+    }
+
+    public Component getSweepFinished(int blockCount) {
+        return sweepFinished.render(String.valueOf(blockCount));
+    }
+
+    public Component getStats(List<LatencyHistogram.Snapshot> snapshots, Map<String, Long> gauges) {
+        List<Component> lines = new ArrayList<>();
+        lines.add(statsHeader);
+        for (LatencyHistogram.Snapshot snapshot : snapshots) {
+            lines.add(statsHistogram.render(snapshot.name(), String.valueOf(snapshot.count()),
+                formatNanos(snapshot.p50()), formatNanos(snapshot.p99()), formatNanos(snapshot.maximum()),
+                formatNanos(snapshot.tickAverage()), formatNanos(snapshot.tickMaximum())));
+        }
+        gauges.forEach((name, value) -> lines.add(statsGauge.render(name, String.valueOf(value))));
+        return Component.join(JoinConfiguration.newlines(), lines);
+    }
+
+    private static String formatNanos(long nanos) {
+        return "%.3fms".formatted(nanos / 1_000_000.0);
     }
 
     public Component getUnsafeCombatMessage() {
-        return parse("<dark_red>Você está em combate! <red>Perderá os itens se morrer ou sair!");
+        return unsafeCombatMessage;
     }
 
     public Component getDefaultCombatMessage() {
-        return parse("<red>Você está em combate! Perderá experiência se morrer ou sair!");
+        return defaultCombatMessage;
     }
 
     public Component getSafeCombatMessage() {
-        return parse("<red>Você está em combate!");
+        return safeCombatMessage;
     }
 
     public Component getCommandCombatMessage() {
-        return parse("<red>Você está em combate e não pode executar este comando!");
+        return commandCombatMessage;
     }
 
     private static <T> T getOr(T t, T fallback) {
@@ -120,4 +228,43 @@ public class Messages {
     private static Component parse(String baseString, TagResolver... tagResolvers) {
         return MiniMessage.miniMessage().deserialize(baseString, tagResolvers);
     }
+
+    private record OwnerMessage(String ownerName, Component message) {
+    }
+
+    /**
+     * A message parsed with markers in place of its placeholders, which are replaced by the values when rendered.
+     * Values are inserted as they are, like {@link Placeholder#unparsed(String, String)}, with the style of the
+     * placeholder.
+     */
+    private static final class Template {
+
+        private final Component component;
+        private final String[] markers;
+
+        private Template(String baseString, String... placeholders) {
+            this.markers = new String[placeholders.length];
+            TagResolver[] markerResolvers = new TagResolver[placeholders.length];
+            for (int i = 0; i < placeholders.length; i++) {
+                // Private use characters don't show up in player names or numbers
+                markers[i] = "\uE000" + i + "\uE001";
+                markerResolvers[i] = Placeholder.unparsed(placeholders[i], markers[i]);
+            }
+            this.component = parse(baseString, markerResolvers);
+        }
+
+        private Component render(Object... values) {
+            Component rendered = component;
+            for (int i = 0; i < markers.length; i++) {
+                TextReplacementConfig.Builder replacement = TextReplacementConfig.builder().matchLiteral(markers[i]);
+                if (values[i] instanceof ComponentLike value) {
+                    replacement.replacement(value);
+                } else {
+                    replacement.replacement(String.valueOf(values[i]));
+                }
+                rendered = rendered.replaceText(replacement.once().build());
+            }
+            return rendered;
+        }
+    }
 }
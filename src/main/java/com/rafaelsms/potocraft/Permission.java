@@ -10,7 +10,9 @@ public enum Permission {
     DISALLOW_PLAYER("potocraft.commands.disallow"),
     DISALLOW_PLAYER_OTHER("potocraft.commands.disallow.other"),
     LIST_PLAYERS_ALLOWED("potocraft.commands.list"),
-    LIST_PLAYERS_ALLOWED_OTHER("potocraft.commands.list.other");
+    LIST_PLAYERS_ALLOWED_OTHER("potocraft.commands.list.other"),
+    SHOW_STATS("potocraft.commands.stats"),
+    SWEEP_EXPIRED("potocraft.commands.sweep");
 
     private final org.bukkit.permissions.Permission permission;
 
@@ -2,57 +2,92 @@ package com.rafaelsms.potocraft;
 
 import com.rafaelsms.potocraft.commands.AllowCommand;
 import com.rafaelsms.potocraft.commands.AllowListCommand;
+import com.rafaelsms.potocraft.commands.CommandTasks;
 import com.rafaelsms.potocraft.commands.DisallowCommand;
+import com.rafaelsms.potocraft.commands.PotoCraftCommand;
 import com.rafaelsms.potocraft.databases.BlockDatabase;
 import com.rafaelsms.potocraft.databases.DatabasePool;
 import com.rafaelsms.potocraft.databases.PlayerDatabase;
+import com.rafaelsms.potocraft.databases.SchemaMigration;
 import com.rafaelsms.potocraft.listeners.BlocksListener;
 import com.rafaelsms.potocraft.listeners.CombatListener;
+import com.rafaelsms.potocraft.listeners.PlayerNamesListener;
+import com.rafaelsms.potocraft.listeners.WarmUpListener;
 import com.rafaelsms.potocraft.listeners.WorldsListener;
-import org.bukkit.OfflinePlayer;
+import com.rafaelsms.potocraft.metrics.Metrics;
+import com.rafaelsms.potocraft.names.PlayerNameIndex;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.PluginCommand;
+import org.bukkit.command.TabCompleter;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class PotoCraftPlugin extends JavaPlugin {
 
+    private static final int NAME_COMPLETION_LIMIT = 50;
+
     private Configuration configuration;
+    private final Metrics metrics = new Metrics();
+    private final Executor mainThreadExecutor = this::runOnMainThread;
     private DatabasePool databasePool;
+    private SchemaMigration schemaMigration;
 
     private PlayerDatabase playerDatabase;
     private BlockDatabase blockDatabase;
 
+    private PlayerNameIndex playerNames;
     private Messages messages;
+    private WarmUpListener warmUpListener;
+    private BlocksListener blocksListener;
 
     @Override
     public void onEnable() {
         Permission.registerPermissions(this);
 
         this.configuration = new Configuration(this);
-        this.databasePool = new DatabasePool(configuration, getSLF4JLogger());
+        this.databasePool = new DatabasePool(configuration, metrics, getSLF4JLogger());
 
         try {
-            this.playerDatabase = new PlayerDatabase(databasePool);
-            this.blockDatabase = new BlockDatabase(databasePool);
+            this.schemaMigration = new SchemaMigration(databasePool);
+            this.playerDatabase = new PlayerDatabase(configuration, databasePool, schemaMigration);
+            this.blockDatabase = new BlockDatabase(configuration, databasePool, schemaMigration, playerDatabase);
         } catch (ExecutionException e) {
             throw new RuntimeException("Failed to initialize database: ", e);
         }
 
-        this.messages = new Messages(this);
+        this.playerNames = new PlayerNameIndex(this);
+        this.playerNames.load();
+        this.messages = new Messages(this, playerNames);
+
+        // Spawn chunks are retained as the blocks listener starts, load them together after it
+        this.blockDatabase.startWarmUp();
+        this.warmUpListener = new WarmUpListener(this);
 
         registerEvent(new WorldsListener(this));
-        registerEvent(new BlocksListener(this));
+        this.blocksListener = new BlocksListener(this);
+        registerEvent(blocksListener);
         registerEvent(new CombatListener(this));
+        registerEvent(warmUpListener);
+        registerEvent(new PlayerNamesListener(this));
+        this.warmUpListener.warmUp();
 
-        registerCommand("allow", new AllowCommand(this));
-        registerCommand("allowlist", new AllowListCommand(this));
-        registerCommand("disallow", new DisallowCommand(this));
+        CommandTasks commandTasks = new CommandTasks(this);
+        registerCommand("allow", new AllowCommand(this, commandTasks));
+        registerCommand("allowlist", new AllowListCommand(this, commandTasks));
+        registerCommand("disallow", new DisallowCommand(this, commandTasks));
+        registerCommand("potocraft", new PotoCraftCommand(this, commandTasks));
+
+        // Copy legacy tables in the background after worlds are registered
+        this.schemaMigration.start();
 
         getLogger().info("Enabled PotoCraft Plugin.");
     }
@@ -61,6 +96,14 @@ public class PotoCraftPlugin extends JavaPlugin {
     public void onDisable() {
         // Stop listeners from this plugin
         HandlerList.unregisterAll(this);
+        this.warmUpListener.save();
+        this.playerNames.save();
+
+        // Write queued block changes while the pool is still open
+        this.blocksListener.flushRemovals();
+        this.blockDatabase.close(configuration.getWriteDrainTimeoutSeconds(), TimeUnit.SECONDS);
+        this.playerDatabase.close();
+        this.schemaMigration.close();
 
         try {
             this.databasePool.close();
@@ -87,10 +130,34 @@ public class PotoCraftPlugin extends JavaPlugin {
         return blockDatabase;
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public PlayerNameIndex getPlayerNames() {
+        return playerNames;
+    }
+
     public Messages getMessages() {
         return messages;
     }
 
+    /**
+     * @return executor that resumes work on the main thread, to continue database futures with
+     * {@code thenAcceptAsync(..., plugin.getMainThreadExecutor())}
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        if (getServer().isPrimaryThread()) {
+            runnable.run();
+        } else {
+            getServer().getScheduler().runTask(this, runnable);
+        }
+    }
+
     private void registerEvent(Listener listener) {
         getServer().getPluginManager().registerEvents(listener, this);
     }
@@ -101,14 +168,19 @@ public class PotoCraftPlugin extends JavaPlugin {
             throw new IllegalStateException("Attempted to register unknown command: %s".formatted(command));
         }
         pluginCommand.setExecutor(commandExecutor);
+        if (commandExecutor instanceof TabCompleter tabCompleter) {
+            pluginCommand.setTabCompleter(tabCompleter);
+        }
     }
 
-    public OfflinePlayer searchOfflinePlayer(String playerName) {
-        OfflinePlayer offlinePlayer = getServer().getOfflinePlayer(playerName);
-        if (offlinePlayer.hasPlayedBefore()) {
-            return offlinePlayer;
-        }
+    /**
+     * @return id of the player who played on the server with the name ignoring case, null if none
+     */
+    public UUID searchPlayer(String playerName) {
+        return playerNames.getPlayerId(playerName);
+    }
 
-        return null;
+    public List<String> completePlayerName(String prefix) {
+        return playerNames.complete(prefix, NAME_COMPLETION_LIMIT);
     }
 }
@@ -2,22 +2,23 @@ package com.rafaelsms.potocraft.commands;
 
 import com.rafaelsms.potocraft.Permission;
 import com.rafaelsms.potocraft.PotoCraftPlugin;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
-public class AllowCommand implements CommandExecutor {
+public class AllowCommand implements TabExecutor {
 
     private final PotoCraftPlugin plugin;
+    private final CommandTasks tasks;
 
-    public AllowCommand(PotoCraftPlugin plugin) {
+    public AllowCommand(PotoCraftPlugin plugin, CommandTasks tasks) {
         this.plugin = plugin;
+        this.tasks = tasks;
     }
 
     @Override
@@ -39,13 +40,13 @@ public class AllowCommand implements CommandExecutor {
             }
 
             // Check allowing player
-            OfflinePlayer allowingPlayer = plugin.searchOfflinePlayer(args[0]);
+            UUID allowingPlayer = plugin.searchPlayer(args[0]);
             if (allowingPlayer == null) {
                 sender.sendMessage(plugin.getMessages().getPlayerNotFound(args[0]));
                 return true;
             }
 
-            allowPlayer(sender, allowingPlayer.getUniqueId(), args[1]);
+            allowPlayer(sender, allowingPlayer, args[1]);
             return true;
         } else {
             sender.sendMessage(plugin.getMessages().getAllowCommandHelp());
@@ -55,20 +56,28 @@ public class AllowCommand implements CommandExecutor {
 
     private void allowPlayer(CommandSender sender, UUID player, String playerAllowedName) {
         // Checking allowed player
-        OfflinePlayer allowedPlayer = plugin.searchOfflinePlayer(playerAllowedName);
+        UUID allowedPlayer = plugin.searchPlayer(playerAllowedName);
         if (allowedPlayer == null) {
             sender.sendMessage(plugin.getMessages().getPlayerNotFound(playerAllowedName));
             return;
         }
 
-        try {
-            if (plugin.getPlayerDatabase().addAllowedPlayer(player, allowedPlayer.getUniqueId())) {
-                sender.sendMessage(plugin.getMessages().getPlayerAllowed(allowedPlayer.getName()));
-            } else {
-                sender.sendMessage(plugin.getMessages().getPlayerAlreadyAllowed(allowedPlayer.getName()));
-            }
-        } catch (ExecutionException e) {
-            sender.sendMessage(plugin.getMessages().getDatabaseAccessError());
+        String allowedPlayerName = plugin.getPlayerNames().getName(allowedPlayer);
+        tasks.run(sender, () -> plugin.getPlayerDatabase()
+                                      .addAllowedPlayerAsync(player, allowedPlayer)
+                                      .thenApply(added -> added ?
+                                                          plugin.getMessages().getPlayerAllowed(allowedPlayerName) :
+                                                          plugin.getMessages()
+                                                                .getPlayerAlreadyAllowed(allowedPlayerName)));
+    }
+
+    @Override
+    public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label,
+        @NotNull String[] args) {
+        if (args.length == 1 && sender.hasPermission(Permission.ALLOW_PLAYER.getPermission()) ||
+            args.length == 2 && sender.hasPermission(Permission.ALLOW_PLAYER_OTHER.getPermission())) {
+            return plugin.completePlayerName(args[args.length - 1]);
         }
+        return List.of();
     }
 }
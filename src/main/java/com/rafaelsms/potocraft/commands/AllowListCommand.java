@@ -2,24 +2,25 @@ package com.rafaelsms.potocraft.commands;
 
 import com.rafaelsms.potocraft.Permission;
 import com.rafaelsms.potocraft.PotoCraftPlugin;
-import org.bukkit.OfflinePlayer;
+import net.kyori.adventure.text.Component;
 import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
-public class AllowListCommand implements CommandExecutor {
+public class AllowListCommand implements TabExecutor {
 
     private final PotoCraftPlugin plugin;
+    private final CommandTasks tasks;
 
-    public AllowListCommand(PotoCraftPlugin plugin) {
+    public AllowListCommand(PotoCraftPlugin plugin, CommandTasks tasks) {
         this.plugin = plugin;
+        this.tasks = tasks;
     }
 
     @Override
@@ -39,13 +40,13 @@ public class AllowListCommand implements CommandExecutor {
                 return true;
             }
 
-            OfflinePlayer offlinePlayer = plugin.searchOfflinePlayer(args[0]);
-            if (offlinePlayer == null) {
+            UUID playerId = plugin.searchPlayer(args[0]);
+            if (playerId == null) {
                 sender.sendMessage(plugin.getMessages().getPlayerNotFound(args[0]));
                 return true;
             }
 
-            showPlayerList(sender, offlinePlayer.getUniqueId());
+            showPlayerList(sender, playerId);
             return true;
         } else {
             sender.sendMessage(plugin.getMessages().getAllowListCommandHelp());
@@ -54,22 +55,28 @@ public class AllowListCommand implements CommandExecutor {
     }
 
     private void showPlayerList(CommandSender sender, UUID playerId) {
-        try {
-            List<UUID> playersAllowed = plugin.getPlayerDatabase().getPlayersAllowed(playerId);
+        tasks.run(sender, () -> plugin.getPlayerDatabase().getPlayersAllowedAsync(playerId).thenApply(this::getMessage));
+    }
 
-            List<String> playerNames = new ArrayList<>(playersAllowed.size());
-            for (UUID player : playersAllowed) {
-                OfflinePlayer offlinePlayer = plugin.getServer().getOfflinePlayer(player);
-                if (offlinePlayer.getName() != null) {
-                    playerNames.add(offlinePlayer.getName());
-                } else {
-                    playerNames.add("(desconhecido)");
-                }
+    private Component getMessage(List<UUID> playersAllowed) {
+        List<String> playerNames = new ArrayList<>(playersAllowed.size());
+        for (UUID player : playersAllowed) {
+            String playerName = plugin.getPlayerNames().getName(player);
+            if (playerName != null) {
+                playerNames.add(playerName);
+            } else {
+                playerNames.add("(desconhecido)");
             }
+        }
+        return plugin.getMessages().getPlayersAllowed(playerNames);
+    }
 
-            sender.sendMessage(plugin.getMessages().getPlayersAllowed(playerNames));
-        } catch (ExecutionException e) {
-            sender.sendMessage(plugin.getMessages().getDatabaseAccessError());
+    @Override
+    public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label,
+        @NotNull String[] args) {
+        if (args.length == 1 && sender.hasPermission(Permission.LIST_PLAYERS_ALLOWED_OTHER.getPermission())) {
+            return plugin.completePlayerName(args[0]);
         }
+        return List.of();
     }
 }
@@ -0,0 +1,76 @@
+package com.rafaelsms.potocraft.commands;
+
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import net.kyori.adventure.text.Component;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs the database work of commands off the main thread and sends their message back on it.
+ * <p>
+ * Each sender has at most one command running, so repeating a command doesn't pile up queries. Tasks for the whole
+ * server, such as the sweep, run at most once at a time whoever starts them, apart from the senders' own commands.
+ */
+public class CommandTasks {
+
+    private static final UUID CONSOLE_ID = new UUID(0, 0);
+
+    private final PotoCraftPlugin plugin;
+    // Ids of senders and names of server tasks running
+    private final Set<Object> runningTasks = ConcurrentHashMap.newKeySet();
+
+    public CommandTasks(PotoCraftPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Starts the task unless the sender has one running. The message it completes with is sent on the main thread,
+     * failures are reported as a database error.
+     */
+    public void run(CommandSender sender, Supplier<CompletableFuture<Component>> task) {
+        UUID senderId = sender instanceof Player player ? player.getUniqueId() : CONSOLE_ID;
+        if (!runningTasks.add(senderId)) {
+            sender.sendMessage(plugin.getMessages().getCommandStillRunning());
+            return;
+        }
+        start(senderId, sender, task);
+    }
+
+    /**
+     * Starts a task for the whole server unless it is running, whoever started it. The sender is told it started only
+     * if it did, and gets its message when it completes.
+     */
+    public void runOnce(String taskName, CommandSender sender, Component runningMessage, Component startedMessage,
+        Supplier<CompletableFuture<Component>> task) {
+        if (!runningTasks.add(taskName)) {
+            sender.sendMessage(runningMessage);
+            return;
+        }
+        sender.sendMessage(startedMessage);
+        start(taskName, sender, task);
+    }
+
+    private void start(Object taskId, CommandSender sender, Supplier<CompletableFuture<Component>> task) {
+        CompletableFuture<Component> future;
+        try {
+            future = task.get();
+        } catch (RuntimeException e) {
+            runningTasks.remove(taskId);
+            throw e;
+        }
+        future.whenCompleteAsync((message, throwable) -> {
+            runningTasks.remove(taskId);
+            if (throwable != null) {
+                sender.sendMessage(plugin.getMessages().getDatabaseAccessError());
+            } else {
+                sender.sendMessage(message);
+            }
+        }, plugin.getMainThreadExecutor());
+    }
+}
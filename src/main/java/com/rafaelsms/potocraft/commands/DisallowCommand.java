@@ -2,22 +2,23 @@ package com.rafaelsms.potocraft.commands;
 
 import com.rafaelsms.potocraft.Permission;
 import com.rafaelsms.potocraft.PotoCraftPlugin;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
-public class DisallowCommand implements CommandExecutor {
+public class DisallowCommand implements TabExecutor {
 
     private final PotoCraftPlugin plugin;
+    private final CommandTasks tasks;
 
-    public DisallowCommand(PotoCraftPlugin plugin) {
+    public DisallowCommand(PotoCraftPlugin plugin, CommandTasks tasks) {
         this.plugin = plugin;
+        this.tasks = tasks;
     }
 
     @Override
@@ -29,12 +30,9 @@ public class DisallowCommand implements CommandExecutor {
                 return true;
             }
 
-            try {
-                plugin.getPlayerDatabase().removeAllowedPlayers(player.getUniqueId());
-                sender.sendMessage(plugin.getMessages().getPlayersNotAllowed());
-            } catch (ExecutionException e) {
-                sender.sendMessage(plugin.getMessages().getDatabaseAccessError());
-            }
+            tasks.run(sender, () -> plugin.getPlayerDatabase()
+                                          .removeAllowedPlayersAsync(player.getUniqueId())
+                                          .thenApply(ignored -> plugin.getMessages().getPlayersNotAllowed()));
             return true;
         } else if (args.length == 1 && sender instanceof Player player) {
             if (!sender.hasPermission(Permission.DISALLOW_PLAYER.getPermission())) {
@@ -52,13 +50,13 @@ public class DisallowCommand implements CommandExecutor {
             }
 
             // Check disallowing player
-            OfflinePlayer disallowingPlayer = plugin.searchOfflinePlayer(args[0]);
+            UUID disallowingPlayer = plugin.searchPlayer(args[0]);
             if (disallowingPlayer == null) {
                 sender.sendMessage(plugin.getMessages().getPlayerNotFound(args[0]));
                 return true;
             }
 
-            disallowPlayer(sender, disallowingPlayer.getUniqueId(), args[1]);
+            disallowPlayer(sender, disallowingPlayer, args[1]);
             return true;
         } else {
             sender.sendMessage(plugin.getMessages().getDisallowCommandHelp());
@@ -68,20 +66,29 @@ public class DisallowCommand implements CommandExecutor {
 
     private void disallowPlayer(CommandSender sender, UUID player, String playerDisallowedName) {
         // Checking allowed player
-        OfflinePlayer disallowedPlayer = plugin.searchOfflinePlayer(playerDisallowedName);
+        UUID disallowedPlayer = plugin.searchPlayer(playerDisallowedName);
         if (disallowedPlayer == null) {
             sender.sendMessage(plugin.getMessages().getPlayerNotFound(playerDisallowedName));
             return;
         }
 
-        try {
-            if (plugin.getPlayerDatabase().removeAllowedPlayer(player, disallowedPlayer.getUniqueId())) {
-                sender.sendMessage(plugin.getMessages().getPlayerNotAllowed(disallowedPlayer.getName()));
-            } else {
-                sender.sendMessage(plugin.getMessages().getPlayerAlreadyNotAllowed(disallowedPlayer.getName()));
-            }
-        } catch (ExecutionException e) {
-            sender.sendMessage(plugin.getMessages().getDatabaseAccessError());
+        String disallowedPlayerName = plugin.getPlayerNames().getName(disallowedPlayer);
+        tasks.run(sender, () -> plugin.getPlayerDatabase()
+                                      .removeAllowedPlayerAsync(player, disallowedPlayer)
+                                      .thenApply(removed -> removed ?
+                                                            plugin.getMessages()
+                                                                  .getPlayerNotAllowed(disallowedPlayerName) :
+                                                            plugin.getMessages()
+                                                                  .getPlayerAlreadyNotAllowed(disallowedPlayerName)));
+    }
+
+    @Override
+    public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label,
+        @NotNull String[] args) {
+        if (args.length == 1 && sender.hasPermission(Permission.DISALLOW_PLAYER.getPermission()) ||
+            args.length == 2 && sender.hasPermission(Permission.DISALLOW_PLAYER_OTHER.getPermission())) {
+            return plugin.completePlayerName(args[args.length - 1]);
         }
+        return List.of();
     }
 }
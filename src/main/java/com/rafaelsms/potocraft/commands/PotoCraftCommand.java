@@ -0,0 +1,50 @@
+package com.rafaelsms.potocraft.commands;
+
+import com.rafaelsms.potocraft.Permission;
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+public class PotoCraftCommand implements CommandExecutor {
+
+    private final PotoCraftPlugin plugin;
+    private final CommandTasks tasks;
+
+    public PotoCraftCommand(PotoCraftPlugin plugin, CommandTasks tasks) {
+        this.plugin = plugin;
+        this.tasks = tasks;
+    }
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label,
+        @NotNull String[] args) {
+        if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+            if (!sender.hasPermission(Permission.SHOW_STATS.getPermission())) {
+                sender.sendMessage(plugin.getMessages().getNoPermission());
+                return true;
+            }
+
+            sender.sendMessage(
+                plugin.getMessages().getStats(plugin.getMetrics().getSnapshots(), plugin.getMetrics().getGauges()));
+            return true;
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("sweep")) {
+            if (!sender.hasPermission(Permission.SWEEP_EXPIRED.getPermission())) {
+                sender.sendMessage(plugin.getMessages().getNoPermission());
+                return true;
+            }
+
+            // One sweep for the whole server, apart from the sender's allow list commands
+            tasks.runOnce("sweep", sender, plugin.getMessages().getSweepStillRunning(),
+                plugin.getMessages().getSweepStarted(),
+                () -> plugin.getBlockDatabase()
+                            .sweepExpiredBlocks()
+                            .thenApply(blockCount -> plugin.getMessages().getSweepFinished(blockCount)));
+            return true;
+        } else {
+            sender.sendMessage(plugin.getMessages().getStatsCommandHelp());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+/**
+ * Kind of protection check, each with its own distance, deadline and policy when the database is unavailable.
+ */
+public enum AttemptType {
+    NATURAL(Configuration.NATURAL_DISTANCE_PROTECTION),
+    READ(Configuration.READ_DISTANCE_PROTECTION),
+    WRITE(Configuration.WRITE_DISTANCE_PROTECTION);
+
+    private final int distance;
+
+    AttemptType(int distance) {
+        this.distance = distance;
+    }
+
+    public int getDistance() {
+        return distance;
+    }
+}
@@ -1,296 +1,879 @@
 package com.rafaelsms.potocraft.databases;
 
 import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.databases.BlockWriteQueue.PendingWrite;
+import com.rafaelsms.potocraft.metrics.LatencyHistogram;
 import org.bukkit.Location;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BlockDatabase {
 
-    private static final String CREATE_TABLE = """
-        create table if not exists protectedBlocks
-        (
-            playerId       varchar(36)                            not null,
-            worldId        varchar(36)                            not null,
-            x              int                                    not null,
-            y              int                                    not null,
-            z              int                                    not null,
-            dateModified   timestamp  default current_timestamp() not null on update current_timestamp(),
-            temporaryBlock tinyint(1) default 1                   not null,
-            primary key (worldId, x, y, z)
-        );
-        """;
-    private static final String CREATE_DATE_MODIFIED_INDEX = """
-        create index if not exists protectedBlocks__dateModified
-            on protectedBlocks (dateModified);
-        """;
-    private static final String CREATE_PLAYER_ID_INDEX = """
-        create index if not exists protectedBlocks__playerId
-            on protectedBlocks (playerId);
-        """;
-    private static final String CREATE_TEMPORARY_BLOCK_INDEX = """
-        create index if not exists protectedBlocks__temporaryBlock
-            on protectedBlocks (temporaryBlock);
-        """;
-
-    private static final String IS_PROTECTED_BY_ANY = """
-        SELECT playerId
-        FROM protectedBlocks
-        WHERE worldId = ?
-            AND x BETWEEN ? AND ?
-            AND y BETWEEN ? AND ?
-            AND z BETWEEN ? AND ?
-            AND dateModified >= current_timestamp() - INTERVAL ? DAY
-            AND temporaryBlock = FALSE
-        LIMIT 1;
-        """;
-    /**
-     * Get protected blocks by players other than who we're checking for.
-     * <p>
-     * Block's owner should not be the player itself (UNION) or players that have allowed the player.
-     */
-    private static final String IS_PROTECTED_BY_OTHER_PLAYER = """
-        SELECT playerId
-        FROM protectedBlocks
-        WHERE worldId = ?
-            AND x BETWEEN ? AND ?
-            AND y BETWEEN ? AND ?
-            AND z BETWEEN ? AND ?
-            AND dateModified >= current_timestamp() - INTERVAL ? DAY
-            AND playerId NOT IN (
-                SELECT allowedPlayers.playerId
-                FROM allowedPlayers
-                WHERE allowedPlayers.allowedPlayerId = ?
-                UNION DISTINCT
-                SELECT ? AS playerId
-            )
-            AND temporaryBlock = FALSE
-        LIMIT 1;
-        """;
-    /**
-     * Count protected blocks by players that are who we're searching for or players that the player is allowed for.
-     * <p>
-     * Block's owner should be the player itself (UNION) or players that have allowed the player.
-     */
-    private static final String COUNT_NEARBY_BLOCKS = """
-        SELECT COUNT(*)
-        FROM protectedBlocks
-        WHERE worldId = ?
-            AND x BETWEEN ? AND ?
-            AND y BETWEEN ? AND ?
-            AND z BETWEEN ? AND ?
-            AND playerId IN (
-                SELECT allowedPlayers.playerId
-                FROM allowedPlayers
-                WHERE allowedPlayers.allowedPlayerId = ?
-                UNION DISTINCT
-                SELECT ? AS playerId
-            )
-        """;
-    private static final String ADD_BLOCK = """
-        INSERT INTO protectedBlocks(worldId, x, y, z, temporaryBlock, playerId)
-        VALUES (?, ?, ?, ?, ?, ?)
-        ON DUPLICATE KEY UPDATE temporaryBlock = ? AND playerId = ?;
-        """;
-    private static final String UPDATE_TEMPORARY_NEARBY_BLOCKS = """
-        UPDATE protectedBlocks
-        SET temporaryBlock = FALSE
-        WHERE worldId = ?
-            AND x BETWEEN ? AND ?
-            AND y BETWEEN ? AND ?
-            AND z BETWEEN ? AND ?
-            AND playerId IN (
-                SELECT allowedPlayers.playerId
-                FROM allowedPlayers
-                WHERE allowedPlayers.allowedPlayerId = ?
-                UNION DISTINCT
-                SELECT ? AS playerId
-            )
-            AND temporaryBlock = TRUE
-        """;
-    private static final String REMOVE_BLOCK = """
-        DELETE IGNORE FROM protectedBlocks
-        WHERE worldId = ?
-            AND x = ?
-            AND y = ?
-            AND z = ?
-        """;
+    private static final int MAX_ROWS_PER_STATEMENT = 256;
+    private static final int PRESENCE_FETCH_SIZE = 1_000;
 
     private final DatabasePool pool;
-
-    public BlockDatabase(DatabasePool pool) throws ExecutionException {
+    private final SchemaMigration migration;
+    private final PlayerDatabase playerDatabase;
+    private final ProtectionCache cache;
+    // Columns (cells with y = 0) written recently, read from the primary database
+    private final RecentWrites<ProtectionCell> recentWrites;
+    private final PresenceFilter presenceFilter = new PresenceFilter();
+    private final NaturalChecks naturalChecks;
+    private final PlayerDecisions playerDecisions;
+    private final BlockWriteQueue writeQueue;
+    private final ExpirySweeper expirySweeper;
+    // Null unless region files are enabled
+    private final RegionStore regionStore;
+    private final LatencyHistogram addBlockHistogram;
+    private final LatencyHistogram removeBlockHistogram;
+    private final LatencyHistogram removeBlocksHistogram;
+    private final LatencyHistogram moveBlocksHistogram;
+    private final AtomicLong cachedCounts = new AtomicLong();
+    private final AtomicLong queriedCounts = new AtomicLong();
+    private final Map<AttemptType, Long> checkDeadlines = new EnumMap<>(AttemptType.class);
+    private final Map<AttemptType, Boolean> unavailablePolicies = new EnumMap<>(AttemptType.class);
+    private final AtomicLong staleVerdicts = new AtomicLong();
+    private final AtomicLong policyVerdicts = new AtomicLong();
+    private final LatencyHistogram flushHistogram;
+
+    public BlockDatabase(Configuration configuration, DatabasePool pool, SchemaMigration migration,
+        PlayerDatabase playerDatabase) throws ExecutionException {
         this.pool = pool;
-        createTable();
+        this.migration = migration;
+        this.playerDatabase = playerDatabase;
+        for (AttemptType attemptType : AttemptType.values()) {
+            checkDeadlines.put(attemptType,
+                TimeUnit.MILLISECONDS.toNanos(configuration.getCheckDeadlineMillis(attemptType)));
+            unavailablePolicies.put(attemptType, configuration.isAllowedWhileUnavailable(attemptType));
+        }
+        this.recentWrites = new RecentWrites<>(pool, configuration.getSQLReplicaPinMillis());
+        this.cache = new ProtectionCache(pool, this::getAreaBlocks, this::isRecentlyWritten);
+        this.naturalChecks = new NaturalChecks(configuration);
+        this.playerDecisions = new PlayerDecisions(configuration);
+        this.regionStore =
+            configuration.isRegionStoreEnabled() ? new RegionStore(configuration, pool, this::getAreaBlocks) : null;
+        loadPresenceFilter();
+        this.addBlockHistogram = pool.getMetrics().getHistogram("add block");
+        this.removeBlockHistogram = pool.getMetrics().getHistogram("remove block");
+        this.removeBlocksHistogram = pool.getMetrics().getHistogram("remove blocks");
+        this.moveBlocksHistogram = pool.getMetrics().getHistogram("move blocks");
+        pool.getMetrics().addGauge("nearby counts cached", cachedCounts::get);
+        pool.getMetrics().addGauge("nearby counts queried", queriedCounts::get);
+        pool.getMetrics().addGauge("unavailable checks from stale verdicts", staleVerdicts::get);
+        pool.getMetrics().addGauge("unavailable checks from policy", policyVerdicts::get);
+        this.flushHistogram = pool.getMetrics().getHistogram("write flush");
+        this.writeQueue = new BlockWriteQueue(configuration, pool.getLogger(), this::writePendingBlocks);
+        this.expirySweeper = new ExpirySweeper(configuration, pool, migration, this::removeSweptBlocks);
     }
 
-    private void createTable() throws ExecutionException {
-        pool.executeFuture(connection -> {
-            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_TABLE)) {
-                preparedStatement.executeUpdate();
-            }
-            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_DATE_MODIFIED_INDEX)) {
-                preparedStatement.executeUpdate();
-            }
-            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_PLAYER_ID_INDEX)) {
-                preparedStatement.executeUpdate();
+    private void loadPresenceFilter() throws ExecutionException {
+        Map<UUID, Set<Long>> regions = new HashMap<>();
+        int chunks = pool.executeFuture(connection -> {
+            Schema schema = migration.getReadSchema();
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                schema.getQuery(Schema.Query.SELECT_BLOCK_CHUNKS))) {
+                // Stream rows instead of holding every chunk in the result set
+                preparedStatement.setFetchSize(PRESENCE_FETCH_SIZE);
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    int count = 0;
+                    while (resultSet.next()) {
+                        UUID worldId = schema.getWorldUuid(resultSet, 1);
+                        int chunkX = resultSet.getInt(2), chunkZ = resultSet.getInt(3);
+                        presenceFilter.addChunk(worldId, chunkX, chunkZ);
+                        regions.computeIfAbsent(worldId, id -> new HashSet<>())
+                               .add(RegionStore.getRegionKey(chunkX >> RegionFile.REGION_BITS,
+                                   chunkZ >> RegionFile.REGION_BITS));
+                        count++;
+                    }
+                    return count;
+                }
             }
-            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_TEMPORARY_BLOCK_INDEX)) {
-                preparedStatement.executeUpdate();
+        });
+        pool.getLogger().info("Loaded {} chunks with protected blocks.", chunks);
+
+        if (regionStore != null) {
+            try {
+                regionStore.open(regions);
+            } catch (IOException e) {
+                throw new ExecutionException(e);
             }
-            pool.getLogger().info("Created tables and indexes for protectedBlocks!");
+        }
+    }
+
+    /**
+     * Makes sure blocks of the world can be stored, should be called before its chunks are loaded.
+     */
+    public void registerWorld(UUID worldId) throws ExecutionException {
+        pool.executeFuture(connection -> {
+            migration.registerWorld(connection, worldId);
         });
     }
 
+    /**
+     * Holds chunk loads until {@link #warmUp(int)}, should be called before chunks are loaded.
+     */
+    public void startWarmUp() {
+        cache.deferLoads();
+    }
+
+    /**
+     * Loads the chunks retained since {@link #startWarmUp()}, with at most the given number of queries at a time.
+     * Checks on chunks not loaded yet query the database as usual. Blocks until done, so it shouldn't be called on the
+     * main thread.
+     */
+    public void warmUp(int concurrency) throws InterruptedException {
+        long start = System.nanoTime();
+        int areas = cache.loadDeferred(concurrency);
+        pool.getLogger().info("Warmed up protections of {} areas in {} ms", areas,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    public void loadChunk(UUID worldId, int chunkX, int chunkZ) {
+        cache.retainChunk(worldId, chunkX, chunkZ);
+    }
+
+    public void unloadChunk(UUID worldId, int chunkX, int chunkZ) {
+        cache.releaseChunk(worldId, chunkX, chunkZ);
+    }
+
+    public void unloadWorld(UUID worldId) {
+        cache.releaseWorld(worldId);
+    }
+
     public Optional<UUID> getBlockOwnerToRead(Location location) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            return isBlockProtected(connection, location, Configuration.READ_DISTANCE_PROTECTION);
-        });
+        return getBlockOwner(null, BlockPosition.of(location), AttemptType.READ.getDistance(),
+            getDeadline(AttemptType.READ));
     }
 
+    /**
+     * Checks for fire, lava and entities, limited to a few database queries per tick. Over the limit the check fails
+     * as if the database was unavailable.
+     */
     public Optional<UUID> getBlockOwnerToNaturalAction(Location location) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            return isBlockProtected(connection, location, Configuration.NATURAL_DISTANCE_PROTECTION);
-        });
+        BlockPosition position = BlockPosition.of(location);
+        int radius = AttemptType.NATURAL.getDistance();
+        long deadline = getDeadline(AttemptType.NATURAL);
+        // Region files answer almost every check without querying
+        if (!presenceFilter.mayBeProtected(position.worldId(), position.x(), position.z()) ||
+            cache.isCached(position.worldId(), position.x(), position.z(), radius) ||
+            (regionStore != null && regionStore.isComplete())) {
+            return getBlockOwner(null, position, radius, deadline);
+        }
+
+        ProtectionCell section = ProtectionCell.of(position);
+        if (naturalChecks.isUnprotected(section)) {
+            return Optional.empty();
+        }
+        if (!naturalChecks.tryAcquireQuery()) {
+            throw new ExecutionException(new RejectedExecutionException("Natural event query budget exhausted"));
+        }
+
+        long generation = naturalChecks.getGeneration();
+        if (getSectionOwner(null, section, radius, deadline).isEmpty()) {
+            naturalChecks.setUnprotected(section, generation);
+            return Optional.empty();
+        }
+
+        if (!naturalChecks.tryAcquireQuery()) {
+            throw new ExecutionException(new RejectedExecutionException("Natural event query budget exhausted"));
+        }
+        return getBlockOwner(null, position, radius, deadline);
     }
 
     public Optional<UUID> getBlockOwnerToWrite(Location location) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            return isBlockProtected(connection, location, Configuration.WRITE_DISTANCE_PROTECTION);
-        });
+        return getBlockOwner(null, BlockPosition.of(location), AttemptType.WRITE.getDistance(),
+            getDeadline(AttemptType.WRITE));
     }
 
     public Optional<UUID> getBlockOwnerToRead(UUID playerId, Location location) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            if (playerId == null) {
-                return isBlockProtected(connection, location, Configuration.READ_DISTANCE_PROTECTION);
-            }
-            return isBlockProtected(connection, playerId, location, Configuration.READ_DISTANCE_PROTECTION);
-        });
+        return getPlayerBlockOwner(playerId, BlockPosition.of(location), AttemptType.READ);
     }
 
     public Optional<UUID> getBlockOwnerToWrite(UUID playerId, Location location) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            if (playerId == null) {
-                return isBlockProtected(connection, location, Configuration.WRITE_DISTANCE_PROTECTION);
+        return getPlayerBlockOwner(playerId, BlockPosition.of(location), AttemptType.WRITE);
+    }
+
+    /**
+     * Answers a check that failed because the database is unavailable, or busy for natural checks, from the verdict
+     * last known for the section (even if expired, protection only expires with time) or else the configured policy.
+     *
+     * @param playerId null for checks without a player
+     * @return true if the attempt should be allowed
+     */
+    public boolean isAllowedWhileUnavailable(UUID playerId, Location location, AttemptType attemptType) {
+        ProtectionCell section = ProtectionCell.of(BlockPosition.of(location));
+        boolean knownUnprotected;
+        if (playerId == null) {
+            knownUnprotected = attemptType == AttemptType.NATURAL && naturalChecks.wasUnprotected(section);
+        } else {
+            knownUnprotected = Boolean.TRUE.equals(
+                playerDecisions.getLastDecision(playerId, section, attemptType.getDistance(),
+                    playerDatabase.getAllowingPlayers(playerId)));
+        }
+        if (knownUnprotected) {
+            staleVerdicts.incrementAndGet();
+            return true;
+        }
+
+        policyVerdicts.incrementAndGet();
+        return unavailablePolicies.get(attemptType);
+    }
+
+    private long getDeadline(AttemptType attemptType) {
+        return System.nanoTime() + checkDeadlines.get(attemptType);
+    }
+
+    public PlayerDecisions getPlayerDecisions() {
+        return playerDecisions;
+    }
+
+    /**
+     * Reuses the player's decision for the section if there is one.
+     */
+    private Optional<UUID> getPlayerBlockOwner(UUID playerId, BlockPosition position, AttemptType attemptType)
+        throws ExecutionException {
+        int radius = attemptType.getDistance();
+        long deadline = getDeadline(attemptType);
+        if (!presenceFilter.mayBeProtected(position.worldId(), position.x(), position.z()) ||
+            cache.isCached(position.worldId(), position.x(), position.z(), radius)) {
+            return getBlockOwner(playerId, position, radius, deadline);
+        }
+
+        ProtectionCell section = ProtectionCell.of(position);
+        Set<UUID> allowingPlayers = playerDatabase.getAllowingPlayers(playerId);
+        Boolean allowed = playerDecisions.getDecision(playerId, section, radius, allowingPlayers);
+        if (allowed == null) {
+            long generation = playerDecisions.getGeneration();
+            allowed = getSectionOwner(playerId, section, radius, deadline).isEmpty();
+            playerDecisions.setDecision(playerId, section, radius, allowingPlayers, allowed, generation);
+        }
+        if (allowed) {
+            return Optional.empty();
+        }
+        return getBlockOwner(playerId, position, radius, deadline);
+    }
+
+    /**
+     * Checks the whole section and its border so the result holds for every block in it.
+     */
+    private Optional<UUID> getSectionOwner(UUID playerId, ProtectionCell section, int radius, long deadline)
+        throws ExecutionException {
+        int halfSection = ProtectionCell.SIZE / 2;
+        BlockPosition sectionCenter = new BlockPosition(section.worldId(), section.minX() + halfSection,
+            section.minY() + halfSection, section.minZ() + halfSection);
+        return getBlockOwner(playerId, sectionCenter, radius + halfSection, deadline);
+    }
+
+    /**
+     * @param deadline {@link System#nanoTime()} to stop waiting for the database at
+     */
+    private Optional<UUID> getBlockOwner(UUID playerId, BlockPosition position, int radius, long deadline)
+        throws ExecutionException {
+        // Wilderness: nothing was ever placed near here
+        UUID worldId = position.worldId();
+        int x = position.x(), y = position.y(), z = position.z();
+        if (!presenceFilter.mayBeProtected(worldId, x, z)) {
+            return Optional.empty();
+        }
+
+        // Answer from memory if the whole area is loaded
+        Set<UUID> ignoredOwners = getIgnoredOwners(playerId);
+        if (cache.isCached(worldId, x, z, radius)) {
+            return cache.getBlockOwner(worldId, x, y, z, radius, ignoredOwners);
+        }
+
+        // Don't wait for a database that is failing, not even to flush
+        CircuitBreaker.Permit permit = pool.checkAvailable();
+        boolean queried = false;
+        try {
+            // Make sure our own writes are visible to the database query, within the same deadline
+            if (writeQueue.hasPendingWrites(worldId, x - radius, x + radius, y - radius, y + radius, z - radius,
+                z + radius)) {
+                try {
+                    writeQueue.flush(deadline);
+                } catch (TimeoutException e) {
+                    // Not reported to the circuit breaker: the writes are still going on
+                    throw new ExecutionException(e);
+                }
             }
-            return isBlockProtected(connection, playerId, location, Configuration.WRITE_DISTANCE_PROTECTION);
-        });
+
+            if (regionStore != null) {
+                Optional<UUID> owner = regionStore.getBlockOwner(worldId, x, y, z, radius, ignoredOwners);
+                if (owner != null) {
+                    return owner;
+                }
+            }
+
+            DatabasePool.DatabaseCallable<Optional<UUID>> check = connection -> {
+                if (playerId == null) {
+                    return isBlockProtected(connection, position, radius);
+                }
+                return isBlockProtected(connection, ignoredOwners, position, radius);
+            };
+            boolean replicaRead = !isRecentlyWritten(worldId, x - radius, x + radius, z - radius, z + radius);
+            queried = true;
+            return pool.executeCheck(check, replicaRead, permit, deadline);
+        } finally {
+            // Answered or failed without querying: a probe is left for the next check
+            if (!queried) {
+                pool.releaseCheck(permit);
+            }
+        }
+    }
+
+    private boolean isRecentlyWritten(UUID worldId, int minX, int maxX, int minZ, int maxZ) {
+        for (int x = Math.floorDiv(minX, ProtectionCell.SIZE); x <= Math.floorDiv(maxX, ProtectionCell.SIZE); x++) {
+            for (int z = Math.floorDiv(minZ, ProtectionCell.SIZE); z <= Math.floorDiv(maxZ, ProtectionCell.SIZE);
+                 z++) {
+                if (recentWrites.contains(new ProtectionCell(worldId, x, 0, z))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the player itself and players that allowed them
+     */
+    private Set<UUID> getIgnoredOwners(UUID playerId) {
+        if (playerId == null) {
+            return Set.of();
+        }
+        return playerDatabase.getTrustedOwners(playerId);
     }
 
     public void addProtectedBlock(UUID playerId, Location location) throws ExecutionException {
-        pool.executeFuture(connection -> {
-            addProtectedBlock(connection, playerId, location);
-        });
+        long start = System.nanoTime();
+        try {
+            BlockPosition position = BlockPosition.of(location);
+            presenceFilter.addBlock(position.worldId(), position.x(), position.z());
+            synchronized (writeQueue) {
+                writeQueue.add(new PendingWrite(position, playerId));
+                // It won't protect anything until the flush decides if it is permanent
+                cache.addBlock(position.worldId(), new ProtectedBlock(playerId, position.x(), position.y(),
+                    position.z(), System.currentTimeMillis(), true), null);
+            }
+        } finally {
+            addBlockHistogram.recordSince(start);
+        }
     }
 
     public void removeBlock(Location location) throws ExecutionException {
-        pool.executeFuture(connection -> {
-            removeBlock(connection, location);
+        long start = System.nanoTime();
+        try {
+            queueRemoval(BlockPosition.of(location));
+        } finally {
+            removeBlockHistogram.recordSince(start);
+        }
+    }
+
+    /**
+     * @return true if the given number of block changes can be queued now, false when the database is falling behind
+     */
+    public boolean canQueueWrites(int writes) {
+        return writeQueue.hasRoom(writes);
+    }
+
+    /**
+     * Queues the removals together, skipping blocks where there certainly are no protected blocks.
+     */
+    public void removeBlocks(Collection<BlockPosition> positions) throws ExecutionException {
+        long start = System.nanoTime();
+        try {
+            synchronized (writeQueue) {
+                for (BlockPosition position : positions) {
+                    if (presenceFilter.mayBeProtected(position.worldId(), position.x(), position.z())) {
+                        queueRemoval(position);
+                    }
+                }
+            }
+        } finally {
+            removeBlocksHistogram.recordSince(start);
+        }
+    }
+
+    /**
+     * Moves the protection of blocks pushed or pulled by a piston, keeping their owner, date and if they're temporary.
+     * <p>
+     * Where the blocks were and where they go is looked up in the cache at once, so pistons never wait for the
+     * database. Outside cached chunks the blocks lose their protection instead.
+     */
+    public void moveBlocks(List<BlockPosition> positions, int dx, int dy, int dz) throws ExecutionException {
+        long start = System.nanoTime();
+        try {
+            // The moved blocks replace whatever was at their destination
+            Set<BlockPosition> footprint = new LinkedHashSet<>(positions);
+            boolean mayBeProtected = false;
+            for (BlockPosition position : positions) {
+                footprint.add(new BlockPosition(position.worldId(), position.x() + dx, position.y() + dy,
+                    position.z() + dz));
+                mayBeProtected |= presenceFilter.mayBeProtected(position.worldId(), position.x(), position.z());
+            }
+            if (!mayBeProtected) {
+                return;
+            }
+
+            synchronized (writeQueue) {
+                Map<BlockPosition, ProtectedBlock> blocks = cache.getBlocks(footprint);
+                Map<BlockPosition, ProtectedBlock> movedBlocks = new LinkedHashMap<>();
+                for (BlockPosition position : positions) {
+                    ProtectedBlock block = blocks == null ? null : blocks.get(position);
+                    if (block != null) {
+                        movedBlocks.put(new BlockPosition(position.worldId(), position.x() + dx, position.y() + dy,
+                                position.z() + dz),
+                            new ProtectedBlock(block.ownerId(), position.x() + dx, position.y() + dy,
+                                position.z() + dz, block.dateModified(), block.temporary()));
+                    }
+                }
+
+                // Every other position of the footprint is left without a row
+                for (BlockPosition position : footprint) {
+                    if (!movedBlocks.containsKey(position) && (blocks == null || blocks.containsKey(position)) &&
+                        presenceFilter.mayBeProtected(position.worldId(), position.x(), position.z())) {
+                        queueRemoval(position);
+                    }
+                }
+                for (Map.Entry<BlockPosition, ProtectedBlock> entry : movedBlocks.entrySet()) {
+                    BlockPosition position = entry.getKey();
+                    ProtectedBlock block = entry.getValue();
+                    presenceFilter.addBlock(position.worldId(), position.x(), position.z());
+                    writeQueue.add(new PendingWrite(position, block.ownerId(), block));
+                    cache.putBlock(position.worldId(), block);
+                }
+            }
+        } finally {
+            moveBlocksHistogram.recordSince(start);
+        }
+    }
+
+    private void queueRemoval(BlockPosition position) throws ExecutionException {
+        synchronized (writeQueue) {
+            writeQueue.add(new PendingWrite(position, null));
+            cache.removeBlock(position.worldId(), position.x(), position.y(), position.z());
+        }
+    }
+
+    /**
+     * Deletes expired protected blocks in the background, joining the sweep already running.
+     *
+     * @return the number of blocks deleted
+     */
+    public CompletableFuture<Integer> sweepExpiredBlocks() {
+        return expirySweeper.sweep();
+    }
+
+    /**
+     * Drops swept blocks from the cache, so expired temporary blocks are neither counted nor promoted there.
+     */
+    private void removeSweptBlocks(List<BlockPosition> positions, int temporaryDays) {
+        long now = System.currentTimeMillis();
+        long expirationDate = now - TimeUnit.DAYS.toMillis(Configuration.DAYS_PROTECTED);
+        long temporaryExpiration = now - TimeUnit.DAYS.toMillis(temporaryDays);
+        synchronized (writeQueue) {
+            for (BlockPosition position : positions) {
+                cache.removeExpiredBlock(position.worldId(), position.x(), position.y(), position.z(), expirationDate,
+                    temporaryExpiration);
+            }
+        }
+    }
+
+    /**
+     * Writes every queued block change now, waiting for it.
+     */
+    void flushWrites() throws ExecutionException {
+        writeQueue.flush();
+    }
+
+    /**
+     * Writes every queued block change, should be called before the pool is closed.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        expirySweeper.close();
+        writeQueue.drain(timeout, unit);
+        if (regionStore != null) {
+            regionStore.close();
+        }
+        pool.getLogger().info("Player decisions: {} hits, {} misses.", playerDecisions.getHits(),
+            playerDecisions.getMisses());
+    }
+
+    private void writePendingBlocks(List<PendingWrite> writes) throws ExecutionException {
+        long start = System.nanoTime();
+        try {
+            applyPendingBlocks(writes);
+        } finally {
+            flushHistogram.recordSince(start);
+        }
+    }
+
+    private void applyPendingBlocks(List<PendingWrite> writes) throws ExecutionException {
+        Map<PendingWrite, Boolean> addedBlocks = pool.executeFuture(connection -> {
+            return writePendingBlocks(connection, writes);
         });
+
+        // Permanent blocks (and the blocks they promoted) change natural verdicts around them
+        for (Map.Entry<PendingWrite, Boolean> entry : addedBlocks.entrySet()) {
+            if (!entry.getValue()) {
+                BlockPosition position = entry.getKey().position();
+                naturalChecks.invalidate(position, Configuration.BLOCK_COUNT_SEARCH_RADIUS);
+                playerDecisions.invalidate(position,
+                    Configuration.BLOCK_COUNT_SEARCH_RADIUS + Configuration.WRITE_DISTANCE_PROTECTION);
+            }
+        }
+
+        if (regionStore != null) {
+            refreshRegionStore(writes, addedBlocks);
+        }
+
+        long date = System.currentTimeMillis();
+        synchronized (writeQueue) {
+            for (PendingWrite write : writes) {
+                if (writeQueue.isSuperseded(write)) {
+                    continue;
+                }
+
+                // Removals are applied again in case a chunk was loaded into the cache before the commit
+                BlockPosition position = write.position();
+                if (write.isRemoval()) {
+                    cache.removeBlock(position.worldId(), position.x(), position.y(), position.z());
+                    continue;
+                }
+                if (write.isMove()) {
+                    cache.putBlock(position.worldId(), write.movedBlock());
+                    continue;
+                }
+
+                ProtectedBlock block = new ProtectedBlock(write.ownerId(), position.x(), position.y(), position.z(),
+                    date, addedBlocks.get(write));
+                cache.addBlock(position.worldId(), block, getIgnoredOwners(write.ownerId()));
+            }
+        }
     }
 
-    public void removeBlocks(List<Location> locations) throws ExecutionException {
-        pool.executeFuture(connection -> {
-            removeBlocks(connection, locations);
+    /**
+     * Copies committed changes to the region files, before the writes stop being pending.
+     */
+    private void refreshRegionStore(List<PendingWrite> writes, Map<PendingWrite, Boolean> addedBlocks) {
+        // Same cells as written by the flush: promotion may change cells around permanent blocks
+        Set<ProtectionCell> changedCells = new HashSet<>();
+        for (PendingWrite write : writes) {
+            changedCells.add(ProtectionCell.of(write.position()));
+        }
+        for (Map.Entry<PendingWrite, Boolean> entry : addedBlocks.entrySet()) {
+            if (!entry.getValue()) {
+                ProtectionCell.addAround(changedCells, entry.getKey().position(),
+                    Configuration.BLOCK_COUNT_SEARCH_RADIUS);
+            }
+        }
+
+        try {
+            pool.executeFuture(connection -> {
+                regionStore.refresh(connection, changedCells);
+            });
+        } catch (ExecutionException e) {
+            pool.getLogger().warn("Failed to update region files, checking the database there until restart: ", e);
+            regionStore.invalidate(changedCells);
+        }
+    }
+
+    /**
+     * @return added blocks and if they're temporary
+     */
+    private Map<PendingWrite, Boolean> writePendingBlocks(Connection connection, List<PendingWrite> writes)
+        throws Exception {
+        List<BlockPosition> removals = new ArrayList<>();
+        List<PendingWrite> additions = new ArrayList<>();
+        List<PendingWrite> moves = new ArrayList<>();
+        for (PendingWrite write : writes) {
+            if (write.isRemoval()) {
+                removals.add(write.position());
+            } else if (write.isMove()) {
+                moves.add(write);
+            } else {
+                additions.add(write);
+            }
+        }
+
+        // Counted in memory where the area is cached, the other blocks are inserted as temporary and counted after
+        Map<PendingWrite, Boolean> countedBlocks = new HashMap<>();
+        for (PendingWrite addition : additions) {
+            BlockPosition position = addition.position();
+            // The cache has the block itself since it was queued
+            Integer count = cache.countBlocks(position.worldId(), position.x(), position.y(), position.z(),
+                Configuration.BLOCK_COUNT_SEARCH_RADIUS, getIgnoredOwners(addition.ownerId()),
+                Configuration.BLOCK_COUNT_TO_PROTECT + 1);
+            if (count != null) {
+                countedBlocks.put(addition, count - 1 < Configuration.BLOCK_COUNT_TO_PROTECT);
+            }
+        }
+        cachedCounts.addAndGet(countedBlocks.size());
+        queriedCounts.addAndGet(additions.size() - countedBlocks.size());
+
+        return migration.write((readSchema, writeSchemas) -> {
+            try {
+                connection.setAutoCommit(false);
+
+                for (Schema schema : writeSchemas) {
+                    removeBlocks(connection, schema, removals);
+                    insertBlocks(connection, schema, additions, countedBlocks);
+                    insertMovedBlocks(connection, schema, moves);
+                }
+
+                // Moved blocks aren't counted again, they keep their state
+                Map<PendingWrite, Boolean> addedBlocks = new HashMap<>();
+                for (PendingWrite move : moves) {
+                    addedBlocks.put(move, move.movedBlock().temporary());
+                }
+                List<PendingWrite> promotingBlocks = new ArrayList<>();
+                for (PendingWrite addition : additions) {
+                    Boolean temporaryBlock = countedBlocks.get(addition);
+                    if (temporaryBlock == null) {
+                        // The count includes the block itself as it was inserted already
+                        temporaryBlock = countNearbyBlocks(connection, readSchema, addition) - 1 <
+                                         Configuration.BLOCK_COUNT_TO_PROTECT;
+                        if (!temporaryBlock) {
+                            promotingBlocks.add(addition);
+                        }
+                    } else if (!temporaryBlock && hasTemporaryBlocksNearby(addition)) {
+                        promotingBlocks.add(addition);
+                    }
+                    addedBlocks.put(addition, temporaryBlock);
+                }
+                // Promotion may change cells around the block, every other write only its own cell
+                Set<ProtectionCell> changedCells = new HashSet<>();
+                for (PendingWrite write : writes) {
+                    changedCells.add(ProtectionCell.of(write.position()));
+                }
+                for (PendingWrite write : promotingBlocks) {
+                    ProtectionCell.addAround(changedCells, write.position(), Configuration.BLOCK_COUNT_SEARCH_RADIUS);
+                }
+
+                for (Schema schema : writeSchemas) {
+                    promoteNearbyBlocks(connection, schema, promotingBlocks);
+                    schema.refreshCells(connection, changedCells);
+                }
+
+                connection.commit();
+
+                Set<ProtectionCell> writtenColumns = new HashSet<>();
+                for (ProtectionCell cell : changedCells) {
+                    writtenColumns.add(new ProtectionCell(cell.worldId(), cell.x(), 0, cell.z()));
+                }
+                recentWrites.addAll(writtenColumns);
+                return addedBlocks;
+            } catch (Exception e) {
+                // Restoring auto-commit would otherwise commit whatever was written so far
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         });
     }
 
-    private void addProtectedBlock(Connection connection, UUID owner, Location location) throws SQLException {
-        connection.setAutoCommit(false);
+    /**
+     * @return false if the cache shows there is nothing for the block to promote
+     */
+    private boolean hasTemporaryBlocksNearby(PendingWrite write) {
+        BlockPosition position = write.position();
+        Boolean hasTemporaryBlocks = cache.hasTemporaryBlocks(position.worldId(), position.x(), position.y(),
+            position.z(), Configuration.BLOCK_COUNT_SEARCH_RADIUS, getIgnoredOwners(write.ownerId()));
+        return hasTemporaryBlocks == null || hasTemporaryBlocks;
+    }
 
-        boolean temporaryBlock;
-        try (PreparedStatement preparedStatement = connection.prepareStatement(COUNT_NEARBY_BLOCKS)) {
+    private int countNearbyBlocks(Connection connection, Schema schema, PendingWrite write) throws SQLException {
+        Set<UUID> owners = getIgnoredOwners(write.ownerId());
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            formatOwners(schema.getQuery(Schema.Query.COUNT_NEARBY_BLOCKS), owners))) {
 
-            int i = setLocationStatement(location, Configuration.BLOCK_COUNT_SEARCH_RADIUS, preparedStatement, 0);
-            preparedStatement.setString(++i, owner.toString());
-            preparedStatement.setString(++i, owner.toString());
+            int i = setLocationStatement(schema, write.position(), Configuration.BLOCK_COUNT_SEARCH_RADIUS,
+                preparedStatement, 0);
+            setOwnersStatement(schema, owners, preparedStatement, i);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 if (resultSet.next()) {
-                    int blockCount = resultSet.getInt(1);
-                    temporaryBlock = blockCount < Configuration.BLOCK_COUNT_TO_PROTECT;
+                    return resultSet.getInt(1);
                 } else {
                     throw new SQLException("Query should have returned block count.");
                 }
             }
         }
+    }
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(ADD_BLOCK)) {
-            int i = 0;
-
-            preparedStatement.setString(++i, location.getWorld().getUID().toString());
-            preparedStatement.setInt(++i, location.getBlockX());
-            preparedStatement.setInt(++i, location.getBlockY());
-            preparedStatement.setInt(++i, location.getBlockZ());
-            preparedStatement.setBoolean(++i, temporaryBlock);
-            preparedStatement.setString(++i, owner.toString());
-            preparedStatement.setBoolean(++i, temporaryBlock);
-            preparedStatement.setString(++i, owner.toString());
+    /**
+     * Promotes the blocks (including themselves) and temporary blocks near them.
+     */
+    private void promoteNearbyBlocks(Connection connection, Schema schema, List<PendingWrite> writes)
+        throws SQLException {
+        if (writes.isEmpty()) {
+            return;
+        }
 
-            preparedStatement.executeUpdate();
+        // Statements are batched by number of trusted owners as each one has a placeholder
+        Map<Integer, List<PendingWrite>> writesByOwnerCount = new HashMap<>();
+        Map<PendingWrite, Set<UUID>> owners = new HashMap<>();
+        for (PendingWrite write : writes) {
+            Set<UUID> writeOwners = getIgnoredOwners(write.ownerId());
+            owners.put(write, writeOwners);
+            writesByOwnerCount.computeIfAbsent(writeOwners.size(), size -> new ArrayList<>()).add(write);
         }
 
-        if (!temporaryBlock) {
-            try (PreparedStatement preparedStatement = connection.prepareStatement(UPDATE_TEMPORARY_NEARBY_BLOCKS)) {
+        for (List<PendingWrite> batch : writesByOwnerCount.values()) {
+            String query = formatOwners(schema.getQuery(Schema.Query.UPDATE_TEMPORARY_NEARBY_BLOCKS),
+                owners.get(batch.get(0)));
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                for (PendingWrite write : batch) {
+                    int i = setLocationStatement(schema, write.position(), Configuration.BLOCK_COUNT_SEARCH_RADIUS,
+                        preparedStatement, 0);
+                    setOwnersStatement(schema, owners.get(write), preparedStatement, i);
 
-                int i = setLocationStatement(location, Configuration.BLOCK_COUNT_SEARCH_RADIUS, preparedStatement, 0);
-                preparedStatement.setString(++i, owner.toString());
-                preparedStatement.setString(++i, owner.toString());
+                    preparedStatement.addBatch();
+                }
 
-                preparedStatement.executeUpdate();
+                preparedStatement.executeBatch();
             }
         }
+    }
+
+    /**
+     * @param countedBlocks if the blocks counted in memory are temporary, the others are inserted as temporary
+     */
+    private void insertBlocks(Connection connection, Schema schema, List<PendingWrite> writes,
+        Map<PendingWrite, Boolean> countedBlocks) throws SQLException {
+        for (int start = 0; start < writes.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<PendingWrite> rows = writes.subList(start, Math.min(writes.size(), start + MAX_ROWS_PER_STATEMENT));
+            String query = schema.getQuery(Schema.Query.ADD_BLOCKS)
+                                 .formatted(String.join(", ", Collections.nCopies(rows.size(),
+                                     schema.getQuery(Schema.Query.ADD_BLOCKS_ROW))));
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                int i = 0;
+                for (PendingWrite write : rows) {
+                    schema.setWorldId(preparedStatement, ++i, write.position().worldId());
+                    preparedStatement.setInt(++i, write.position().x());
+                    preparedStatement.setInt(++i, write.position().y());
+                    preparedStatement.setInt(++i, write.position().z());
+                    preparedStatement.setBoolean(++i, countedBlocks.getOrDefault(write, true));
+                    schema.setPlayerId(preparedStatement, ++i, write.ownerId());
+                }
 
-        connection.commit();
-        connection.setAutoCommit(true);
+                preparedStatement.executeUpdate();
+            }
+        }
     }
 
-    private void removeBlock(Connection connection, Location location) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(REMOVE_BLOCK)) {
-            int i = 0;
+    private void insertMovedBlocks(Connection connection, Schema schema, List<PendingWrite> writes)
+        throws SQLException {
+        for (int start = 0; start < writes.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<PendingWrite> rows = writes.subList(start, Math.min(writes.size(), start + MAX_ROWS_PER_STATEMENT));
+            String query = schema.getQuery(Schema.Query.MOVE_BLOCKS)
+                                 .formatted(String.join(", ", Collections.nCopies(rows.size(),
+                                     schema.getQuery(Schema.Query.MOVE_BLOCKS_ROW))));
 
-            preparedStatement.setString(++i, location.getWorld().getUID().toString());
-            preparedStatement.setInt(++i, location.getBlockX());
-            preparedStatement.setInt(++i, location.getBlockY());
-            preparedStatement.setInt(++i, location.getBlockZ());
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                int i = 0;
+                for (PendingWrite write : rows) {
+                    schema.setWorldId(preparedStatement, ++i, write.position().worldId());
+                    preparedStatement.setInt(++i, write.position().x());
+                    preparedStatement.setInt(++i, write.position().y());
+                    preparedStatement.setInt(++i, write.position().z());
+                    preparedStatement.setBoolean(++i, write.movedBlock().temporary());
+                    schema.setPlayerId(preparedStatement, ++i, write.ownerId());
+                    preparedStatement.setTimestamp(++i, new Timestamp(write.movedBlock().dateModified()));
+                }
 
-            preparedStatement.executeUpdate();
+                preparedStatement.executeUpdate();
+            }
         }
     }
 
-    private void removeBlocks(Connection connection, List<Location> locations) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(REMOVE_BLOCK)) {
-            for (Location location : locations) {
+    private void removeBlocks(Connection connection, Schema schema, List<BlockPosition> positions)
+        throws SQLException {
+        for (int start = 0; start < positions.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<BlockPosition> rows =
+                positions.subList(start, Math.min(positions.size(), start + MAX_ROWS_PER_STATEMENT));
+            String query = schema.getQuery(Schema.Query.REMOVE_BLOCKS)
+                                 .formatted(String.join(", ", Collections.nCopies(rows.size(),
+                                     schema.getQuery(Schema.Query.REMOVE_BLOCKS_ROW))));
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
                 int i = 0;
+                for (BlockPosition position : rows) {
+                    schema.setWorldId(preparedStatement, ++i, position.worldId());
+                    preparedStatement.setInt(++i, position.x());
+                    preparedStatement.setInt(++i, position.y());
+                    preparedStatement.setInt(++i, position.z());
+                }
 
-                preparedStatement.setString(++i, location.getWorld().getUID().toString());
-                preparedStatement.setInt(++i, location.getBlockX());
-                preparedStatement.setInt(++i, location.getBlockY());
-                preparedStatement.setInt(++i, location.getBlockZ());
-
-                preparedStatement.addBatch();
+                preparedStatement.executeUpdate();
             }
+        }
+    }
 
-            preparedStatement.executeBatch();
+    private List<ProtectedBlock> getAreaBlocks(Connection connection, UUID worldId, int minX, int maxX, int minZ,
+        int maxZ) throws SQLException {
+        Schema schema = migration.getReadSchema();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.SELECT_AREA_BLOCKS))) {
+            int i = 0;
+
+            schema.setWorldId(preparedStatement, ++i, worldId);
+            preparedStatement.setInt(++i, minX);
+            preparedStatement.setInt(++i, maxX);
+            preparedStatement.setInt(++i, minZ);
+            preparedStatement.setInt(++i, maxZ);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                List<ProtectedBlock> blocks = new ArrayList<>();
+                while (resultSet.next()) {
+                    blocks.add(new ProtectedBlock(schema.getPlayerId(resultSet, 1), resultSet.getInt(2),
+                        resultSet.getInt(3), resultSet.getInt(4), resultSet.getTimestamp(5).getTime(),
+                        resultSet.getBoolean(6)));
+                }
+                return blocks;
+            }
         }
     }
 
-    private Optional<UUID> isBlockProtected(Connection connection, Location location, int radius) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(IS_PROTECTED_BY_ANY)) {
+    private Optional<UUID> isBlockProtected(Connection connection, BlockPosition position, int radius)
+        throws SQLException {
+        Schema schema = migration.getReadSchema();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.IS_PROTECTED_BY_ANY))) {
 
-            int i = setLocationStatement(location, radius, preparedStatement, 0);
+            int i = setProtectionStatement(schema, position, radius, preparedStatement, 0);
             preparedStatement.setInt(++i, Configuration.DAYS_PROTECTED);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 if (resultSet.next()) {
-                    return Optional.of(UUID.fromString(resultSet.getString(1)));
+                    return Optional.of(schema.getPlayerId(resultSet, 1));
                 } else {
                     return Optional.empty();
                 }
@@ -298,18 +881,19 @@ public class BlockDatabase {
         }
     }
 
-    private Optional<UUID> isBlockProtected(Connection connection, UUID playerId, Location location, int radius)
-        throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(IS_PROTECTED_BY_OTHER_PLAYER)) {
+    private Optional<UUID> isBlockProtected(Connection connection, Set<UUID> ignoredOwners, BlockPosition position,
+        int radius) throws SQLException {
+        Schema schema = migration.getReadSchema();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            formatOwners(schema.getQuery(Schema.Query.IS_PROTECTED_BY_OTHER_PLAYER), ignoredOwners))) {
 
-            int i = setLocationStatement(location, radius, preparedStatement, 0);
+            int i = setProtectionStatement(schema, position, radius, preparedStatement, 0);
             preparedStatement.setInt(++i, Configuration.DAYS_PROTECTED);
-            preparedStatement.setString(++i, playerId.toString());
-            preparedStatement.setString(++i, playerId.toString());
+            setOwnersStatement(schema, ignoredOwners, preparedStatement, i);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 if (resultSet.next()) {
-                    return Optional.of(UUID.fromString(resultSet.getString(1)));
+                    return Optional.of(schema.getPlayerId(resultSet, 1));
                 } else {
                     return Optional.empty();
                 }
@@ -317,24 +901,37 @@ public class BlockDatabase {
         }
     }
 
-    private static int setLocationStatement(Location location, int radius, PreparedStatement preparedStatement,
-        int index) throws SQLException {
-        int xMinus = location.getBlockX() - radius;
-        int xPlus = location.getBlockX() + radius;
-        int yMinus = location.getBlockY() - radius;
-        int yPlus = location.getBlockY() + radius;
-        int zMinus = location.getBlockZ() - radius;
-        int zPlus = location.getBlockZ() + radius;
-
-
-        preparedStatement.setString(++index, location.getWorld().getUID().toString());
-        preparedStatement.setInt(++index, Math.min(xMinus, xPlus));
-        preparedStatement.setInt(++index, Math.max(xMinus, xPlus));
-        preparedStatement.setInt(++index, Math.min(yMinus, yPlus));
-        preparedStatement.setInt(++index, Math.max(yMinus, yPlus));
-        preparedStatement.setInt(++index, Math.min(zMinus, zPlus));
-        preparedStatement.setInt(++index, Math.max(zMinus, zPlus));
+    private static String formatOwners(String query, Set<UUID> owners) {
+        return query.formatted(String.join(", ", Collections.nCopies(owners.size(), "?")));
+    }
 
+    private static int setOwnersStatement(Schema schema, Set<UUID> owners, PreparedStatement preparedStatement,
+        int index) throws SQLException {
+        for (UUID owner : owners) {
+            schema.setPlayerId(preparedStatement, ++index, owner);
+        }
         return index;
     }
+
+    private static int setProtectionStatement(Schema schema, BlockPosition position, int radius,
+        PreparedStatement preparedStatement, int index) throws SQLException {
+        return schema.setProtectionBox(preparedStatement, index, position.worldId(), position.x() - radius,
+            position.x() + radius, position.y() - radius, position.y() + radius, position.z() - radius,
+            position.z() + radius);
+    }
+
+    private static int setLocationStatement(Schema schema, BlockPosition position, int radius,
+        PreparedStatement preparedStatement, int index) throws SQLException {
+        int xMinus = position.x() - radius;
+        int xPlus = position.x() + radius;
+        int yMinus = position.y() - radius;
+        int yPlus = position.y() + radius;
+        int zMinus = position.z() - radius;
+        int zPlus = position.z() + radius;
+
+        // The schema may plan index ranges covering the box
+        return schema.setBox(preparedStatement, index, position.worldId(), Math.min(xMinus, xPlus),
+            Math.max(xMinus, xPlus), Math.min(yMinus, yPlus), Math.max(yMinus, yPlus), Math.min(zMinus, zPlus),
+            Math.max(zMinus, zPlus));
+    }
 }
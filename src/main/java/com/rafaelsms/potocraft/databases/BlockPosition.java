@@ -0,0 +1,16 @@
+package com.rafaelsms.potocraft.databases;
+
+import org.bukkit.Location;
+
+import java.util.UUID;
+
+/**
+ * Primary key of the protectedBlocks table.
+ */
+public record BlockPosition(UUID worldId, int x, int y, int z) {
+
+    public static BlockPosition of(Location location) {
+        return new BlockPosition(location.getWorld().getUID(), location.getBlockX(), location.getBlockY(),
+            location.getBlockZ());
+    }
+}
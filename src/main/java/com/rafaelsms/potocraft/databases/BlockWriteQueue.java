@@ -0,0 +1,254 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for protectedBlocks.
+ * <p>
+ * Writes are coalesced by position (the latest write wins, so a place followed by a break only deletes) and flushed
+ * together when the batch size is reached or the flush interval elapses.
+ */
+public class BlockWriteQueue {
+
+    private final Map<BlockPosition, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    // Writes not committed yet (pending or being flushed) per chunk of each world
+    private final Map<UUID, Map<Long, Integer>> unwrittenChunks = new HashMap<>();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "PotoCraft write-behind thread"));
+
+    private final BatchWriter writer;
+    private final Logger logger;
+    private final int batchSize;
+    private final int capacity;
+
+    public BlockWriteQueue(Configuration configuration, Logger logger, BatchWriter writer) {
+        this.writer = writer;
+        this.logger = logger;
+        this.batchSize = configuration.getWriteBatchSize();
+        this.capacity = configuration.getWriteQueueCapacity();
+
+        long interval = configuration.getWriteFlushIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void add(PendingWrite write) throws ExecutionException {
+        if (pendingWrites.size() >= capacity && !pendingWrites.containsKey(write.position())) {
+            throw new ExecutionException(new IllegalStateException("Write queue is full, is the database down?"));
+        }
+
+        if (pendingWrites.put(write.position(), write) == null) {
+            countUnwritten(write.position(), 1);
+        }
+        if (pendingWrites.size() == batchSize) {
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * @return true if the given number of new writes fit in the queue now
+     */
+    public synchronized boolean hasRoom(int writes) {
+        return pendingWrites.size() + writes <= capacity;
+    }
+
+    /**
+     * @return true if the write was replaced by a newer one not written yet
+     */
+    public synchronized boolean isSuperseded(PendingWrite write) {
+        PendingWrite pendingWrite = pendingWrites.get(write.position());
+        return pendingWrite != null && pendingWrite != write;
+    }
+
+    /**
+     * @return true if there are writes not yet committed in the chunks of the given area, at any height
+     */
+    public synchronized boolean hasPendingWrites(UUID worldId, int minX, int maxX, int minY, int maxY, int minZ,
+        int maxZ) {
+        Map<Long, Integer> chunks = unwrittenChunks.get(worldId);
+        if (chunks == null) {
+            return false;
+        }
+
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                if (chunks.containsKey(getChunkKey(chunkX, chunkZ))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void countUnwritten(BlockPosition position, int writes) {
+        Map<Long, Integer> chunks = unwrittenChunks.computeIfAbsent(position.worldId(), id -> new HashMap<>());
+        chunks.compute(getChunkKey(position.x() >> 4, position.z() >> 4), (key, count) -> {
+            // Writes discarded by the drain are no longer counted
+            int total = (count == null ? 0 : count) + writes;
+            return total > 0 ? total : null;
+        });
+        if (chunks.isEmpty()) {
+            unwrittenChunks.remove(position.worldId());
+        }
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes every pending write, waiting for the flush in progress if any.
+     */
+    public void flush() throws ExecutionException {
+        flushLock.lock();
+        try {
+            List<PendingWrite> writes;
+            synchronized (this) {
+                writes = new ArrayList<>(pendingWrites.values());
+                pendingWrites.clear();
+            }
+            if (writes.isEmpty()) {
+                return;
+            }
+
+            // The writes stay counted as unwritten until committed
+            try {
+                writer.write(writes);
+            } catch (ExecutionException e) {
+                requeue(writes);
+                throw e;
+            }
+            synchronized (this) {
+                for (PendingWrite write : writes) {
+                    countUnwritten(write.position(), -1);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes every pending write on the write-behind thread, waiting for it only until the deadline. The flush goes on
+     * after the deadline, so the writes are neither lost nor written twice.
+     *
+     * @param deadline {@link System#nanoTime()} to stop waiting at
+     * @throws TimeoutException if the writes weren't committed before the deadline
+     */
+    public void flush(long deadline) throws ExecutionException, TimeoutException {
+        Future<Void> future;
+        try {
+            future = scheduler.submit(() -> {
+                flush();
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // Draining: the write-behind thread is stopped
+            flush();
+            return;
+        }
+
+        try {
+            future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (ExecutionException e) {
+            logger.warn("Failed to flush protected blocks, retrying later: ", e);
+        }
+    }
+
+    private synchronized void requeue(List<PendingWrite> writes) {
+        // Writes made after the failed flush are newer and take priority
+        for (PendingWrite write : writes) {
+            if (pendingWrites.putIfAbsent(write.position(), write) != null) {
+                countUnwritten(write.position(), -1);
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes what is left until the deadline.
+     */
+    public void drain(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        scheduler.shutdown();
+
+        try {
+            if (!scheduler.awaitTermination(timeout, unit)) {
+                scheduler.shutdownNow();
+            }
+            while (System.nanoTime() < deadline) {
+                synchronized (this) {
+                    if (pendingWrites.isEmpty()) {
+                        return;
+                    }
+                }
+                try {
+                    flush();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to flush protected blocks on drain: ", e);
+                    Thread.sleep(100);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (!pendingWrites.isEmpty()) {
+                logger.warn("Discarding {} protected block writes after drain timeout.", pendingWrites.size());
+                pendingWrites.clear();
+                unwrittenChunks.clear();
+            }
+        }
+    }
+
+    /**
+     * A pending write to protectedBlocks.
+     *
+     * @param position   block position
+     * @param ownerId    player that placed the block, null if the block was removed
+     * @param movedBlock row moved here by a piston, written as it is, null if the block was placed
+     */
+    public record PendingWrite(BlockPosition position, UUID ownerId, ProtectedBlock movedBlock) {
+
+        public PendingWrite(BlockPosition position, UUID ownerId) {
+            this(position, ownerId, null);
+        }
+
+        public boolean isRemoval() {
+            return ownerId == null;
+        }
+
+        public boolean isMove() {
+            return movedBlock != null;
+        }
+    }
+
+    public interface BatchWriter {
+        void write(List<PendingWrite> writes) throws ExecutionException;
+    }
+}
@@ -0,0 +1,105 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Compact schema that answers protection checks from protectionCellsV2.
+ * <p>
+ * Cells fully inside the box are read as a few aggregated rows and only blocks in the border, the part of the box
+ * that crosses cells partially, are searched one by one (as six slabs around the inner cells).
+ */
+public class CellSchema extends CompactSchema {
+
+    private static final int SLAB_COUNT = 6;
+
+    private static final String PROTECTION_CANDIDATES = """
+        SELECT playerId, latestDate AS dateModified
+        FROM protectionCellsV2
+        WHERE worldId = ?
+            AND cellX BETWEEN ? AND ?
+            AND cellY BETWEEN ? AND ?
+            AND cellZ BETWEEN ? AND ?
+        %s
+        """.formatted("""
+        UNION ALL
+        SELECT playerId, dateModified
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND (%s)
+            AND temporaryBlock = FALSE
+        """.formatted(MORTON_RANGES).repeat(SLAB_COUNT));
+    private static final String IS_PROTECTED_BY_ANY = """
+        SELECT playerId
+        FROM (%s) AS candidates
+        WHERE dateModified >= current_timestamp() - INTERVAL ? DAY
+        LIMIT 1;
+        """.formatted(PROTECTION_CANDIDATES);
+    private static final String IS_PROTECTED_BY_OTHER_PLAYER = """
+        SELECT playerId
+        FROM (%s) AS candidates
+        WHERE dateModified >= current_timestamp() - INTERVAL ? DAY
+            AND playerId NOT IN (%%s)
+        LIMIT 1;
+        """.formatted(PROTECTION_CANDIDATES);
+
+    public CellSchema(CompactSchema schema) {
+        super(schema);
+    }
+
+    @Override
+    public String getQuery(Query query) {
+        return switch (query) {
+            case IS_PROTECTED_BY_ANY -> IS_PROTECTED_BY_ANY;
+            case IS_PROTECTED_BY_OTHER_PLAYER -> IS_PROTECTED_BY_OTHER_PLAYER;
+            default -> super.getQuery(query);
+        };
+    }
+
+    @Override
+    public int setProtectionBox(PreparedStatement preparedStatement, int index, UUID worldId, int minX, int maxX,
+        int minY, int maxY, int minZ, int maxZ) throws SQLException {
+        // Cells fully inside the box
+        int minCellX = Math.floorDiv(minX + ProtectionCell.SIZE - 1, ProtectionCell.SIZE);
+        int maxCellX = Math.floorDiv(maxX + 1, ProtectionCell.SIZE) - 1;
+        int minCellY = Math.floorDiv(minY + ProtectionCell.SIZE - 1, ProtectionCell.SIZE);
+        int maxCellY = Math.floorDiv(maxY + 1, ProtectionCell.SIZE) - 1;
+        int minCellZ = Math.floorDiv(minZ + ProtectionCell.SIZE - 1, ProtectionCell.SIZE);
+        int maxCellZ = Math.floorDiv(maxZ + 1, ProtectionCell.SIZE) - 1;
+        boolean hasInnerCells = minCellX <= maxCellX && minCellY <= maxCellY && minCellZ <= maxCellZ;
+
+        setWorldId(preparedStatement, ++index, worldId);
+        preparedStatement.setInt(++index, minCellX);
+        preparedStatement.setInt(++index, maxCellX);
+        preparedStatement.setInt(++index, minCellY);
+        preparedStatement.setInt(++index, maxCellY);
+        preparedStatement.setInt(++index, minCellZ);
+        preparedStatement.setInt(++index, maxCellZ);
+
+        if (!hasInnerCells) {
+            // Everything is border: the first slab is the whole box, the others are empty
+            index = setBox(preparedStatement, index, worldId, minX, maxX, minY, maxY, minZ, maxZ);
+            for (int i = 1; i < SLAB_COUNT; i++) {
+                index = setBox(preparedStatement, index, worldId, 0, -1, 0, -1, 0, -1);
+            }
+            return index;
+        }
+
+        int innerMinX = minCellX * ProtectionCell.SIZE, innerMaxX = (maxCellX + 1) * ProtectionCell.SIZE - 1;
+        int innerMinY = minCellY * ProtectionCell.SIZE, innerMaxY = (maxCellY + 1) * ProtectionCell.SIZE - 1;
+        int innerMinZ = minCellZ * ProtectionCell.SIZE, innerMaxZ = (maxCellZ + 1) * ProtectionCell.SIZE - 1;
+        index = setBox(preparedStatement, index, worldId, minX, innerMinX - 1, minY, maxY, minZ, maxZ);
+        index = setBox(preparedStatement, index, worldId, innerMaxX + 1, maxX, minY, maxY, minZ, maxZ);
+        index = setBox(preparedStatement, index, worldId, innerMinX, innerMaxX, minY, innerMinY - 1, minZ, maxZ);
+        index = setBox(preparedStatement, index, worldId, innerMinX, innerMaxX, innerMaxY + 1, maxY, minZ, maxZ);
+        index = setBox(preparedStatement, index, worldId, innerMinX, innerMaxX, innerMinY, innerMaxY, minZ,
+            innerMinZ - 1);
+        index = setBox(preparedStatement, index, worldId, innerMinX, innerMaxX, innerMinY, innerMaxY, innerMaxZ + 1,
+            maxZ);
+        return index;
+    }
+}
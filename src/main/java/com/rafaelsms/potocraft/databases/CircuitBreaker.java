@@ -0,0 +1,117 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.metrics.Metrics;
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops waiting for the database after consecutive failures, so checks fail right away instead of holding the main
+ * thread. Once open for a while, a single check is let through as a probe: only its success closes it again, its
+ * failure keeps it open. A probe that never reaches the database is released, so the next check probes instead.
+ * <p>
+ * Only checks report their results, and only the ones seen before their deadline: a check that misses it counts as a
+ * failure whenever its query finishes. Background writes and loads are neither refused nor counted.
+ */
+public class CircuitBreaker {
+
+    private final Logger logger;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicLong trips = new AtomicLong();
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    // When it opened or the last probe was let through
+    private long openedAt = 0;
+
+    public CircuitBreaker(int failureThreshold, int openMillis, Metrics metrics, Logger logger) {
+        this.logger = logger;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        metrics.addGauge("breaker state", () -> getState().ordinal());
+        metrics.addGauge("breaker trips", trips::get);
+    }
+
+    /**
+     * @return how the check may use the database, given back with its result
+     */
+    public synchronized Permit tryAcquire() {
+        if (state == State.CLOSED) {
+            return Permit.CHECK;
+        }
+
+        // Let a probe through after the open time, and again if the previous one never reported
+        long now = System.nanoTime();
+        if (now - openedAt < openNanos) {
+            return Permit.REFUSED;
+        }
+        openedAt = now;
+        if (state != State.HALF_OPEN) {
+            setState(State.HALF_OPEN, "trying the database again");
+        }
+        return Permit.PROBE;
+    }
+
+    /**
+     * Gives back a permit whose check ended without a result to report, such as checks answered without querying.
+     */
+    public synchronized void release(Permit permit) {
+        if (state == State.HALF_OPEN && permit == Permit.PROBE) {
+            // The next check probes right away instead of after another open time
+            openedAt = System.nanoTime() - openNanos;
+        }
+    }
+
+    public synchronized void recordSuccess(Permit permit) {
+        if (state == State.CLOSED) {
+            failures = 0;
+        } else if (state == State.HALF_OPEN && permit == Permit.PROBE) {
+            failures = 0;
+            setState(State.CLOSED, "the database answered in time");
+        }
+    }
+
+    public synchronized void recordFailure(Permit permit) {
+        if (state == State.CLOSED) {
+            failures++;
+            if (failures >= failureThreshold) {
+                open("%d consecutive failures".formatted(failures));
+            }
+        } else if (state == State.HALF_OPEN && permit == Permit.PROBE) {
+            open("the probe failed");
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open(String reason) {
+        openedAt = System.nanoTime();
+        trips.incrementAndGet();
+        setState(State.OPEN, reason);
+    }
+
+    private void setState(State newState, String reason) {
+        if (newState == State.CLOSED) {
+            logger.info("Database circuit breaker {} -> {}: {}", state, newState, reason);
+        } else {
+            logger.warn("Database circuit breaker {} -> {}: {}", state, newState, reason);
+        }
+        state = newState;
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public enum Permit {
+        REFUSED,
+        CHECK,
+        PROBE
+    }
+}
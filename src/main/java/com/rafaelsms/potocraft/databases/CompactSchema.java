@@ -0,0 +1,410 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Second schema: players are stored as BINARY(16) and worlds as small integers from a dictionary table, so the
+ * primary key of protectedBlocksV2 takes 12 bytes instead of 48. Box queries also use the Morton key index, so they
+ * only read index pages near the box instead of the whole x slab.
+ */
+public class CompactSchema extends Schema {
+
+    private static final String CREATE_WORLDS_TABLE = """
+        create table if not exists protectionWorlds
+        (
+            id        smallint unsigned auto_increment not null,
+            worldUuid binary(16)                       not null,
+            primary key (id),
+            unique key protectionWorlds__worldUuid (worldUuid)
+        );
+        """;
+    private static final String CREATE_BLOCKS_TABLE = """
+        create table if not exists protectedBlocksV2
+        (
+            worldId        smallint unsigned                      not null,
+            x              int                                    not null,
+            y              smallint                               not null,
+            z              int                                    not null,
+            playerId       binary(16)                             not null,
+            dateModified   timestamp  default current_timestamp() not null on update current_timestamp(),
+            temporaryBlock tinyint(1) default 1                   not null,
+            mortonKey      bigint as (%s) stored,
+            primary key (worldId, x, z, y)
+        );
+        """.formatted(MortonKey.getSqlExpression());
+    // Tables created before the Morton key was added
+    private static final String ADD_MORTON_KEY_COLUMN = """
+        alter table protectedBlocksV2
+            add column if not exists mortonKey bigint as (%s) stored;
+        """.formatted(MortonKey.getSqlExpression());
+    private static final String CREATE_MORTON_KEY_INDEX = """
+        create index if not exists protectedBlocksV2__mortonKey
+            on protectedBlocksV2 (worldId, mortonKey);
+        """;
+    private static final String CREATE_DATE_MODIFIED_INDEX = """
+        create index if not exists protectedBlocksV2__dateModified
+            on protectedBlocksV2 (dateModified);
+        """;
+    private static final String CREATE_PLAYER_ID_INDEX = """
+        create index if not exists protectedBlocksV2__playerId
+            on protectedBlocksV2 (playerId);
+        """;
+    private static final String CREATE_CELLS_TABLE = """
+        create table if not exists protectionCellsV2
+        (
+            worldId    smallint unsigned                     not null,
+            cellX      int                                   not null,
+            cellY      smallint                              not null,
+            cellZ      int                                   not null,
+            playerId   binary(16)                            not null,
+            blockCount int                                   not null,
+            latestDate timestamp default current_timestamp() not null,
+            primary key (worldId, cellX, cellZ, cellY, playerId)
+        );
+        """;
+    private static final String CREATE_ALLOWED_PLAYERS_TABLE = """
+        create table if not exists allowedPlayersV2
+        (
+            playerId        binary(16)                            not null,
+            allowedPlayerId binary(16)                            not null,
+            allowedDate     timestamp default current_timestamp() not null on update current_timestamp(),
+            primary key (playerId, allowedPlayerId)
+        );
+        """;
+    private static final String CREATE_ALLOWED_PLAYER_ID_INDEX = """
+        create index if not exists allowedPlayersV2__allowedPlayerId
+            on allowedPlayersV2 (allowedPlayerId);
+        """;
+
+    private static final String ADD_WORLD = """
+        INSERT IGNORE INTO protectionWorlds(worldUuid)
+        VALUES (?);
+        """;
+    private static final String SELECT_WORLD = """
+        SELECT id
+        FROM protectionWorlds
+        WHERE worldUuid = ?;
+        """;
+
+    // Boxes are also searched by the Morton key ranges covering them
+    protected static final String MORTON_RANGES =
+        String.join(" OR ", Collections.nCopies(MortonKey.RANGE_COUNT, "mortonKey BETWEEN ? AND ?"));
+
+    private static final String IS_PROTECTED_BY_ANY = """
+        SELECT playerId
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND (%s)
+            AND dateModified >= current_timestamp() - INTERVAL ? DAY
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """.formatted(MORTON_RANGES);
+    private static final String IS_PROTECTED_BY_OTHER_PLAYER = """
+        SELECT playerId
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND (%s)
+            AND dateModified >= current_timestamp() - INTERVAL ? DAY
+            AND playerId NOT IN (%%s)
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """.formatted(MORTON_RANGES);
+    private static final String COUNT_NEARBY_BLOCKS = """
+        SELECT COUNT(*)
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND (%s)
+            AND playerId IN (%%s)
+        """.formatted(MORTON_RANGES);
+    private static final String ADD_BLOCKS = """
+        INSERT INTO protectedBlocksV2(worldId, x, y, z, temporaryBlock, playerId)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId);
+        """;
+    private static final String ADD_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?)";
+    // The date is set explicitly, so it isn't updated to the current one
+    private static final String MOVE_BLOCKS = """
+        INSERT INTO protectedBlocksV2(worldId, x, y, z, temporaryBlock, playerId, dateModified)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId),
+            dateModified = VALUES(dateModified);
+        """;
+    private static final String MOVE_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TEMPORARY_NEARBY_BLOCKS = """
+        UPDATE protectedBlocksV2
+        SET temporaryBlock = FALSE
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND (%s)
+            AND playerId IN (%%s)
+            AND temporaryBlock = TRUE
+        """.formatted(MORTON_RANGES);
+    private static final String SELECT_AREA_BLOCKS = """
+        SELECT playerId, x, y, z, dateModified, temporaryBlock
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+        """;
+    private static final String SELECT_BLOCK_CHUNKS = """
+        SELECT protectionWorlds.worldUuid, chunks.chunkX, chunks.chunkZ
+        FROM (
+            SELECT DISTINCT worldId, FLOOR(x / 16) AS chunkX, FLOOR(z / 16) AS chunkZ
+            FROM protectedBlocksV2
+        ) AS chunks
+            JOIN protectionWorlds ON protectionWorlds.id = chunks.worldId;
+        """;
+    private static final String REMOVE_BLOCKS = """
+        DELETE IGNORE FROM protectedBlocksV2
+        WHERE (worldId, x, y, z) IN (%s);
+        """;
+    private static final String REMOVE_BLOCKS_ROW = "(?, ?, ?, ?)";
+    // Keyset pagination on the protectedBlocksV2__dateModified index, which ends with the primary key
+    private static final String SELECT_EXPIRED_BLOCKS = """
+        SELECT dateModified, worldId, x, y, z, temporaryBlock, (SELECT worldUuid FROM protectionWorlds WHERE id = worldId)
+        FROM protectedBlocksV2
+        WHERE dateModified < current_timestamp() - INTERVAL ? DAY
+            AND (temporaryBlock = FALSE OR dateModified < current_timestamp() - INTERVAL ? DAY)
+            AND dateModified >= ?
+            AND (dateModified > ? OR (worldId, x, z, y) > (?, ?, ?, ?))
+        ORDER BY dateModified, worldId, x, z, y
+        LIMIT ?;
+        """;
+    // Blocks placed again since they were selected are kept
+    private static final String REMOVE_EXPIRED_BLOCKS = """
+        DELETE FROM protectedBlocksV2
+        WHERE (worldId, x, y, z) IN (%s)
+            AND dateModified < current_timestamp() - INTERVAL ? DAY
+            AND (temporaryBlock = FALSE OR dateModified < current_timestamp() - INTERVAL ? DAY);
+        """;
+
+    private static final String DELETE_CELL = """
+        DELETE FROM protectionCellsV2
+        WHERE worldId = ? AND cellX = ? AND cellZ = ? AND cellY = ?;
+        """;
+    // Only permanent blocks are counted, only they protect
+    private static final String INSERT_CELL = """
+        INSERT INTO protectionCellsV2(worldId, cellX, cellZ, cellY, playerId, blockCount, latestDate)
+        SELECT worldId, ?, ?, ?, playerId, COUNT(*), MAX(dateModified)
+        FROM protectedBlocksV2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND temporaryBlock = FALSE
+        GROUP BY worldId, playerId;
+        """;
+
+    private static final String CHECK_PLAYER_ALLOWED_BY_PLAYER = """
+        SELECT EXISTS(
+            SELECT playerId, allowedPlayerId
+            FROM allowedPlayersV2
+            WHERE playerId = ? AND allowedPlayerId = ?
+        ) AS isPlayerAllowed;
+        """;
+    private static final String CHECK_PLAYERS_ALLOWED_BY_PLAYER = """
+        SELECT allowedPlayerId
+        FROM allowedPlayersV2
+        WHERE playerId = ?;
+        """;
+    private static final String SELECT_ALLOWED_PLAYERS = """
+        SELECT playerId, allowedPlayerId
+        FROM allowedPlayersV2;
+        """;
+    // Rows may have been copied already by the migration while both schemas are written
+    private static final String ADD_ALLOWED_PLAYER = """
+        INSERT IGNORE INTO allowedPlayersV2(playerId, allowedPlayerId)
+        VALUES (?, ?);
+        """;
+    private static final String REMOVE_ALLOWED_PLAYER = """
+        DELETE FROM allowedPlayersV2
+        WHERE playerId = ? AND allowedPlayerId = ?;
+        """;
+    private static final String REMOVE_ALLOWED_PLAYERS = """
+        DELETE FROM allowedPlayersV2
+        WHERE playerId = ?;
+        """;
+
+    private final Map<UUID, Integer> worldIds;
+
+    public CompactSchema() {
+        this.worldIds = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a schema on the same tables, sharing the world dictionary.
+     */
+    protected CompactSchema(CompactSchema schema) {
+        this.worldIds = schema.worldIds;
+    }
+
+    @Override
+    public List<String> getCreateStatements() {
+        return List.of(CREATE_WORLDS_TABLE, CREATE_BLOCKS_TABLE, ADD_MORTON_KEY_COLUMN, CREATE_MORTON_KEY_INDEX,
+            CREATE_DATE_MODIFIED_INDEX, CREATE_PLAYER_ID_INDEX, CREATE_CELLS_TABLE, CREATE_ALLOWED_PLAYERS_TABLE,
+            CREATE_ALLOWED_PLAYER_ID_INDEX);
+    }
+
+    @Override
+    public String getQuery(Query query) {
+        return switch (query) {
+            case IS_PROTECTED_BY_ANY -> IS_PROTECTED_BY_ANY;
+            case IS_PROTECTED_BY_OTHER_PLAYER -> IS_PROTECTED_BY_OTHER_PLAYER;
+            case COUNT_NEARBY_BLOCKS -> COUNT_NEARBY_BLOCKS;
+            case ADD_BLOCKS -> ADD_BLOCKS;
+            case ADD_BLOCKS_ROW -> ADD_BLOCKS_ROW;
+            case MOVE_BLOCKS -> MOVE_BLOCKS;
+            case MOVE_BLOCKS_ROW -> MOVE_BLOCKS_ROW;
+            case UPDATE_TEMPORARY_NEARBY_BLOCKS -> UPDATE_TEMPORARY_NEARBY_BLOCKS;
+            case SELECT_AREA_BLOCKS -> SELECT_AREA_BLOCKS;
+            case SELECT_BLOCK_CHUNKS -> SELECT_BLOCK_CHUNKS;
+            case REMOVE_BLOCKS -> REMOVE_BLOCKS;
+            case REMOVE_BLOCKS_ROW -> REMOVE_BLOCKS_ROW;
+            case SELECT_EXPIRED_BLOCKS -> SELECT_EXPIRED_BLOCKS;
+            case REMOVE_EXPIRED_BLOCKS -> REMOVE_EXPIRED_BLOCKS;
+            case CHECK_PLAYER_ALLOWED_BY_PLAYER -> CHECK_PLAYER_ALLOWED_BY_PLAYER;
+            case CHECK_PLAYERS_ALLOWED_BY_PLAYER -> CHECK_PLAYERS_ALLOWED_BY_PLAYER;
+            case SELECT_ALLOWED_PLAYERS -> SELECT_ALLOWED_PLAYERS;
+            case ADD_ALLOWED_PLAYER -> ADD_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYER -> REMOVE_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYERS -> REMOVE_ALLOWED_PLAYERS;
+        };
+    }
+
+    /**
+     * Should be done in auto-commit mode: a rolled back world id would be kept in memory.
+     */
+    @Override
+    public void registerWorld(Connection connection, UUID worldId) throws SQLException {
+        if (worldIds.containsKey(worldId)) {
+            return;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(ADD_WORLD)) {
+            preparedStatement.setBytes(1, toBytes(worldId));
+            preparedStatement.executeUpdate();
+        }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_WORLD)) {
+            preparedStatement.setBytes(1, toBytes(worldId));
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new SQLException("Query should have returned world id.");
+                }
+                worldIds.put(worldId, resultSet.getInt(1));
+            }
+        }
+    }
+
+    @Override
+    public void setWorldId(PreparedStatement preparedStatement, int index, UUID worldId) throws SQLException {
+        Integer id = worldIds.get(worldId);
+        if (id == null) {
+            throw new SQLException("World %s was not registered.".formatted(worldId));
+        }
+        preparedStatement.setInt(index, id);
+    }
+
+    @Override
+    public int setBox(PreparedStatement preparedStatement, int index, UUID worldId, int minX, int maxX, int minY,
+        int maxY, int minZ, int maxZ) throws SQLException {
+        index = super.setBox(preparedStatement, index, worldId, minX, maxX, minY, maxY, minZ, maxZ);
+        for (long key : MortonKey.getRanges(minX, maxX, minY, maxY, minZ, maxZ)) {
+            preparedStatement.setLong(++index, key);
+        }
+        return index;
+    }
+
+    @Override
+    public int setExpiredPosition(PreparedStatement preparedStatement, int index, Object worldId, int x, int y, int z)
+        throws SQLException {
+        preparedStatement.setObject(++index, worldId);
+        preparedStatement.setInt(++index, x);
+        preparedStatement.setInt(++index, z);
+        preparedStatement.setInt(++index, y);
+        return index;
+    }
+
+    @Override
+    public void refreshCells(Connection connection, Collection<ProtectionCell> cells) throws SQLException {
+        if (cells.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(DELETE_CELL)) {
+            for (ProtectionCell cell : cells) {
+                setWorldId(preparedStatement, 1, cell.worldId());
+                preparedStatement.setInt(2, cell.x());
+                preparedStatement.setInt(3, cell.z());
+                preparedStatement.setInt(4, cell.y());
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(INSERT_CELL)) {
+            for (ProtectionCell cell : cells) {
+                int i = 0;
+                preparedStatement.setInt(++i, cell.x());
+                preparedStatement.setInt(++i, cell.z());
+                preparedStatement.setInt(++i, cell.y());
+                setWorldId(preparedStatement, ++i, cell.worldId());
+                preparedStatement.setInt(++i, cell.minX());
+                preparedStatement.setInt(++i, cell.minX() + ProtectionCell.SIZE - 1);
+                preparedStatement.setInt(++i, cell.minZ());
+                preparedStatement.setInt(++i, cell.minZ() + ProtectionCell.SIZE - 1);
+                preparedStatement.setInt(++i, cell.minY());
+                preparedStatement.setInt(++i, cell.minY() + ProtectionCell.SIZE - 1);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+    }
+
+    @Override
+    public void setPlayerId(PreparedStatement preparedStatement, int index, UUID playerId) throws SQLException {
+        preparedStatement.setBytes(index, toBytes(playerId));
+    }
+
+    @Override
+    public UUID getPlayerId(ResultSet resultSet, int column) throws SQLException {
+        return fromBytes(resultSet.getBytes(column));
+    }
+
+    @Override
+    public UUID getWorldUuid(ResultSet resultSet, int column) throws SQLException {
+        return fromBytes(resultSet.getBytes(column));
+    }
+
+    private static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                         .putLong(uuid.getMostSignificantBits())
+                         .putLong(uuid.getLeastSignificantBits())
+                         .array();
+    }
+
+    private static UUID fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
@@ -1,34 +1,76 @@
 package com.rafaelsms.potocraft.databases;
 
 import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.metrics.LatencyHistogram;
+import com.rafaelsms.potocraft.metrics.Metrics;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.slf4j.Logger;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
+/**
+ * Runs database tasks on a connection of the pool, either on a fixed pool of platform threads or on a virtual thread
+ * per task (sql.virtualThreads, Java 21 or later). Virtual threads wait for a permit instead of a queue, so no more
+ * tasks than connections run at a time.
+ * <p>
+ * Reads that can lag behind our writes may go to read replicas (sql.replicas), picking the better of two random
+ * replicas by latency and running reads. Reads failing on a replica are retried on the primary, which is used for
+ * everything else.
+ * <p>
+ * Checks wait for their task until a deadline and are refused while the {@link CircuitBreaker} is open, the other
+ * tasks wait as long as needed.
+ */
 public class DatabasePool implements Closeable {
 
+    private static final long REPLICA_CONNECTION_TIMEOUT_MILLIS = 1000;
+
+    private final StorageBackend backend;
     private final HikariDataSource dataSource;
+    private final List<ReadReplica> replicas = new ArrayList<>();
     private final ExecutorService executor;
+    // Limits virtual threads to the pool size, null for the fixed pool
+    private final Semaphore permits;
+    private final CircuitBreaker breaker;
+    private final Metrics metrics;
+    private final LatencyHistogram waitHistogram;
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong replicaFailures = new AtomicLong();
     private final Logger logger;
 
-    private static int thread = 0;
-    private static final ThreadFactory factory =
-        r -> new Thread(r, "PotoCraft HikariCP Worker thread %d".formatted(thread++));
+    private final AtomicInteger thread = new AtomicInteger();
+    private final ThreadFactory factory =
+        r -> new Thread(r, "PotoCraft HikariCP Worker thread %d".formatted(thread.getAndIncrement()));
 
-    public DatabasePool(Configuration configuration, Logger logger) {
+    public DatabasePool(Configuration configuration, Metrics metrics, Logger logger) {
+        this.metrics = metrics;
         this.logger = logger;
+        this.backend = configuration.getStorageBackend();
+        this.breaker = new CircuitBreaker(configuration.getSQLBreakerFailures(), configuration.getSQLBreakerOpenMillis(),
+            metrics, logger);
 
         HikariConfig hikariConfig = new HikariConfig();
         hikariConfig.setDriverClassName(configuration.getSQLDriverClassName());
@@ -38,7 +80,77 @@ public class DatabasePool implements Closeable {
         hikariConfig.setMaximumPoolSize(configuration.getSQLPoolSize());
 
         this.dataSource = new HikariDataSource(hikariConfig);
-        this.executor = Executors.newFixedThreadPool(hikariConfig.getMaximumPoolSize(), factory);
+        int poolSize = hikariConfig.getMaximumPoolSize();
+
+        List<String> replicaUrls = configuration.getSQLReplicaJdbcUrls();
+        if (backend == StorageBackend.EMBEDDED && !replicaUrls.isEmpty()) {
+            logger.warn("Read replicas need the mariadb backend, reading from the embedded database only");
+        } else {
+            for (String replicaUrl : replicaUrls) {
+                HikariConfig replicaConfig = new HikariConfig();
+                replicaConfig.setDriverClassName(configuration.getSQLDriverClassName());
+                replicaConfig.setJdbcUrl(replicaUrl);
+                replicaConfig.setUsername(configuration.getSQLUser());
+                replicaConfig.setPassword(configuration.getSQLPassword());
+                replicaConfig.setMaximumPoolSize(configuration.getSQLReplicaPoolSize());
+                replicaConfig.setReadOnly(true);
+                // A replica that is down shouldn't hold reads or the start, they go to the primary instead
+                replicaConfig.setConnectionTimeout(REPLICA_CONNECTION_TIMEOUT_MILLIS);
+                replicaConfig.setInitializationFailTimeout(-1);
+                replicaConfig.setPoolName("PotoCraft replica %d".formatted(replicas.size()));
+
+                ReadReplica replica = new ReadReplica(replicaUrl, new HikariDataSource(replicaConfig));
+                metrics.addGauge("replica %d latency micros".formatted(replicas.size()), replica::getLatencyMicros);
+                replicas.add(replica);
+                poolSize += replicaConfig.getMaximumPoolSize();
+            }
+        }
+        ExecutorService virtualExecutor = configuration.isSQLVirtualThreads() ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.permits = new Semaphore(poolSize, true);
+        } else {
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+            this.permits = null;
+        }
+
+        this.waitHistogram = metrics.getHistogram("database wait");
+        metrics.addGauge("executor queue", this::getQueuedTasks);
+        metrics.addGauge("replica reads", replicaReads::get);
+        metrics.addGauge("replica failures", replicaFailures::get);
+        metrics.addGauge("connections active", () -> getPoolGauge(HikariPoolMXBean::getActiveConnections));
+        metrics.addGauge("connections idle", () -> getPoolGauge(HikariPoolMXBean::getIdleConnections));
+        metrics.addGauge("threads awaiting connection", () -> getPoolGauge(HikariPoolMXBean::getThreadsAwaitingConnection));
+    }
+
+    private ExecutorService newVirtualThreadExecutor() {
+        // The plugin is built for Java 17, virtual threads are used when the server runs on a newer version
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 or later, using a fixed thread pool instead");
+            return null;
+        }
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @return database tasks waiting for a thread or connection
+     */
+    public int getQueuedTasks() {
+        if (permits != null) {
+            return permits.getQueueLength();
+        }
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    private int getPoolGauge(ToIntFunction<HikariPoolMXBean> gauge) {
+        HikariPoolMXBean poolBean = dataSource.getHikariPoolMXBean();
+        return poolBean == null ? 0 : gauge.applyAsInt(poolBean);
     }
 
     @Override
@@ -52,6 +164,9 @@ public class DatabasePool implements Closeable {
             }
             getLogger().info("Shutting down database pool...");
             this.dataSource.close();
+            for (ReadReplica replica : replicas) {
+                replica.close();
+            }
             getLogger().info("Database pool shutdown.");
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -66,34 +181,202 @@ public class DatabasePool implements Closeable {
         handleFuture(execute(runnable));
     }
 
-    public Future<Void> execute(DatabaseRunnable runnable) {
+    public <T> T executeReadFuture(DatabaseCallable<T> callable) throws ExecutionException {
+        return handleFuture(executeRead(callable));
+    }
+
+    public CompletableFuture<Void> execute(DatabaseRunnable runnable) {
         return execute(connection -> {
             runnable.run(connection);
             return null;
         });
     }
 
-    public <T> Future<T> execute(DatabaseCallable<T> callable) {
-        return executor.submit(() -> {
-            try (Connection connection = dataSource.getConnection()) {
-                return callable.call(connection);
-            } catch (SQLException exception) {
-                logger.warn("Failed to execute query: ", exception);
-                throw exception;
+    /**
+     * Runs the task on a database thread. The future completes on that thread, so work that touches the server
+     * should continue on the main thread (see {@link com.rafaelsms.potocraft.PotoCraftPlugin#getMainThreadExecutor()}).
+     */
+    public <T> CompletableFuture<T> execute(DatabaseCallable<T> callable) {
+        return submit(callable, false);
+    }
+
+    /**
+     * Runs the task on a read replica if there is one, so it may not see the latest writes: reads of what was just
+     * written should use {@link #execute(DatabaseCallable)}. The task may run again on the primary if the replica
+     * fails.
+     */
+    public <T> CompletableFuture<T> executeRead(DatabaseCallable<T> callable) {
+        return submit(callable, !replicas.isEmpty());
+    }
+
+    private <T> CompletableFuture<T> submit(DatabaseCallable<T> callable, boolean replicaRead) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                if (permits != null) {
+                    permits.acquire();
+                }
+            } catch (InterruptedException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            try {
+                if (!replicaRead || !runOnReplica(callable, future)) {
+                    runOnPrimary(callable, future);
+                }
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
             }
         });
+        return future;
+    }
+
+    private <T> void runOnPrimary(DatabaseCallable<T> callable, CompletableFuture<T> future) {
+        try (Connection connection = dataSource.getConnection()) {
+            future.complete(callable.call(connection));
+        } catch (SQLException exception) {
+            logger.warn("Failed to execute query: ", exception);
+            future.completeExceptionally(exception);
+        } catch (Throwable throwable) {
+            future.completeExceptionally(throwable);
+        }
+    }
+
+    /**
+     * @return false if the task should run on the primary instead
+     */
+    private <T> boolean runOnReplica(DatabaseCallable<T> callable, CompletableFuture<T> future) {
+        ReadReplica replica = chooseReplica();
+        if (replica == null) {
+            return false;
+        }
+
+        long start = replica.startRead();
+        try (Connection connection = replica.getConnection()) {
+            T result = callable.call(connection);
+            replica.finishRead(start);
+            replicaReads.incrementAndGet();
+            future.complete(result);
+        } catch (SQLException exception) {
+            replica.failRead();
+            replicaFailures.incrementAndGet();
+            logger.warn("Failed to read from replica {}, reading from the primary: ", replica.getName(), exception);
+            return false;
+        } catch (Throwable throwable) {
+            replica.finishRead(start);
+            future.completeExceptionally(throwable);
+        }
+        return true;
+    }
+
+    /**
+     * @return the better of two random available replicas, null if none is available
+     */
+    private ReadReplica chooseReplica() {
+        long now = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ReadReplica first = replicas.get(random.nextInt(replicas.size()));
+        ReadReplica second = replicas.get(random.nextInt(replicas.size()));
+        boolean firstAvailable = first.isAvailable(now), secondAvailable = second.isAvailable(now);
+        if (firstAvailable && secondAvailable) {
+            return first.getScore() <= second.getScore() ? first : second;
+        } else if (firstAvailable || secondAvailable) {
+            return firstAvailable ? first : second;
+        }
+
+        for (ReadReplica replica : replicas) {
+            if (replica.isAvailable(now)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a check, on a read replica unless it must see our latest writes. Its result is reported to the circuit
+     * breaker only if seen before the deadline, a missed deadline is reported as a failure.
+     *
+     * @param permit   given by {@link #checkAvailable()}
+     * @param deadline {@link System#nanoTime()} to stop waiting at, the task still runs to the end
+     * @throws ExecutionException if the query failed or the deadline is missed
+     */
+    public <T> T executeCheck(DatabaseCallable<T> callable, boolean replicaRead, CircuitBreaker.Permit permit,
+        long deadline) throws ExecutionException {
+        long start = System.nanoTime();
+        if (deadline - start <= 0) {
+            // Spent before reaching the database, it isn't to blame
+            breaker.release(permit);
+            throw new ExecutionException(new TimeoutException("Check deadline passed before querying"));
+        }
+
+        CompletableFuture<T> future = replicaRead ? executeRead(callable) : execute(callable);
+        try {
+            T result = future.get(deadline - start, TimeUnit.NANOSECONDS);
+            breaker.recordSuccess(permit);
+            return result;
+        } catch (TimeoutException e) {
+            breaker.recordFailure(permit);
+            throw new ExecutionException(e);
+        } catch (InterruptedException | CancellationException e) {
+            breaker.release(permit);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                breaker.recordFailure(permit);
+            } else {
+                breaker.release(permit);
+            }
+            throw new ExecutionException(e);
+        } finally {
+            waitHistogram.recordSince(start);
+        }
+    }
+
+    /**
+     * Gives back the permit of a check that ended before {@link #executeCheck(DatabaseCallable, boolean,
+     * CircuitBreaker.Permit, long)}, so a probe that never queried doesn't hold the circuit breaker half-open.
+     */
+    public void releaseCheck(CircuitBreaker.Permit permit) {
+        breaker.release(permit);
+    }
+
+    /**
+     * Should be called once per check before it uses the database, as it may let the check probe the database.
+     *
+     * @return the permit to give to {@link #executeCheck(DatabaseCallable, boolean, CircuitBreaker.Permit, long)}
+     * @throws ExecutionException if the circuit breaker is open, so checks shouldn't wait for the database
+     */
+    public CircuitBreaker.Permit checkAvailable() throws ExecutionException {
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.Permit.REFUSED) {
+            throw new ExecutionException(new RejectedExecutionException("Database circuit breaker is open"));
+        }
+        return permit;
     }
 
     public <T> T handleFuture(Future<T> future) throws ExecutionException {
+        long start = System.nanoTime();
         try {
             return future.get();
         } catch (InterruptedException | CancellationException e) {
             throw new RuntimeException(e);
         } catch (Exception e) {
             throw new ExecutionException(e);
+        } finally {
+            waitHistogram.recordSince(start);
         }
     }
 
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public Logger getLogger() {
         return logger;
     }
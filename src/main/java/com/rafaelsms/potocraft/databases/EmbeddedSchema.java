@@ -0,0 +1,235 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Schema of the embedded H2 database, for servers without a database server.
+ * <p>
+ * H2 stores UUIDs natively in 16 bytes, so no world dictionary is needed. There is a single server on the file, so
+ * the primary key in x order is enough for box queries: unlike MariaDB over the network, each query only costs a few
+ * index page reads in the server process.
+ */
+public class EmbeddedSchema extends Schema {
+
+    private static final String CREATE_BLOCKS_TABLE = """
+        create table if not exists protectedBlocksH2
+        (
+            worldId        uuid                                 not null,
+            x              int                                  not null,
+            y              smallint                             not null,
+            z              int                                  not null,
+            playerId       uuid                                 not null,
+            dateModified   timestamp default current_timestamp on update current_timestamp not null,
+            temporaryBlock boolean   default true               not null,
+            primary key (worldId, x, z, y)
+        );
+        """;
+    private static final String CREATE_DATE_MODIFIED_INDEX = """
+        create index if not exists protectedBlocksH2__dateModified
+            on protectedBlocksH2 (dateModified);
+        """;
+    private static final String CREATE_PLAYER_ID_INDEX = """
+        create index if not exists protectedBlocksH2__playerId
+            on protectedBlocksH2 (playerId);
+        """;
+    private static final String CREATE_ALLOWED_PLAYERS_TABLE = """
+        create table if not exists allowedPlayersH2
+        (
+            playerId        uuid                                not null,
+            allowedPlayerId uuid                                not null,
+            allowedDate     timestamp default current_timestamp not null,
+            primary key (playerId, allowedPlayerId)
+        );
+        """;
+    private static final String CREATE_ALLOWED_PLAYER_ID_INDEX = """
+        create index if not exists allowedPlayersH2__allowedPlayerId
+            on allowedPlayersH2 (allowedPlayerId);
+        """;
+
+    private static final String IS_PROTECTED_BY_ANY = """
+        SELECT playerId
+        FROM protectedBlocksH2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND dateModified >= DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP)
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """;
+    private static final String IS_PROTECTED_BY_OTHER_PLAYER = """
+        SELECT playerId
+        FROM protectedBlocksH2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND dateModified >= DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP)
+            AND playerId NOT IN (%s)
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """;
+    private static final String COUNT_NEARBY_BLOCKS = """
+        SELECT COUNT(*)
+        FROM protectedBlocksH2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND playerId IN (%s)
+        """;
+    private static final String ADD_BLOCKS = """
+        INSERT INTO protectedBlocksH2(worldId, x, y, z, temporaryBlock, playerId)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId);
+        """;
+    private static final String ADD_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?)";
+    // The date is set explicitly, so it isn't updated to the current one
+    private static final String MOVE_BLOCKS = """
+        INSERT INTO protectedBlocksH2(worldId, x, y, z, temporaryBlock, playerId, dateModified)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId),
+            dateModified = VALUES(dateModified);
+        """;
+    private static final String MOVE_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TEMPORARY_NEARBY_BLOCKS = """
+        UPDATE protectedBlocksH2
+        SET temporaryBlock = FALSE
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND playerId IN (%s)
+            AND temporaryBlock = TRUE
+        """;
+    private static final String SELECT_AREA_BLOCKS = """
+        SELECT playerId, x, y, z, dateModified, temporaryBlock
+        FROM protectedBlocksH2
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+        """;
+    // Integer division truncates in H2, the decimal one is floored like in MariaDB
+    private static final String SELECT_BLOCK_CHUNKS = """
+        SELECT DISTINCT worldId, FLOOR(x / 16.0), FLOOR(z / 16.0)
+        FROM protectedBlocksH2;
+        """;
+    private static final String REMOVE_BLOCKS = """
+        DELETE FROM protectedBlocksH2
+        WHERE (worldId, x, y, z) IN (%s);
+        """;
+    private static final String REMOVE_BLOCKS_ROW = "(?, ?, ?, ?)";
+    // Keyset pagination on the protectedBlocksH2__dateModified index, which ends with the primary key
+    private static final String SELECT_EXPIRED_BLOCKS = """
+        SELECT dateModified, worldId, x, y, z, temporaryBlock, worldId
+        FROM protectedBlocksH2
+        WHERE dateModified < DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP)
+            AND (temporaryBlock = FALSE OR dateModified < DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP))
+            AND dateModified >= ?
+            AND (dateModified > ? OR (worldId, x, z, y) > (?, ?, ?, ?))
+        ORDER BY dateModified, worldId, x, z, y
+        LIMIT ?;
+        """;
+    // Blocks placed again since they were selected are kept
+    private static final String REMOVE_EXPIRED_BLOCKS = """
+        DELETE FROM protectedBlocksH2
+        WHERE (worldId, x, y, z) IN (%s)
+            AND dateModified < DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP)
+            AND (temporaryBlock = FALSE OR dateModified < DATEADD(DAY, -CAST(? AS INT), CURRENT_TIMESTAMP));
+        """;
+
+    private static final String CHECK_PLAYER_ALLOWED_BY_PLAYER = """
+        SELECT EXISTS(
+            SELECT playerId, allowedPlayerId
+            FROM allowedPlayersH2
+            WHERE playerId = ? AND allowedPlayerId = ?
+        ) AS isPlayerAllowed;
+        """;
+    private static final String CHECK_PLAYERS_ALLOWED_BY_PLAYER = """
+        SELECT allowedPlayerId
+        FROM allowedPlayersH2
+        WHERE playerId = ?;
+        """;
+    private static final String SELECT_ALLOWED_PLAYERS = """
+        SELECT playerId, allowedPlayerId
+        FROM allowedPlayersH2;
+        """;
+    private static final String ADD_ALLOWED_PLAYER = """
+        INSERT IGNORE INTO allowedPlayersH2(playerId, allowedPlayerId)
+        VALUES (?, ?);
+        """;
+    private static final String REMOVE_ALLOWED_PLAYER = """
+        DELETE FROM allowedPlayersH2
+        WHERE playerId = ? AND allowedPlayerId = ?;
+        """;
+    private static final String REMOVE_ALLOWED_PLAYERS = """
+        DELETE FROM allowedPlayersH2
+        WHERE playerId = ?;
+        """;
+
+    @Override
+    public List<String> getCreateStatements() {
+        return List.of(CREATE_BLOCKS_TABLE, CREATE_DATE_MODIFIED_INDEX, CREATE_PLAYER_ID_INDEX,
+            CREATE_ALLOWED_PLAYERS_TABLE, CREATE_ALLOWED_PLAYER_ID_INDEX);
+    }
+
+    @Override
+    public String getQuery(Query query) {
+        return switch (query) {
+            case IS_PROTECTED_BY_ANY -> IS_PROTECTED_BY_ANY;
+            case IS_PROTECTED_BY_OTHER_PLAYER -> IS_PROTECTED_BY_OTHER_PLAYER;
+            case COUNT_NEARBY_BLOCKS -> COUNT_NEARBY_BLOCKS;
+            case ADD_BLOCKS -> ADD_BLOCKS;
+            case ADD_BLOCKS_ROW -> ADD_BLOCKS_ROW;
+            case MOVE_BLOCKS -> MOVE_BLOCKS;
+            case MOVE_BLOCKS_ROW -> MOVE_BLOCKS_ROW;
+            case UPDATE_TEMPORARY_NEARBY_BLOCKS -> UPDATE_TEMPORARY_NEARBY_BLOCKS;
+            case SELECT_AREA_BLOCKS -> SELECT_AREA_BLOCKS;
+            case SELECT_BLOCK_CHUNKS -> SELECT_BLOCK_CHUNKS;
+            case REMOVE_BLOCKS -> REMOVE_BLOCKS;
+            case REMOVE_BLOCKS_ROW -> REMOVE_BLOCKS_ROW;
+            case SELECT_EXPIRED_BLOCKS -> SELECT_EXPIRED_BLOCKS;
+            case REMOVE_EXPIRED_BLOCKS -> REMOVE_EXPIRED_BLOCKS;
+            case CHECK_PLAYER_ALLOWED_BY_PLAYER -> CHECK_PLAYER_ALLOWED_BY_PLAYER;
+            case CHECK_PLAYERS_ALLOWED_BY_PLAYER -> CHECK_PLAYERS_ALLOWED_BY_PLAYER;
+            case SELECT_ALLOWED_PLAYERS -> SELECT_ALLOWED_PLAYERS;
+            case ADD_ALLOWED_PLAYER -> ADD_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYER -> REMOVE_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYERS -> REMOVE_ALLOWED_PLAYERS;
+        };
+    }
+
+    @Override
+    public void setWorldId(PreparedStatement preparedStatement, int index, UUID worldId) throws SQLException {
+        preparedStatement.setObject(index, worldId);
+    }
+
+    @Override
+    public int setExpiredPosition(PreparedStatement preparedStatement, int index, Object worldId, int x, int y, int z)
+        throws SQLException {
+        preparedStatement.setObject(++index, worldId);
+        preparedStatement.setInt(++index, x);
+        preparedStatement.setInt(++index, z);
+        preparedStatement.setInt(++index, y);
+        return index;
+    }
+
+    @Override
+    public void setPlayerId(PreparedStatement preparedStatement, int index, UUID playerId) throws SQLException {
+        preparedStatement.setObject(index, playerId);
+    }
+
+    @Override
+    public UUID getPlayerId(ResultSet resultSet, int column) throws SQLException {
+        return resultSet.getObject(column, UUID.class);
+    }
+
+    @Override
+    public UUID getWorldUuid(ResultSet resultSet, int column) throws SQLException {
+        return resultSet.getObject(column, UUID.class);
+    }
+}
@@ -0,0 +1,253 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.metrics.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes protected blocks that can't protect anymore: permanent blocks older than the days protected and temporary
+ * blocks that weren't promoted within the days temporary.
+ * <p>
+ * Blocks are walked in the order of the dateModified index and deleted in small batches, each its own transaction,
+ * pausing between batches and while queries are queued so checks are not delayed. Sweeps are skipped while the
+ * schema migration runs.
+ * <p>
+ * Every committed batch is reported with the positions it swept, so copies of the rows in memory are dropped too.
+ */
+public class ExpirySweeper {
+
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "PotoCraft expiry sweeper thread"));
+
+    private final DatabasePool pool;
+    private final SchemaMigration migration;
+    private final SweptBlocks sweptListener;
+    private final int batchSize;
+    private final int batchDelayMillis;
+    private final int temporaryDays;
+    private final LatencyHistogram batchHistogram;
+    private final AtomicLong sweptBlocks = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private CompletableFuture<Integer> runningSweep = null;
+
+    public ExpirySweeper(Configuration configuration, DatabasePool pool, SchemaMigration migration,
+        SweptBlocks sweptListener) {
+        this.pool = pool;
+        this.migration = migration;
+        this.sweptListener = sweptListener;
+        this.batchSize = configuration.getSweepBatchSize();
+        this.batchDelayMillis = configuration.getSweepBatchDelayMillis();
+        this.temporaryDays = configuration.getSweepTemporaryDays();
+        this.batchHistogram = pool.getMetrics().getHistogram("sweep batch");
+        pool.getMetrics().addGauge("swept blocks", sweptBlocks::get);
+        pool.getMetrics().addGauge("sweeps", sweeps::get);
+
+        long interval = configuration.getSweepIntervalMinutes();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Starts a sweep, or returns the one running.
+     *
+     * @return the number of blocks deleted
+     */
+    public synchronized CompletableFuture<Integer> sweep() {
+        if (runningSweep != null && !runningSweep.isDone()) {
+            return runningSweep;
+        }
+
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        runningSweep = future;
+        scheduler.execute(() -> {
+            try {
+                future.complete(sweepBatches());
+            } catch (InterruptedException e) {
+                future.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                pool.getLogger().warn("Failed to sweep expired protected blocks: ", e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Stops scheduled sweeps and interrupts the one running, its current batch is left to the pool.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private int sweepBatches() throws ExecutionException, InterruptedException {
+        long start = System.nanoTime();
+        ExpiredBlock lastBlock = ExpiredBlock.FIRST;
+        int deleted = 0;
+        while (true) {
+            // Checks come first, wait until the pool catches up
+            while (pool.getQueuedTasks() > 0) {
+                Thread.sleep(batchDelayMillis);
+            }
+
+            long batchStart = System.nanoTime();
+            ExpiredBlock position = lastBlock;
+            SweepBatch batch = pool.executeFuture(connection -> {
+                return migration.write((readSchema, writeSchemas) -> {
+                    if (writeSchemas.size() > 1) {
+                        return null;
+                    }
+                    return sweepBatch(connection, readSchema, position);
+                });
+            });
+            batchHistogram.recordSince(batchStart);
+            if (batch == null) {
+                pool.getLogger().info("Skipping expired blocks sweep while the schema migration runs.");
+                break;
+            }
+
+            sweptListener.removed(batch.positions(), temporaryDays);
+            deleted += batch.deleted();
+            sweptBlocks.addAndGet(batch.deleted());
+            if (batch.lastBlock() == null) {
+                break;
+            }
+            lastBlock = batch.lastBlock();
+            Thread.sleep(batchDelayMillis);
+        }
+
+        sweeps.incrementAndGet();
+        pool.getLogger().info("Swept {} expired protected blocks in {} ms", deleted,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return deleted;
+    }
+
+    private SweepBatch sweepBatch(Connection connection, Schema schema, ExpiredBlock lastBlock) throws SQLException {
+        List<ExpiredBlock> blocks = selectExpiredBlocks(connection, schema, lastBlock);
+        if (blocks.isEmpty()) {
+            return new SweepBatch(0, List.of(), null);
+        }
+
+        // Only permanent blocks are aggregated in cells
+        List<BlockPosition> positions = new ArrayList<>(blocks.size());
+        Set<ProtectionCell> changedCells = new HashSet<>();
+        for (ExpiredBlock block : blocks) {
+            BlockPosition position = new BlockPosition(block.worldUuid(), block.x(), block.y(), block.z());
+            positions.add(position);
+            if (!block.temporaryBlock()) {
+                changedCells.add(ProtectionCell.of(position));
+            }
+        }
+
+        // Worlds not loaded since the start may have expired blocks too
+        for (ProtectionCell cell : changedCells) {
+            schema.registerWorld(connection, cell.worldId());
+        }
+
+        try {
+            connection.setAutoCommit(false);
+
+            int deleted;
+            String query = schema.getQuery(Schema.Query.REMOVE_EXPIRED_BLOCKS)
+                                 .formatted(String.join(", ", Collections.nCopies(blocks.size(),
+                                     schema.getQuery(Schema.Query.REMOVE_BLOCKS_ROW))));
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                int i = 0;
+                for (ExpiredBlock block : blocks) {
+                    preparedStatement.setObject(++i, block.worldId());
+                    preparedStatement.setInt(++i, block.x());
+                    preparedStatement.setInt(++i, block.y());
+                    preparedStatement.setInt(++i, block.z());
+                }
+                preparedStatement.setInt(++i, Configuration.DAYS_PROTECTED);
+                preparedStatement.setInt(++i, temporaryDays);
+                deleted = preparedStatement.executeUpdate();
+            }
+            schema.refreshCells(connection, changedCells);
+
+            connection.commit();
+            return new SweepBatch(deleted, positions,
+                blocks.size() < batchSize ? null : blocks.get(blocks.size() - 1));
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private List<ExpiredBlock> selectExpiredBlocks(Connection connection, Schema schema, ExpiredBlock lastBlock)
+        throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.SELECT_EXPIRED_BLOCKS))) {
+            int i = 0;
+            preparedStatement.setInt(++i, Configuration.DAYS_PROTECTED);
+            preparedStatement.setInt(++i, temporaryDays);
+            preparedStatement.setTimestamp(++i, lastBlock.dateModified());
+            preparedStatement.setTimestamp(++i, lastBlock.dateModified());
+            i = schema.setExpiredPosition(preparedStatement, i, lastBlock.worldId(), lastBlock.x(), lastBlock.y(),
+                lastBlock.z());
+            preparedStatement.setInt(++i, batchSize);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                List<ExpiredBlock> blocks = new ArrayList<>(batchSize);
+                while (resultSet.next()) {
+                    blocks.add(new ExpiredBlock(resultSet.getTimestamp(1), resultSet.getObject(2),
+                        resultSet.getInt(3), resultSet.getInt(4), resultSet.getInt(5), resultSet.getBoolean(6),
+                        schema.getWorldUuid(resultSet, 7)));
+                }
+                return blocks;
+            }
+        }
+    }
+
+    /**
+     * A row of SELECT_EXPIRED_BLOCKS.
+     *
+     * @param worldId   world as stored, used to continue the index order and to delete the row
+     * @param worldUuid world as used by cells
+     */
+    private record ExpiredBlock(Timestamp dateModified, Object worldId, int x, int y, int z, boolean temporaryBlock,
+                                UUID worldUuid) {
+
+        // Before every row, the world is compared only when the date is the same
+        private static final ExpiredBlock FIRST = new ExpiredBlock(new Timestamp(0), null, 0, 0, 0, false, null);
+    }
+
+    /**
+     * @param positions blocks selected, deleted unless modified since
+     * @param lastBlock last block selected, null if there are no more blocks to sweep
+     */
+    private record SweepBatch(int deleted, List<BlockPosition> positions, ExpiredBlock lastBlock) {
+    }
+
+    public interface SweptBlocks {
+
+        /**
+         * Called after the batch is committed.
+         *
+         * @param positions     blocks deleted if still expired when the batch ran
+         * @param temporaryDays days temporary blocks were kept
+         */
+        void removed(List<BlockPosition> positions, int temporaryDays);
+    }
+}
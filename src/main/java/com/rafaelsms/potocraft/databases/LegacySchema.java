@@ -0,0 +1,219 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * First schema: worlds and players are stored as UUID strings.
+ */
+public class LegacySchema extends Schema {
+
+    private static final String CREATE_BLOCKS_TABLE = """
+        create table if not exists protectedBlocks
+        (
+            playerId       varchar(36)                            not null,
+            worldId        varchar(36)                            not null,
+            x              int                                    not null,
+            y              int                                    not null,
+            z              int                                    not null,
+            dateModified   timestamp  default current_timestamp() not null on update current_timestamp(),
+            temporaryBlock tinyint(1) default 1                   not null,
+            primary key (worldId, x, y, z)
+        );
+        """;
+    private static final String CREATE_DATE_MODIFIED_INDEX = """
+        create index if not exists protectedBlocks__dateModified
+            on protectedBlocks (dateModified);
+        """;
+    private static final String CREATE_PLAYER_ID_INDEX = """
+        create index if not exists protectedBlocks__playerId
+            on protectedBlocks (playerId);
+        """;
+    private static final String CREATE_TEMPORARY_BLOCK_INDEX = """
+        create index if not exists protectedBlocks__temporaryBlock
+            on protectedBlocks (temporaryBlock);
+        """;
+
+    private static final String IS_PROTECTED_BY_ANY = """
+        SELECT playerId
+        FROM protectedBlocks
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND dateModified >= current_timestamp() - INTERVAL ? DAY
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """;
+    private static final String IS_PROTECTED_BY_OTHER_PLAYER = """
+        SELECT playerId
+        FROM protectedBlocks
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND dateModified >= current_timestamp() - INTERVAL ? DAY
+            AND playerId NOT IN (%s)
+            AND temporaryBlock = FALSE
+        LIMIT 1;
+        """;
+    private static final String COUNT_NEARBY_BLOCKS = """
+        SELECT COUNT(*)
+        FROM protectedBlocks
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND playerId IN (%s)
+        """;
+    private static final String ADD_BLOCKS = """
+        INSERT INTO protectedBlocks(worldId, x, y, z, temporaryBlock, playerId)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId);
+        """;
+    private static final String ADD_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?)";
+    // The date is set explicitly, so it isn't updated to the current one
+    private static final String MOVE_BLOCKS = """
+        INSERT INTO protectedBlocks(worldId, x, y, z, temporaryBlock, playerId, dateModified)
+        VALUES %s
+        ON DUPLICATE KEY UPDATE temporaryBlock = VALUES(temporaryBlock), playerId = VALUES(playerId),
+            dateModified = VALUES(dateModified);
+        """;
+    private static final String MOVE_BLOCKS_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TEMPORARY_NEARBY_BLOCKS = """
+        UPDATE protectedBlocks
+        SET temporaryBlock = FALSE
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND y BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+            AND playerId IN (%s)
+            AND temporaryBlock = TRUE
+        """;
+    private static final String SELECT_AREA_BLOCKS = """
+        SELECT playerId, x, y, z, dateModified, temporaryBlock
+        FROM protectedBlocks
+        WHERE worldId = ?
+            AND x BETWEEN ? AND ?
+            AND z BETWEEN ? AND ?
+        """;
+    private static final String SELECT_BLOCK_CHUNKS = """
+        SELECT DISTINCT worldId, FLOOR(x / 16), FLOOR(z / 16)
+        FROM protectedBlocks;
+        """;
+    private static final String REMOVE_BLOCKS = """
+        DELETE IGNORE FROM protectedBlocks
+        WHERE (worldId, x, y, z) IN (%s);
+        """;
+    private static final String REMOVE_BLOCKS_ROW = "(?, ?, ?, ?)";
+    // Keyset pagination on the protectedBlocks__dateModified index, which ends with the primary key
+    private static final String SELECT_EXPIRED_BLOCKS = """
+        SELECT dateModified, worldId, x, y, z, temporaryBlock, worldId
+        FROM protectedBlocks
+        WHERE dateModified < current_timestamp() - INTERVAL ? DAY
+            AND (temporaryBlock = FALSE OR dateModified < current_timestamp() - INTERVAL ? DAY)
+            AND dateModified >= ?
+            AND (dateModified > ? OR (worldId, x, y, z) > (?, ?, ?, ?))
+        ORDER BY dateModified, worldId, x, y, z
+        LIMIT ?;
+        """;
+    // Blocks placed again since they were selected are kept
+    private static final String REMOVE_EXPIRED_BLOCKS = """
+        DELETE FROM protectedBlocks
+        WHERE (worldId, x, y, z) IN (%s)
+            AND dateModified < current_timestamp() - INTERVAL ? DAY
+            AND (temporaryBlock = FALSE OR dateModified < current_timestamp() - INTERVAL ? DAY);
+        """;
+    private static final String CREATE_ALLOWED_PLAYERS_TABLE = """
+        create table if not exists allowedPlayers
+        (
+            playerId        varchar(36)                           not null,
+            allowedPlayerId varchar(36)                           not null,
+            allowedDate     timestamp default current_timestamp() not null on update current_timestamp(),
+            primary key (playerId, allowedPlayerId)
+        );
+        """;
+    private static final String CHECK_PLAYER_ALLOWED_BY_PLAYER = """
+        SELECT EXISTS(
+            SELECT playerId, allowedPlayerId
+            FROM allowedPlayers
+            WHERE playerId = ? AND allowedPlayerId = ?
+        ) AS isPlayerAllowed;
+        """;
+    private static final String CHECK_PLAYERS_ALLOWED_BY_PLAYER = """
+        SELECT allowedPlayerId
+        FROM allowedPlayers
+        WHERE playerId = ?;
+        """;
+    private static final String SELECT_ALLOWED_PLAYERS = """
+        SELECT playerId, allowedPlayerId
+        FROM allowedPlayers;
+        """;
+    private static final String ADD_ALLOWED_PLAYER = """
+        INSERT INTO allowedPlayers(playerId, allowedPlayerId)
+        VALUES (?, ?);
+        """;
+    private static final String REMOVE_ALLOWED_PLAYER = """
+        DELETE FROM allowedPlayers
+        WHERE playerId = ? AND allowedPlayerId = ?;
+        """;
+    private static final String REMOVE_ALLOWED_PLAYERS = """
+        DELETE FROM allowedPlayers
+        WHERE playerId = ?;
+        """;
+
+    @Override
+    public List<String> getCreateStatements() {
+        return List.of(CREATE_BLOCKS_TABLE, CREATE_DATE_MODIFIED_INDEX, CREATE_PLAYER_ID_INDEX,
+            CREATE_TEMPORARY_BLOCK_INDEX, CREATE_ALLOWED_PLAYERS_TABLE);
+    }
+
+    @Override
+    public String getQuery(Query query) {
+        return switch (query) {
+            case IS_PROTECTED_BY_ANY -> IS_PROTECTED_BY_ANY;
+            case IS_PROTECTED_BY_OTHER_PLAYER -> IS_PROTECTED_BY_OTHER_PLAYER;
+            case COUNT_NEARBY_BLOCKS -> COUNT_NEARBY_BLOCKS;
+            case ADD_BLOCKS -> ADD_BLOCKS;
+            case ADD_BLOCKS_ROW -> ADD_BLOCKS_ROW;
+            case MOVE_BLOCKS -> MOVE_BLOCKS;
+            case MOVE_BLOCKS_ROW -> MOVE_BLOCKS_ROW;
+            case UPDATE_TEMPORARY_NEARBY_BLOCKS -> UPDATE_TEMPORARY_NEARBY_BLOCKS;
+            case SELECT_AREA_BLOCKS -> SELECT_AREA_BLOCKS;
+            case SELECT_BLOCK_CHUNKS -> SELECT_BLOCK_CHUNKS;
+            case REMOVE_BLOCKS -> REMOVE_BLOCKS;
+            case REMOVE_BLOCKS_ROW -> REMOVE_BLOCKS_ROW;
+            case SELECT_EXPIRED_BLOCKS -> SELECT_EXPIRED_BLOCKS;
+            case REMOVE_EXPIRED_BLOCKS -> REMOVE_EXPIRED_BLOCKS;
+            case CHECK_PLAYER_ALLOWED_BY_PLAYER -> CHECK_PLAYER_ALLOWED_BY_PLAYER;
+            case CHECK_PLAYERS_ALLOWED_BY_PLAYER -> CHECK_PLAYERS_ALLOWED_BY_PLAYER;
+            case SELECT_ALLOWED_PLAYERS -> SELECT_ALLOWED_PLAYERS;
+            case ADD_ALLOWED_PLAYER -> ADD_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYER -> REMOVE_ALLOWED_PLAYER;
+            case REMOVE_ALLOWED_PLAYERS -> REMOVE_ALLOWED_PLAYERS;
+        };
+    }
+
+    @Override
+    public void setWorldId(PreparedStatement preparedStatement, int index, UUID worldId) throws SQLException {
+        preparedStatement.setString(index, worldId.toString());
+    }
+
+    @Override
+    public void setPlayerId(PreparedStatement preparedStatement, int index, UUID playerId) throws SQLException {
+        preparedStatement.setString(index, playerId.toString());
+    }
+
+    @Override
+    public UUID getPlayerId(ResultSet resultSet, int column) throws SQLException {
+        return UUID.fromString(resultSet.getString(column));
+    }
+
+    @Override
+    public UUID getWorldUuid(ResultSet resultSet, int column) throws SQLException {
+        return UUID.fromString(resultSet.getString(column));
+    }
+}
@@ -0,0 +1,174 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Z-order (Morton) key of a block, used to find blocks inside a box with a few contiguous index ranges.
+ * <p>
+ * x and z take 26 bits (world border is at 30 million blocks) and y takes 11 bits. The lower 33 bits interleave x, z
+ * and y and the upper 30 bits interleave only x and z, so the key fits a positive BIGINT. Coordinates outside these
+ * bounds are clamped, which keeps the key order and only makes those blocks share keys.
+ */
+public final class MortonKey {
+
+    /**
+     * Number of ranges bound by queries, unused ranges repeat the first one.
+     */
+    public static final int RANGE_COUNT = 16;
+
+    private static final int HORIZONTAL_BITS = 26;
+    private static final int VERTICAL_BITS = 11;
+    private static final int HORIZONTAL_OFFSET = 1 << (HORIZONTAL_BITS - 1);
+    private static final int VERTICAL_OFFSET = 1 << (VERTICAL_BITS - 1);
+
+    private static final int X = 0, Y = 1, Z = 2;
+    private static final int OUTSIDE = 0, PARTIAL = 1, INSIDE = 2;
+    private static final int KEY_BITS = VERTICAL_BITS * 3 + (HORIZONTAL_BITS - VERTICAL_BITS) * 2;
+    // Axis and axis bit of each key bit, from the least significant one
+    private static final int[] BIT_AXIS = new int[KEY_BITS];
+    private static final int[] BIT_INDEX = new int[KEY_BITS];
+
+    static {
+        int bit = 0;
+        for (int i = 0; i < HORIZONTAL_BITS; i++) {
+            if (i < VERTICAL_BITS) {
+                BIT_AXIS[bit] = Y;
+                BIT_INDEX[bit++] = i;
+            }
+            BIT_AXIS[bit] = Z;
+            BIT_INDEX[bit++] = i;
+            BIT_AXIS[bit] = X;
+            BIT_INDEX[bit++] = i;
+        }
+    }
+
+    private MortonKey() {
+    }
+
+    public static long encode(int x, int y, int z) {
+        int[] coordinates = { clampHorizontal(x), clampVertical(y), clampHorizontal(z) };
+        long key = 0;
+        for (int bit = 0; bit < KEY_BITS; bit++) {
+            key |= (long) ((coordinates[BIT_AXIS[bit]] >>> BIT_INDEX[bit]) & 1) << bit;
+        }
+        return key;
+    }
+
+    /**
+     * @return the same key as {@link #encode(int, int, int)} as a SQL expression of the x, y and z columns
+     */
+    public static String getSqlExpression() {
+        String[] coordinates = {
+            "LEAST(GREATEST(x + %d, 0), %d)".formatted(HORIZONTAL_OFFSET, (1 << HORIZONTAL_BITS) - 1),
+            "LEAST(GREATEST(y + %d, 0), %d)".formatted(VERTICAL_OFFSET, (1 << VERTICAL_BITS) - 1),
+            "LEAST(GREATEST(z + %d, 0), %d)".formatted(HORIZONTAL_OFFSET, (1 << HORIZONTAL_BITS) - 1),
+        };
+        List<String> terms = new ArrayList<>();
+        for (int bit = 0; bit < KEY_BITS; bit++) {
+            terms.add("(((%s >> %d) & 1) << %d)".formatted(coordinates[BIT_AXIS[bit]], BIT_INDEX[bit], bit));
+        }
+        return String.join(" | ", terms);
+    }
+
+    /**
+     * Covers the box with exactly {@link #RANGE_COUNT} key ranges. Ranges may include keys outside the box, so the
+     * coordinates should still be checked.
+     *
+     * @return inclusive ranges as pairs of minimum and maximum keys, empty ranges if the box is empty
+     */
+    public static long[] getRanges(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return toFixedRanges(new ArrayList<>(List.of(new long[] { 1, 0 })));
+        }
+
+        int[] boxMin = { clampHorizontal(minX), clampVertical(minY), clampHorizontal(minZ) };
+        int[] boxMax = { clampHorizontal(maxX), clampVertical(maxY), clampHorizontal(maxZ) };
+
+        // Split the cells crossing the box border one key bit at a time while the ranges fit
+        List<long[]> ranges = new ArrayList<>();
+        List<Long> partialCells = List.of(0L);
+        int cellBits = KEY_BITS;
+        while (cellBits > 0 && !partialCells.isEmpty()) {
+            int bit = cellBits - 1;
+            List<long[]> coveredRanges = new ArrayList<>();
+            List<Long> nextCells = new ArrayList<>();
+            for (long cell : partialCells) {
+                for (long child : new long[] { cell, cell | (1L << bit) }) {
+                    long childMax = child | ((1L << bit) - 1);
+                    int intersection = intersect(child, childMax, boxMin, boxMax);
+                    if (intersection == INSIDE) {
+                        coveredRanges.add(new long[] { child, childMax });
+                    } else if (intersection == PARTIAL) {
+                        nextCells.add(child);
+                    }
+                }
+            }
+
+            if (ranges.size() + coveredRanges.size() + nextCells.size() > RANGE_COUNT) {
+                break;
+            }
+            ranges.addAll(coveredRanges);
+            partialCells = nextCells;
+            cellBits = bit;
+        }
+
+        // Cells still crossing the border are covered whole
+        for (long cell : partialCells) {
+            ranges.add(new long[] { cell, cell | ((1L << cellBits) - 1) });
+        }
+        return toFixedRanges(ranges);
+    }
+
+    private static int intersect(long cellMin, long cellMax, int[] boxMin, int[] boxMax) {
+        int[] min = decode(cellMin);
+        int[] max = decode(cellMax);
+        boolean inside = true;
+        for (int axis = 0; axis < 3; axis++) {
+            if (max[axis] < boxMin[axis] || min[axis] > boxMax[axis]) {
+                return OUTSIDE;
+            }
+            inside &= min[axis] >= boxMin[axis] && max[axis] <= boxMax[axis];
+        }
+        return inside ? INSIDE : PARTIAL;
+    }
+
+    private static int[] decode(long key) {
+        int[] coordinates = new int[3];
+        for (int bit = 0; bit < KEY_BITS; bit++) {
+            coordinates[BIT_AXIS[bit]] |= (int) ((key >>> bit) & 1) << BIT_INDEX[bit];
+        }
+        return coordinates;
+    }
+
+    private static long[] toFixedRanges(List<long[]> ranges) {
+        // Sort by minimum key and merge adjacent ranges
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+
+        long[] fixedRanges = new long[RANGE_COUNT * 2];
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            long[] range = merged.get(i < merged.size() ? i : 0);
+            fixedRanges[i * 2] = range[0];
+            fixedRanges[i * 2 + 1] = range[1];
+        }
+        return fixedRanges;
+    }
+
+    private static int clampHorizontal(int coordinate) {
+        return (int) Math.max(0, Math.min((long) coordinate + HORIZONTAL_OFFSET, (1 << HORIZONTAL_BITS) - 1));
+    }
+
+    private static int clampVertical(int coordinate) {
+        return (int) Math.max(0, Math.min((long) coordinate + VERTICAL_OFFSET, (1 << VERTICAL_BITS) - 1));
+    }
+}
@@ -0,0 +1,107 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verdict memo and query budget for natural events (fire, lava, entities), which come in bursts of thousands.
+ * <p>
+ * Only "unprotected" verdicts are remembered, per chunk section: they are computed for the section and its border,
+ * so they hold for every block inside it until a block nearby becomes permanent or the TTL elapses. Expired verdicts
+ * are kept until new ones need the room, as the last known verdict while the database is unavailable.
+ */
+public class NaturalChecks {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int MAX_VERDICTS = 16_384;
+
+    private final Map<ProtectionCell, Long> unprotectedSections = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final long verdictTtlNanos;
+    private final int queriesPerTick;
+
+    private long tick = 0;
+    private int tickQueries = 0;
+
+    public NaturalChecks(Configuration configuration) {
+        this.verdictTtlNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getNaturalVerdictTtlMillis());
+        this.queriesPerTick = configuration.getNaturalQueriesPerTick();
+    }
+
+    public boolean isUnprotected(ProtectionCell section) {
+        Long expiration = unprotectedSections.get(section);
+        if (expiration == null) {
+            return false;
+        }
+        return expiration - System.nanoTime() >= 0;
+    }
+
+    /**
+     * @return true if the section was unprotected, even if the verdict expired
+     */
+    public boolean wasUnprotected(ProtectionCell section) {
+        return unprotectedSections.containsKey(section);
+    }
+
+    /**
+     * @return the value to give to {@link #setUnprotected(ProtectionCell, long)} once the query is done
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Remembers the section, unless protection changed since the generation was read.
+     */
+    public void setUnprotected(ProtectionCell section, long queryGeneration) {
+        long now = System.nanoTime();
+        if (unprotectedSections.size() >= MAX_VERDICTS) {
+            unprotectedSections.values().removeIf(expiration -> expiration - now < 0);
+        }
+        if (unprotectedSections.size() < MAX_VERDICTS) {
+            unprotectedSections.put(section, now + verdictTtlNanos);
+        }
+        // A block could have become permanent while querying
+        if (generation.get() != queryGeneration) {
+            unprotectedSections.remove(section);
+        }
+    }
+
+    /**
+     * Forgets sections that may have a permanent block within distance of the position.
+     */
+    public void invalidate(BlockPosition position, int distance) {
+        generation.incrementAndGet();
+        if (unprotectedSections.isEmpty()) {
+            return;
+        }
+
+        Set<ProtectionCell> sections = new HashSet<>();
+        ProtectionCell.addAround(sections, position, distance + Configuration.NATURAL_DISTANCE_PROTECTION);
+        for (ProtectionCell section : sections) {
+            unprotectedSections.remove(section);
+        }
+    }
+
+    /**
+     * @return true if a database query can be made in this tick
+     */
+    public synchronized boolean tryAcquireQuery() {
+        long currentTick = System.nanoTime() / TICK_NANOS;
+        if (currentTick != tick) {
+            tick = currentTick;
+            tickQueries = 0;
+        }
+        if (tickQueries >= queriesPerTick) {
+            return false;
+        }
+        tickQueries++;
+        return true;
+    }
+}
@@ -1,90 +1,165 @@
 package com.rafaelsms.potocraft.databases;
 
+import com.rafaelsms.potocraft.Configuration;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Allowed players, answered from a trust graph in memory. Changes made by this server are applied to it when
+ * committed, changes made by other servers sharing the database are seen when the graph is reloaded every
+ * protection.trust_refresh_seconds.
+ */
 public class PlayerDatabase {
 
-    private static final String CREATE_ALLOWED_PLAYERS_TABLE = """
-        create table if not exists allowedPlayers
-        (
-            playerId        varchar(36)                           not null,
-            allowedPlayerId varchar(36)                           not null,
-            allowedDate     timestamp default current_timestamp() not null on update current_timestamp(),
-            primary key (playerId, allowedPlayerId)
-        );
-        """;
-    private static final String CHECK_PLAYER_ALLOWED_BY_PLAYER = """
-        SELECT EXISTS(
-            SELECT playerId, allowedPlayerId
-            FROM allowedPlayers
-            WHERE playerId = ? AND allowedPlayerId = ?
-        ) AS isPlayerAllowed;
-        """;
-    private static final String CHECK_PLAYERS_ALLOWED_BY_PLAYER = """
-        SELECT allowedPlayerId
-        FROM allowedPlayers
-        WHERE playerId = ?;
-        """;
-    private static final String ADD_ALLOWED_PLAYER = """
-        INSERT INTO allowedPlayers(playerId, allowedPlayerId)
-        VALUES (?, ?);
-        """;
-    private static final String REMOVE_ALLOWED_PLAYER = """
-        DELETE FROM allowedPlayers
-        WHERE playerId = ? AND allowedPlayerId = ?;
-        """;
-    private static final String REMOVE_ALLOWED_PLAYERS = """
-        DELETE FROM allowedPlayers
-        WHERE playerId = ?;
-        """;
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "PotoCraft trust graph refresh thread"));
 
     private final DatabasePool pool;
+    private final SchemaMigration migration;
+    // Guards replacing the graph against changes made while it was reloaded
+    private final Object graphLock = new Object();
+    private volatile TrustGraph trustGraph = new TrustGraph();
+    private long graphChanges = 0;
+    // Players whose allowed players changed recently, read from the primary database
+    private final RecentWrites<UUID> recentWrites;
 
-    public PlayerDatabase(DatabasePool pool) throws ExecutionException {
+    public PlayerDatabase(Configuration configuration, DatabasePool pool, SchemaMigration migration)
+        throws ExecutionException {
         this.pool = pool;
-        createTable();
+        this.migration = migration;
+        this.recentWrites = new RecentWrites<>(pool, configuration.getSQLReplicaPinMillis());
+        int edges = loadTrustGraph();
+        pool.getLogger().info("Loaded {} allowed players.", edges);
+
+        long interval = configuration.getTrustRefreshSeconds();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::refreshTrustGraph, interval, interval, TimeUnit.SECONDS);
+        }
     }
 
-    private void createTable() throws ExecutionException {
-        pool.executeFuture(connection -> {
-            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_ALLOWED_PLAYERS_TABLE)) {
-                preparedStatement.executeUpdate();
+    /**
+     * Stops the periodic reload of the trust graph.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Reads every allowed player into a new graph, replacing the current one unless it changed meanwhile.
+     *
+     * @return allowed players read
+     */
+    private int loadTrustGraph() throws ExecutionException {
+        long changes;
+        synchronized (graphLock) {
+            changes = graphChanges;
+        }
+
+        TrustGraph graph = new TrustGraph();
+        int edges = pool.executeFuture(connection -> {
+            Schema schema = migration.getReadSchema();
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                schema.getQuery(Schema.Query.SELECT_ALLOWED_PLAYERS));
+                 ResultSet resultSet = preparedStatement.executeQuery()) {
+                int count = 0;
+                while (resultSet.next()) {
+                    graph.add(schema.getPlayerId(resultSet, 1), schema.getPlayerId(resultSet, 2));
+                    count++;
+                }
+                return count;
             }
-            pool.getLogger().info("Created tables and indexes for allowedPlayers!");
         });
+
+        synchronized (graphLock) {
+            // A change committed while reading may be missing from the new graph, the next reload gets it
+            if (changes == graphChanges) {
+                trustGraph = graph;
+            }
+        }
+        return edges;
+    }
+
+    private void refreshTrustGraph() {
+        try {
+            loadTrustGraph();
+        } catch (ExecutionException e) {
+            pool.getLogger().warn("Failed to reload allowed players, retrying later: ", e);
+        }
+    }
+
+    /**
+     * Applies a committed change to the trust graph.
+     */
+    private void changeTrustGraph(Consumer<TrustGraph> change) {
+        synchronized (graphLock) {
+            change.accept(trustGraph);
+            graphChanges++;
+        }
+    }
+
+    /**
+     * @return the player and players that allowed them, whose blocks don't protect against the player
+     */
+    public Set<UUID> getTrustedOwners(UUID playerId) {
+        return trustGraph.getTrustedOwners(playerId);
+    }
+
+    /**
+     * @return players that allowed the given player, a new set is returned whenever it changes
+     */
+    public Set<UUID> getAllowingPlayers(UUID playerId) {
+        return trustGraph.getAllowingPlayers(playerId);
     }
 
     public List<UUID> getPlayersAllowed(UUID user) throws ExecutionException {
-        return pool.executeFuture(connection -> {
+        return pool.handleFuture(getPlayersAllowedAsync(user));
+    }
+
+    public CompletableFuture<List<UUID>> getPlayersAllowedAsync(UUID user) {
+        DatabasePool.DatabaseCallable<List<UUID>> read = connection -> {
             return getPlayersAllowed(connection, user);
-        });
+        };
+        if (recentWrites.contains(user)) {
+            return pool.execute(read);
+        }
+        return pool.executeRead(read);
     }
 
     private List<UUID> getPlayersAllowed(Connection connection, UUID user) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(CHECK_PLAYERS_ALLOWED_BY_PLAYER)) {
-            preparedStatement.setString(1, user.toString());
+        Schema schema = migration.getReadSchema();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.CHECK_PLAYERS_ALLOWED_BY_PLAYER))) {
+            schema.setPlayerId(preparedStatement, 1, user);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 List<UUID> playerIds = new ArrayList<>();
                 while (resultSet.next()) {
-                    playerIds.add(UUID.fromString(resultSet.getString(1)));
+                    playerIds.add(schema.getPlayerId(resultSet, 1));
                 }
                 return playerIds;
             }
         }
     }
 
-    private boolean isPlayerAllowed(Connection connection, UUID user, UUID allowedPlayer) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(CHECK_PLAYER_ALLOWED_BY_PLAYER)) {
-            preparedStatement.setString(1, user.toString());
-            preparedStatement.setString(2, allowedPlayer.toString());
+    private boolean isPlayerAllowed(Connection connection, Schema schema, UUID user, UUID allowedPlayer)
+        throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            schema.getQuery(Schema.Query.CHECK_PLAYER_ALLOWED_BY_PLAYER))) {
+            schema.setPlayerId(preparedStatement, 1, user);
+            schema.setPlayerId(preparedStatement, 2, allowedPlayer);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 return resultSet.next() && resultSet.getBoolean(1);
@@ -93,63 +168,124 @@ public class PlayerDatabase {
     }
 
     public boolean addAllowedPlayer(UUID user, UUID allowedPlayer) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            return setAllowedPlayer(connection, OperationType.ADD_PLAYER, user, allowedPlayer);
+        return pool.handleFuture(addAllowedPlayerAsync(user, allowedPlayer));
+    }
+
+    /**
+     * The trust graph is updated on the database thread once the change is committed.
+     *
+     * @return future of whether the player wasn't allowed before
+     */
+    public CompletableFuture<Boolean> addAllowedPlayerAsync(UUID user, UUID allowedPlayer) {
+        return pool.execute(connection -> {
+            boolean added = setAllowedPlayer(connection, OperationType.ADD_PLAYER, user, allowedPlayer);
+            changeTrustGraph(graph -> graph.add(user, allowedPlayer));
+            recentWrites.add(user);
+            return added;
         });
     }
 
     public boolean removeAllowedPlayer(UUID user, UUID allowedPlayer) throws ExecutionException {
-        return pool.executeFuture(connection -> {
-            return setAllowedPlayer(connection, OperationType.REMOVE_PLAYER, user, allowedPlayer);
+        return pool.handleFuture(removeAllowedPlayerAsync(user, allowedPlayer));
+    }
+
+    /**
+     * @return future of whether the player was allowed before
+     */
+    public CompletableFuture<Boolean> removeAllowedPlayerAsync(UUID user, UUID allowedPlayer) {
+        return pool.execute(connection -> {
+            boolean removed = setAllowedPlayer(connection, OperationType.REMOVE_PLAYER, user, allowedPlayer);
+            changeTrustGraph(graph -> graph.remove(user, allowedPlayer));
+            recentWrites.add(user);
+            return removed;
         });
     }
 
     public void removeAllowedPlayers(UUID user) throws ExecutionException {
-        pool.executeFuture(connection -> {
+        pool.handleFuture(removeAllowedPlayersAsync(user));
+    }
+
+    public CompletableFuture<Void> removeAllowedPlayersAsync(UUID user) {
+        return pool.execute(connection -> {
             removeAllowedPlayers(connection, user);
+            changeTrustGraph(graph -> graph.removeAll(user));
+            recentWrites.add(user);
         });
     }
 
-    public void removeAllowedPlayers(Connection connection, UUID user) throws SQLException {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(REMOVE_ALLOWED_PLAYERS)) {
-            preparedStatement.setString(1, user.toString());
-            preparedStatement.executeUpdate();
-        }
-    }
+    public void removeAllowedPlayers(Connection connection, UUID user) throws Exception {
+        migration.write((readSchema, writeSchemas) -> {
+            try {
+                connection.setAutoCommit(false);
 
-    private boolean setAllowedPlayer(Connection connection, OperationType operationType, UUID user, UUID allowedPlayer) throws SQLException {
-        try {
-            connection.setAutoCommit(false);
+                for (Schema schema : writeSchemas) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        schema.getQuery(Schema.Query.REMOVE_ALLOWED_PLAYERS))) {
+                        schema.setPlayerId(preparedStatement, 1, user);
+                        preparedStatement.executeUpdate();
+                    }
+                }
 
-            boolean playerAllowed = isPlayerAllowed(connection, user, allowedPlayer);
-            if (OperationType.ADD_PLAYER == operationType && playerAllowed) {
-                return false;
-            } else if (operationType == OperationType.REMOVE_PLAYER && !playerAllowed) {
-                return false;
+                connection.commit();
+                return null;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
+        });
+    }
+
+    private boolean setAllowedPlayer(Connection connection, OperationType operationType, UUID user, UUID allowedPlayer) throws Exception {
+        return migration.write((readSchema, writeSchemas) -> {
+            try {
+                connection.setAutoCommit(false);
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(operationType.getQuery())) {
-                preparedStatement.setString(1, user.toString());
-                preparedStatement.setString(2, allowedPlayer.toString());
-                return preparedStatement.executeUpdate() > 0;
+                boolean playerAllowed = isPlayerAllowed(connection, readSchema, user, allowedPlayer);
+                if (OperationType.ADD_PLAYER == operationType && playerAllowed ||
+                    operationType == OperationType.REMOVE_PLAYER && !playerAllowed) {
+                    connection.commit();
+                    return false;
+                }
+
+                // The result is given by the schema being read, the others only mirror it
+                boolean changed = false;
+                for (Schema schema : writeSchemas) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        schema.getQuery(operationType.getQuery()))) {
+                        schema.setPlayerId(preparedStatement, 1, user);
+                        schema.setPlayerId(preparedStatement, 2, allowedPlayer);
+                        int updatedRows = preparedStatement.executeUpdate();
+                        if (schema == readSchema) {
+                            changed = updatedRows > 0;
+                        }
+                    }
+                }
+
+                connection.commit();
+                return changed;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
-        } finally {
-            connection.setAutoCommit(true);
-        }
+        });
     }
 
     private enum OperationType {
 
-        ADD_PLAYER(ADD_ALLOWED_PLAYER),
-        REMOVE_PLAYER(REMOVE_ALLOWED_PLAYER);
+        ADD_PLAYER(Schema.Query.ADD_ALLOWED_PLAYER),
+        REMOVE_PLAYER(Schema.Query.REMOVE_ALLOWED_PLAYER);
 
-        private final String query;
+        private final Schema.Query query;
 
-        OperationType(String query) {
+        OperationType(Schema.Query query) {
             this.query = query;
         }
 
-        public String getQuery() {
+        public Schema.Query getQuery() {
             return query;
         }
     }
@@ -0,0 +1,139 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-player protection decisions for chunk sections, for players that keep interacting in the same area.
+ * <p>
+ * A decision is computed for the whole section and its border: either no block protects it against the player, or
+ * some block does and each position must still be checked. Decisions are dropped when a block nearby becomes
+ * permanent, when the players that allowed the player change or when the TTL elapses. Protection only expires with
+ * time, so an "allowed" decision never becomes wrong just by waiting: expired decisions are kept until new ones need
+ * the room, as the last known verdict while the database is unavailable.
+ */
+public class PlayerDecisions {
+
+    private final Map<ProtectionCell, Map<DecisionKey, Decision>> sections = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final long decisionTtlNanos;
+    private final int maxSections;
+
+    public PlayerDecisions(Configuration configuration) {
+        this.decisionTtlNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getPlayerDecisionTtlMillis());
+        this.maxSections = configuration.getPlayerDecisionSections();
+    }
+
+    /**
+     * @param allowingPlayers players that allowed the player, decisions taken for other players are ignored
+     * @return true if nothing in the section protects against the player, false if it must be checked per position
+     * and null if there is no decision
+     */
+    public Boolean getDecision(UUID playerId, ProtectionCell section, int radius, Set<UUID> allowingPlayers) {
+        Map<DecisionKey, Decision> decisions = sections.get(section);
+        Decision decision = decisions == null ? null : decisions.get(new DecisionKey(playerId, radius));
+        if (decision == null) {
+            misses.increment();
+            return null;
+        }
+        if (!decision.allowingPlayers().equals(allowingPlayers)) {
+            decisions.remove(new DecisionKey(playerId, radius), decision);
+            misses.increment();
+            return null;
+        }
+        if (decision.expiration() - System.nanoTime() < 0) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return decision.allowed();
+    }
+
+    /**
+     * @return the decision even if expired, null if there is none for the players that allowed the player
+     */
+    public Boolean getLastDecision(UUID playerId, ProtectionCell section, int radius, Set<UUID> allowingPlayers) {
+        Map<DecisionKey, Decision> decisions = sections.get(section);
+        Decision decision = decisions == null ? null : decisions.get(new DecisionKey(playerId, radius));
+        if (decision == null || !decision.allowingPlayers().equals(allowingPlayers)) {
+            return null;
+        }
+        return decision.allowed();
+    }
+
+    /**
+     * @return the value to give to {@link #setDecision(UUID, ProtectionCell, int, Set, boolean, long)} once the query
+     * is done
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Remembers the decision, unless protection changed since the generation was read.
+     */
+    public void setDecision(UUID playerId, ProtectionCell section, int radius, Set<UUID> allowingPlayers,
+        boolean allowed, long queryGeneration) {
+        long now = System.nanoTime();
+        if (sections.size() >= maxSections) {
+            sections.values().removeIf(decisions -> {
+                decisions.values().removeIf(decision -> decision.expiration() - now < 0);
+                return decisions.isEmpty();
+            });
+            if (sections.size() >= maxSections) {
+                return;
+            }
+        }
+
+        sections.computeIfAbsent(section, key -> new ConcurrentHashMap<>())
+                .put(new DecisionKey(playerId, radius), new Decision(allowingPlayers, allowed, now + decisionTtlNanos));
+        // A block could have become permanent while querying
+        if (generation.get() != queryGeneration) {
+            sections.remove(section);
+        }
+    }
+
+    /**
+     * Forgets decisions of sections that may have a permanent block within distance of the position.
+     */
+    public void invalidate(BlockPosition position, int distance) {
+        generation.incrementAndGet();
+        if (sections.isEmpty()) {
+            return;
+        }
+
+        Set<ProtectionCell> nearbySections = new HashSet<>();
+        ProtectionCell.addAround(nearbySections, position, distance);
+        for (ProtectionCell section : nearbySections) {
+            sections.remove(section);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getSectionCount() {
+        return sections.size();
+    }
+
+    private record DecisionKey(UUID playerId, int radius) {
+    }
+
+    private record Decision(Set<UUID> allowingPlayers, boolean allowed, long expiration) {
+    }
+}
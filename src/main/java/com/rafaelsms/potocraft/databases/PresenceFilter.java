@@ -0,0 +1,77 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chunks that may have protected blocks within protection distance, as one bitmap per region of 32x32 chunks.
+ * <p>
+ * Each block marks every chunk within {@link Configuration#WRITE_DISTANCE_PROTECTION} of it, so a check only looks at
+ * its own chunk. Bits are never cleared when blocks are removed: false positives only cost a query, the filter is
+ * rebuilt on every start.
+ */
+public class PresenceFilter {
+
+    private static final int REGION_BITS = 5;
+    private static final int REGION_MASK = (1 << REGION_BITS) - 1;
+    private static final int WORDS_PER_REGION = (1 << (REGION_BITS * 2)) / Long.SIZE;
+    private static final int DILATION = Configuration.WRITE_DISTANCE_PROTECTION;
+
+    private final Map<UUID, Map<Long, AtomicLongArray>> worlds = new ConcurrentHashMap<>();
+
+    public void addBlock(UUID worldId, int x, int z) {
+        addArea(worldId, x, x, z, z);
+    }
+
+    /**
+     * Adds a chunk that has protected blocks.
+     */
+    public void addChunk(UUID worldId, int chunkX, int chunkZ) {
+        addArea(worldId, chunkX << 4, (chunkX << 4) + 15, chunkZ << 4, (chunkZ << 4) + 15);
+    }
+
+    private void addArea(UUID worldId, int minX, int maxX, int minZ, int maxZ) {
+        Map<Long, AtomicLongArray> regions = worlds.computeIfAbsent(worldId, id -> new ConcurrentHashMap<>());
+        for (int chunkX = (minX - DILATION) >> 4; chunkX <= (maxX + DILATION) >> 4; chunkX++) {
+            for (int chunkZ = (minZ - DILATION) >> 4; chunkZ <= (maxZ + DILATION) >> 4; chunkZ++) {
+                AtomicLongArray region =
+                    regions.computeIfAbsent(getRegionKey(chunkX, chunkZ), key -> new AtomicLongArray(WORDS_PER_REGION));
+                int bit = getBit(chunkX, chunkZ);
+                long mask = 1L << (bit & 63);
+                if ((region.get(bit >> 6) & mask) == 0) {
+                    region.getAndUpdate(bit >> 6, word -> word | mask);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if there are certainly no protected blocks within protection distance
+     */
+    public boolean mayBeProtected(UUID worldId, int x, int z) {
+        Map<Long, AtomicLongArray> regions = worlds.get(worldId);
+        if (regions == null) {
+            return false;
+        }
+
+        int chunkX = x >> 4, chunkZ = z >> 4;
+        AtomicLongArray region = regions.get(getRegionKey(chunkX, chunkZ));
+        if (region == null) {
+            return false;
+        }
+        int bit = getBit(chunkX, chunkZ);
+        return (region.get(bit >> 6) & (1L << (bit & 63))) != 0;
+    }
+
+    private static long getRegionKey(int chunkX, int chunkZ) {
+        return ((long) (chunkX >> REGION_BITS) << 32) | ((chunkZ >> REGION_BITS) & 0xFFFFFFFFL);
+    }
+
+    private static int getBit(int chunkX, int chunkZ) {
+        return ((chunkX & REGION_MASK) << REGION_BITS) | (chunkZ & REGION_MASK);
+    }
+}
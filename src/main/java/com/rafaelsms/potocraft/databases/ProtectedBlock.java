@@ -0,0 +1,20 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.util.UUID;
+
+/**
+ * A row of the protectedBlocks table.
+ *
+ * @param ownerId      the player that placed the block
+ * @param x            block x coordinate
+ * @param y            block y coordinate
+ * @param z            block z coordinate
+ * @param dateModified epoch milliseconds of the last modification
+ * @param temporary    if the block doesn't protect its surroundings yet
+ */
+public record ProtectedBlock(UUID ownerId, int x, int y, int z, long dateModified, boolean temporary) {
+
+    public ProtectedBlock promoted(long date) {
+        return new ProtectedBlock(ownerId, x, y, z, date, false);
+    }
+}
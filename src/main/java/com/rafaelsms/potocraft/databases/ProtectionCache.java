@@ -0,0 +1,691 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory copy of protectedBlocks for the chunks loaded in protected worlds.
+ * <p>
+ * Every loaded chunk retains the chunks around it (up to the write protection distance), so any check done inside a
+ * loaded chunk can be answered without querying the database. Chunks are loaded asynchronously, checks fall back to
+ * the database while the area isn't ready.
+ * <p>
+ * Retaining, releasing, lookups and changes happen on the main thread, only loading completes on the database
+ * threads.
+ * <p>
+ * On start, loads are deferred and then made in tiles with limited concurrency, so the burst of spawn chunks and
+ * players joining doesn't take every connection.
+ */
+public class ProtectionCache {
+
+    private static final int CHUNK_MARGIN = (Configuration.WRITE_DISTANCE_PROTECTION >> 4) + 1;
+    private static final long PROTECTION_DURATION = TimeUnit.DAYS.toMillis(Configuration.DAYS_PROTECTED);
+    private static final int TILE_BITS = 3;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final long PROGRESS_LOG_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Map<UUID, Map<Long, ChunkEntry>> worlds = new ConcurrentHashMap<>();
+    private final DatabasePool pool;
+    private final AreaLoader loader;
+    private final WrittenAreas writtenAreas;
+    private final Object deferLock = new Object();
+    // Chunks waiting for loadDeferred, null when loads are submitted on retain
+    private Map<UUID, Set<Long>> deferredChunks = null;
+
+    public ProtectionCache(DatabasePool pool, AreaLoader loader, WrittenAreas writtenAreas) {
+        this.pool = pool;
+        this.loader = loader;
+        this.writtenAreas = writtenAreas;
+    }
+
+    public void retainChunk(UUID worldId, int chunkX, int chunkZ) {
+        Map<Long, ChunkEntry> chunks = worlds.computeIfAbsent(worldId, id -> new ConcurrentHashMap<>());
+
+        List<Long> chunksToLoad = new ArrayList<>();
+        for (int x = chunkX - CHUNK_MARGIN; x <= chunkX + CHUNK_MARGIN; x++) {
+            for (int z = chunkZ - CHUNK_MARGIN; z <= chunkZ + CHUNK_MARGIN; z++) {
+                long chunkKey = getChunkKey(x, z);
+                ChunkEntry entry = chunks.computeIfAbsent(chunkKey, key -> new ChunkEntry());
+                entry.references++;
+                if (entry.startLoading()) {
+                    chunksToLoad.add(chunkKey);
+                }
+            }
+        }
+
+        loadChunks(worldId, chunks, chunksToLoad);
+    }
+
+    public void releaseChunk(UUID worldId, int chunkX, int chunkZ) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return;
+        }
+
+        for (int x = chunkX - CHUNK_MARGIN; x <= chunkX + CHUNK_MARGIN; x++) {
+            for (int z = chunkZ - CHUNK_MARGIN; z <= chunkZ + CHUNK_MARGIN; z++) {
+                long chunkKey = getChunkKey(x, z);
+                ChunkEntry entry = chunks.get(chunkKey);
+                if (entry != null && --entry.references <= 0) {
+                    chunks.remove(chunkKey);
+                }
+            }
+        }
+    }
+
+    public void releaseWorld(UUID worldId) {
+        worlds.remove(worldId);
+    }
+
+    /**
+     * @return true if every chunk that could protect the location is loaded in memory
+     */
+    public boolean isCached(UUID worldId, int x, int z, int radius) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return false;
+        }
+
+        for (int chunkX = (x - radius) >> 4; chunkX <= (x + radius) >> 4; chunkX++) {
+            for (int chunkZ = (z - radius) >> 4; chunkZ <= (z + radius) >> 4; chunkZ++) {
+                ChunkEntry entry = chunks.get(getChunkKey(chunkX, chunkZ));
+                if (entry == null || !entry.isLoaded()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same semantics of IS_PROTECTED_BY_ANY and IS_PROTECTED_BY_OTHER_PLAYER, the area must be cached.
+     *
+     * @param ignoredOwners owners that can't protect the block against the player (the player itself and players
+     *                      that allowed them)
+     * @return the owner of a permanent and unexpired block in the radius, if any
+     * @see #isCached(UUID, int, int, int)
+     */
+    public Optional<UUID> getBlockOwner(UUID worldId, int x, int y, int z, int radius, Set<UUID> ignoredOwners) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return Optional.empty();
+        }
+
+        Box box = new Box(x - radius, x + radius, y - radius, y + radius, z - radius, z + radius);
+        long expirationDate = System.currentTimeMillis() - PROTECTION_DURATION;
+        for (int chunkX = box.minX() >> 4; chunkX <= box.maxX() >> 4; chunkX++) {
+            for (int chunkZ = box.minZ() >> 4; chunkZ <= box.maxZ() >> 4; chunkZ++) {
+                ChunkEntry entry = chunks.get(getChunkKey(chunkX, chunkZ));
+                if (entry == null) {
+                    continue;
+                }
+                Optional<UUID> owner = entry.getBlockOwner(chunkX, chunkZ, box, expirationDate, ignoredOwners);
+                if (owner.isPresent()) {
+                    return owner;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Same semantics of COUNT_NEARBY_BLOCKS: temporary and expired blocks are counted too.
+     *
+     * @param limit the count stops once it is reached
+     * @return blocks of the owners in the radius, null if the area isn't cached
+     */
+    public Integer countBlocks(UUID worldId, int x, int y, int z, int radius, Set<UUID> owners, int limit) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return null;
+        }
+
+        Box box = new Box(x - radius, x + radius, y - radius, y + radius, z - radius, z + radius);
+        int count = 0;
+        for (int chunkX = box.minX() >> 4; chunkX <= box.maxX() >> 4; chunkX++) {
+            for (int chunkZ = box.minZ() >> 4; chunkZ <= box.maxZ() >> 4; chunkZ++) {
+                ChunkEntry entry = chunks.get(getChunkKey(chunkX, chunkZ));
+                int chunkCount = entry == null ? -1 : entry.countBlocks(box, owners, false, limit - count);
+                if (chunkCount < 0) {
+                    return null;
+                }
+                count += chunkCount;
+                if (count >= limit) {
+                    return count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return if the owners have temporary blocks in the radius other than the one at its center, null if the area
+     * isn't cached
+     */
+    public Boolean hasTemporaryBlocks(UUID worldId, int x, int y, int z, int radius, Set<UUID> owners) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return null;
+        }
+
+        Box box = new Box(x - radius, x + radius, y - radius, y + radius, z - radius, z + radius);
+        ProtectedBlock center = null;
+        int count = 0;
+        for (int chunkX = box.minX() >> 4; chunkX <= box.maxX() >> 4; chunkX++) {
+            for (int chunkZ = box.minZ() >> 4; chunkZ <= box.maxZ() >> 4; chunkZ++) {
+                ChunkEntry entry = chunks.get(getChunkKey(chunkX, chunkZ));
+                int chunkCount = entry == null ? -1 : entry.countBlocks(box, owners, true, 2);
+                if (chunkCount < 0) {
+                    return null;
+                }
+                if (chunkX == x >> 4 && chunkZ == z >> 4) {
+                    center = entry.getBlock(x, y, z);
+                }
+                count += chunkCount;
+            }
+        }
+        // The block at the center is promoted by its own write
+        if (center != null && center.temporary() && owners.contains(center.ownerId())) {
+            count--;
+        }
+        return count > 0;
+    }
+
+    /**
+     * Mirrors BlockDatabase#addProtectedBlock: stores the block and, if it is permanent, promotes nearby temporary
+     * blocks from the same owners.
+     *
+     * @param promotingOwners owners whose blocks are promoted by this block, null if unknown (area will be reloaded)
+     */
+    public void addBlock(UUID worldId, ProtectedBlock block, Set<UUID> promotingOwners) {
+        applyChange(worldId, block.x(), block.z(), 0, entry -> entry.putBlock(block));
+
+        if (block.temporary()) {
+            return;
+        }
+
+        int radius = Configuration.BLOCK_COUNT_SEARCH_RADIUS;
+        if (promotingOwners == null) {
+            reloadArea(worldId, block.x(), block.z(), radius);
+            return;
+        }
+        Box box = new Box(block.x() - radius, block.x() + radius, block.y() - radius, block.y() + radius,
+            block.z() - radius, block.z() + radius);
+        long date = block.dateModified();
+        applyChange(worldId, block.x(), block.z(), radius, entry -> entry.promoteBlocks(box, promotingOwners, date));
+    }
+
+    /**
+     * Stores the block as it is, without promoting others: moved blocks keep their state.
+     */
+    public void putBlock(UUID worldId, ProtectedBlock block) {
+        applyChange(worldId, block.x(), block.z(), 0, entry -> entry.putBlock(block));
+    }
+
+    /**
+     * Finds the rows at the given positions in one pass.
+     *
+     * @return rows of the positions that have one, null if some position isn't cached
+     */
+    public Map<BlockPosition, ProtectedBlock> getBlocks(Collection<BlockPosition> positions) {
+        Map<BlockPosition, ProtectedBlock> blocks = new HashMap<>();
+        for (BlockPosition position : positions) {
+            Map<Long, ChunkEntry> chunks = worlds.get(position.worldId());
+            ChunkEntry entry = chunks == null ? null : chunks.get(getChunkKey(position.x() >> 4, position.z() >> 4));
+            if (entry == null || !entry.isLoaded()) {
+                return null;
+            }
+
+            ProtectedBlock block = entry.getBlock(position.x(), position.y(), position.z());
+            if (block != null) {
+                blocks.put(position, block);
+            }
+        }
+        return blocks;
+    }
+
+    public void removeBlock(UUID worldId, int x, int y, int z) {
+        applyChange(worldId, x, z, 0, entry -> entry.removeBlock(x, y, z));
+    }
+
+    /**
+     * Mirrors REMOVE_EXPIRED_BLOCKS: removes the block only if it is still expired, as it may have been placed again
+     * since it was swept.
+     *
+     * @param expirationDate     epoch milliseconds permanent blocks must be modified before
+     * @param temporaryExpiration epoch milliseconds temporary blocks must be modified before
+     */
+    public void removeExpiredBlock(UUID worldId, int x, int y, int z, long expirationDate, long temporaryExpiration) {
+        applyChange(worldId, x, z, 0, entry -> {
+            ProtectedBlock block = entry.getBlock(x, y, z);
+            if (block != null && block.dateModified() < expirationDate &&
+                (!block.temporary() || block.dateModified() < temporaryExpiration)) {
+                entry.removeBlock(x, y, z);
+            }
+        });
+    }
+
+    private void applyChange(UUID worldId, int x, int z, int radius, Consumer<ChunkEntry> change) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return;
+        }
+
+        for (int chunkX = (x - radius) >> 4; chunkX <= (x + radius) >> 4; chunkX++) {
+            for (int chunkZ = (z - radius) >> 4; chunkZ <= (z + radius) >> 4; chunkZ++) {
+                ChunkEntry entry = chunks.get(getChunkKey(chunkX, chunkZ));
+                if (entry != null) {
+                    entry.applyChange(change);
+                }
+            }
+        }
+    }
+
+    private void reloadArea(UUID worldId, int x, int z, int radius) {
+        Map<Long, ChunkEntry> chunks = worlds.get(worldId);
+        if (chunks == null) {
+            return;
+        }
+
+        List<Long> chunksToLoad = new ArrayList<>();
+        for (int chunkX = (x - radius) >> 4; chunkX <= (x + radius) >> 4; chunkX++) {
+            for (int chunkZ = (z - radius) >> 4; chunkZ <= (z + radius) >> 4; chunkZ++) {
+                long chunkKey = getChunkKey(chunkX, chunkZ);
+                ChunkEntry entry = chunks.get(chunkKey);
+                if (entry != null) {
+                    entry.invalidate();
+                    if (entry.startLoading()) {
+                        chunksToLoad.add(chunkKey);
+                    }
+                }
+            }
+        }
+
+        loadChunks(worldId, chunks, chunksToLoad);
+    }
+
+    private void loadChunks(UUID worldId, Map<Long, ChunkEntry> chunks, List<Long> chunkKeys) {
+        if (chunkKeys.isEmpty()) {
+            return;
+        }
+        synchronized (deferLock) {
+            if (deferredChunks != null) {
+                deferredChunks.computeIfAbsent(worldId, id -> new HashSet<>()).addAll(chunkKeys);
+                return;
+            }
+        }
+        submitLoad(worldId, chunks, chunkKeys, () -> {
+        });
+    }
+
+    /**
+     * Holds chunk loads until {@link #loadDeferred(int)}, chunks are retained as usual meanwhile.
+     */
+    public void deferLoads() {
+        synchronized (deferLock) {
+            if (deferredChunks == null) {
+                deferredChunks = new HashMap<>();
+            }
+        }
+    }
+
+    /**
+     * Loads deferred chunks in tiles of {@link #TILE_SIZE}x{@link #TILE_SIZE} chunks, keeping at most the given
+     * number of queries running, until no chunk is left. Loads are then submitted on retain again.
+     * <p>
+     * Blocks the calling thread until every query is done.
+     *
+     * @return number of tiles loaded
+     */
+    public int loadDeferred(int concurrency) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        long nextLog = System.nanoTime() + PROGRESS_LOG_NANOS;
+        int tiles = 0;
+        try {
+            while (true) {
+                Map<UUID, Set<Long>> batch;
+                synchronized (deferLock) {
+                    if (deferredChunks == null) {
+                        return tiles;
+                    }
+                    if (deferredChunks.isEmpty()) {
+                        deferredChunks = null;
+                        break;
+                    }
+                    batch = deferredChunks;
+                    deferredChunks = new HashMap<>();
+                }
+
+                for (Map.Entry<UUID, Set<Long>> entry : batch.entrySet()) {
+                    Map<Long, ChunkEntry> chunks = worlds.get(entry.getKey());
+                    if (chunks == null) {
+                        continue;
+                    }
+
+                    Map<Long, List<Long>> chunksByTile = new HashMap<>();
+                    for (long chunkKey : entry.getValue()) {
+                        // Chunks released meanwhile don't need to be loaded anymore
+                        if (chunks.containsKey(chunkKey)) {
+                            long tileKey = getChunkKey(getChunkX(chunkKey) >> TILE_BITS, getChunkZ(chunkKey) >> TILE_BITS);
+                            chunksByTile.computeIfAbsent(tileKey, key -> new ArrayList<>()).add(chunkKey);
+                        }
+                    }
+                    for (List<Long> tile : chunksByTile.values()) {
+                        permits.acquire();
+                        submitLoad(entry.getKey(), chunks, tile, permits::release);
+                        tiles++;
+
+                        if (System.nanoTime() - nextLog > 0) {
+                            pool.getLogger().info("Warming up protections: {} areas loaded...", tiles);
+                            nextLog = System.nanoTime() + PROGRESS_LOG_NANOS;
+                        }
+                    }
+                }
+            }
+        } finally {
+            // Wait for the queries still running
+            permits.acquire(concurrency);
+        }
+        return tiles;
+    }
+
+    private void submitLoad(UUID worldId, Map<Long, ChunkEntry> chunks, List<Long> chunkKeys, Runnable onDone) {
+        // Remember which load each entry is waiting for, so a reload discards the older result
+        Map<Long, Integer> generations = new HashMap<>();
+        int minChunkX = Integer.MAX_VALUE, maxChunkX = Integer.MIN_VALUE;
+        int minChunkZ = Integer.MAX_VALUE, maxChunkZ = Integer.MIN_VALUE;
+        for (long chunkKey : chunkKeys) {
+            ChunkEntry chunkEntry = chunks.get(chunkKey);
+            if (chunkEntry == null) {
+                continue;
+            }
+            generations.put(chunkKey, chunkEntry.generation);
+            minChunkX = Math.min(minChunkX, getChunkX(chunkKey));
+            maxChunkX = Math.max(maxChunkX, getChunkX(chunkKey));
+            minChunkZ = Math.min(minChunkZ, getChunkZ(chunkKey));
+            maxChunkZ = Math.max(maxChunkZ, getChunkZ(chunkKey));
+        }
+        if (generations.isEmpty()) {
+            onDone.run();
+            return;
+        }
+
+        int minX = minChunkX << 4, maxX = (maxChunkX << 4) + 15;
+        int minZ = minChunkZ << 4, maxZ = (maxChunkZ << 4) + 15;
+        // Replicas may not have our latest writes yet
+        DatabasePool.DatabaseCallable<Void> load = connection -> {
+            try {
+                loadChunks(connection, worldId, chunks, generations, minX, maxX, minZ, maxZ);
+            } finally {
+                onDone.run();
+            }
+            return null;
+        };
+        if (writtenAreas.isRecentlyWritten(worldId, minX, maxX, minZ, maxZ)) {
+            pool.execute(load);
+        } else {
+            pool.executeRead(load);
+        }
+    }
+
+    private void loadChunks(Connection connection, UUID worldId, Map<Long, ChunkEntry> chunks,
+        Map<Long, Integer> generations, int minX, int maxX, int minZ, int maxZ) {
+        Map<Long, List<ProtectedBlock>> blocksByChunk = new HashMap<>();
+        try {
+            for (ProtectedBlock block : loader.load(connection, worldId, minX, maxX, minZ, maxZ)) {
+                long chunkKey = getChunkKey(block.x() >> 4, block.z() >> 4);
+                blocksByChunk.computeIfAbsent(chunkKey, key -> new ArrayList<>()).add(block);
+            }
+        } catch (Exception exception) {
+            pool.getLogger().warn("Failed to load protected blocks into cache: ", exception);
+            for (Map.Entry<Long, Integer> generation : generations.entrySet()) {
+                ChunkEntry entry = chunks.get(generation.getKey());
+                if (entry != null) {
+                    entry.fail(generation.getValue());
+                }
+            }
+            return;
+        }
+
+        for (Map.Entry<Long, Integer> generation : generations.entrySet()) {
+            ChunkEntry entry = chunks.get(generation.getKey());
+            if (entry != null) {
+                List<ProtectedBlock> blocks = blocksByChunk.getOrDefault(generation.getKey(), List.of());
+                entry.complete(generation.getValue(), blocks);
+            }
+        }
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static int getChunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    private static int getChunkZ(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    private static long getBlockKey(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+    }
+
+    public interface AreaLoader {
+        /**
+         * Loads every protected block (including temporary and expired ones) inside the area.
+         */
+        Collection<ProtectedBlock> load(Connection connection, UUID worldId, int minX, int maxX, int minZ, int maxZ)
+            throws Exception;
+    }
+
+    public interface WrittenAreas {
+        /**
+         * @return if blocks inside the area were written recently, so they must be read from the primary database
+         */
+        boolean isRecentlyWritten(UUID worldId, int minX, int maxX, int minZ, int maxZ);
+    }
+
+    private record Box(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+
+        boolean contains(int x, int y, int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+
+        boolean containsSection(int chunkX, int sectionY, int chunkZ) {
+            return contains(chunkX << 4, sectionY << 4, chunkZ << 4) &&
+                   contains((chunkX << 4) + 15, (sectionY << 4) + 15, (chunkZ << 4) + 15);
+        }
+    }
+
+    private enum State {
+        UNLOADED,
+        LOADING,
+        LOADED,
+    }
+
+    private static class ChunkEntry {
+
+        private final Map<Integer, Section> sections = new HashMap<>();
+        private final List<Consumer<ChunkEntry>> pendingChanges = new ArrayList<>();
+        private volatile State state = State.UNLOADED;
+        private int generation = 0;
+        private int references = 0;
+
+        boolean isLoaded() {
+            return state == State.LOADED;
+        }
+
+        synchronized boolean startLoading() {
+            if (state != State.UNLOADED) {
+                return false;
+            }
+            state = State.LOADING;
+            generation++;
+            return true;
+        }
+
+        synchronized void invalidate() {
+            state = State.UNLOADED;
+            sections.clear();
+            pendingChanges.clear();
+        }
+
+        synchronized void fail(int loadGeneration) {
+            if (loadGeneration == generation && state == State.LOADING) {
+                invalidate();
+            }
+        }
+
+        synchronized void complete(int loadGeneration, List<ProtectedBlock> blocks) {
+            if (loadGeneration != generation || state != State.LOADING) {
+                return;
+            }
+
+            for (ProtectedBlock block : blocks) {
+                putBlock(block);
+            }
+            // Replay changes made while loading, they may or may not be included on the loaded rows
+            for (Consumer<ChunkEntry> change : pendingChanges) {
+                change.accept(this);
+            }
+            pendingChanges.clear();
+            state = State.LOADED;
+        }
+
+        synchronized void applyChange(Consumer<ChunkEntry> change) {
+            switch (state) {
+                case LOADED -> change.accept(this);
+                case LOADING -> pendingChanges.add(change);
+                default -> {
+                    // Nothing to keep coherent, it will be loaded from the database
+                }
+            }
+        }
+
+        void putBlock(ProtectedBlock block) {
+            Section section = sections.computeIfAbsent(block.y() >> 4, sectionY -> new Section());
+            section.blocks.put(getBlockKey(block.x(), block.y(), block.z()), block);
+            section.latestProtection = null;
+        }
+
+        synchronized ProtectedBlock getBlock(int x, int y, int z) {
+            Section section = sections.get(y >> 4);
+            return section == null ? null : section.blocks.get(getBlockKey(x, y, z));
+        }
+
+        /**
+         * @return blocks of the owners inside the box up to the limit, -1 if the chunk isn't loaded
+         */
+        synchronized int countBlocks(Box box, Set<UUID> owners, boolean onlyTemporary, int limit) {
+            if (state != State.LOADED) {
+                return -1;
+            }
+
+            int count = 0;
+            for (int sectionY = box.minY() >> 4; sectionY <= box.maxY() >> 4; sectionY++) {
+                Section section = sections.get(sectionY);
+                if (section == null) {
+                    continue;
+                }
+
+                for (ProtectedBlock block : section.blocks.values()) {
+                    if ((!onlyTemporary || block.temporary()) && owners.contains(block.ownerId()) &&
+                        box.contains(block.x(), block.y(), block.z()) && ++count >= limit) {
+                        return count;
+                    }
+                }
+            }
+            return count;
+        }
+
+        void removeBlock(int x, int y, int z) {
+            Section section = sections.get(y >> 4);
+            if (section != null && section.blocks.remove(getBlockKey(x, y, z)) != null) {
+                section.latestProtection = null;
+                if (section.blocks.isEmpty()) {
+                    sections.remove(y >> 4);
+                }
+            }
+        }
+
+        void promoteBlocks(Box box, Set<UUID> owners, long date) {
+            for (Section section : sections.values()) {
+                boolean changed = false;
+                for (Map.Entry<Long, ProtectedBlock> entry : section.blocks.entrySet()) {
+                    ProtectedBlock block = entry.getValue();
+                    if (block.temporary() && owners.contains(block.ownerId()) &&
+                        box.contains(block.x(), block.y(), block.z())) {
+                        entry.setValue(block.promoted(date));
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    section.latestProtection = null;
+                }
+            }
+        }
+
+        synchronized Optional<UUID> getBlockOwner(int chunkX, int chunkZ, Box box, long expirationDate,
+            Set<UUID> ignoredOwners) {
+            for (int sectionY = box.minY() >> 4; sectionY <= box.maxY() >> 4; sectionY++) {
+                Section section = sections.get(sectionY);
+                if (section == null) {
+                    continue;
+                }
+
+                // Whole section is inside the radius: we just need to know its owners
+                if (box.containsSection(chunkX, sectionY, chunkZ)) {
+                    for (Map.Entry<UUID, Long> entry : section.getLatestProtection().entrySet()) {
+                        if (entry.getValue() >= expirationDate && !ignoredOwners.contains(entry.getKey())) {
+                            return Optional.of(entry.getKey());
+                        }
+                    }
+                    continue;
+                }
+
+                for (ProtectedBlock block : section.blocks.values()) {
+                    if (!block.temporary() && block.dateModified() >= expirationDate &&
+                        !ignoredOwners.contains(block.ownerId()) && box.contains(block.x(), block.y(), block.z())) {
+                        return Optional.of(block.ownerId());
+                    }
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    private static class Section {
+
+        private final Map<Long, ProtectedBlock> blocks = new HashMap<>();
+        // Latest modification date of permanent blocks per owner, rebuilt lazily after changes
+        private Map<UUID, Long> latestProtection = null;
+
+        Map<UUID, Long> getLatestProtection() {
+            if (latestProtection == null) {
+                latestProtection = new HashMap<>();
+                for (ProtectedBlock block : blocks.values()) {
+                    if (!block.temporary()) {
+                        latestProtection.merge(block.ownerId(), block.dateModified(), Math::max);
+                    }
+                }
+            }
+            return latestProtection;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A 16x16x16 cell of protected blocks (a chunk section), aggregated per owner by the compact schema.
+ */
+public record ProtectionCell(UUID worldId, int x, int y, int z) {
+
+    public static final int SIZE = 16;
+
+    public static ProtectionCell of(BlockPosition position) {
+        return new ProtectionCell(position.worldId(), Math.floorDiv(position.x(), SIZE),
+            Math.floorDiv(position.y(), SIZE), Math.floorDiv(position.z(), SIZE));
+    }
+
+    /**
+     * Adds every cell intersecting the box of the given radius around the position.
+     */
+    public static void addAround(Set<ProtectionCell> cells, BlockPosition position, int radius) {
+        for (int x = Math.floorDiv(position.x() - radius, SIZE); x <= Math.floorDiv(position.x() + radius, SIZE); x++) {
+            for (int y = Math.floorDiv(position.y() - radius, SIZE); y <= Math.floorDiv(position.y() + radius, SIZE);
+                 y++) {
+                for (int z = Math.floorDiv(position.z() - radius, SIZE);
+                     z <= Math.floorDiv(position.z() + radius, SIZE); z++) {
+                    cells.add(new ProtectionCell(position.worldId(), x, y, z));
+                }
+            }
+        }
+    }
+
+    public int minX() {
+        return x * SIZE;
+    }
+
+    public int minY() {
+        return y * SIZE;
+    }
+
+    public int minZ() {
+        return z * SIZE;
+    }
+}
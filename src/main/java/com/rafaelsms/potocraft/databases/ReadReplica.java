@@ -0,0 +1,77 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-only copy of the database, scored by its recent latency and the reads running on it.
+ */
+class ReadReplica {
+
+    // Weight of each read in the latency average
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String name;
+    private final HikariDataSource dataSource;
+
+    private double latencyNanos = 0;
+    private int runningReads = 0;
+    private long failedAt = 0;
+    private boolean failed = false;
+
+    ReadReplica(String name, HikariDataSource dataSource) {
+        this.name = name;
+        this.dataSource = dataSource;
+    }
+
+    Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * @return false if it failed recently
+     */
+    synchronized boolean isAvailable(long now) {
+        return !failed || now - failedAt > RETRY_NANOS;
+    }
+
+    /**
+     * @return expected latency of one more read, lower is better
+     */
+    synchronized double getScore() {
+        return latencyNanos * (runningReads + 1);
+    }
+
+    synchronized long startRead() {
+        runningReads++;
+        return System.nanoTime();
+    }
+
+    synchronized void finishRead(long start) {
+        runningReads--;
+        failed = false;
+        latencyNanos += (System.nanoTime() - start - latencyNanos) * LATENCY_WEIGHT;
+    }
+
+    synchronized void failRead() {
+        runningReads--;
+        failed = true;
+        failedAt = System.nanoTime();
+    }
+
+    synchronized long getLatencyMicros() {
+        return (long) (latencyNanos / TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys written recently by this server, read from the primary database until the replicas are expected to have the
+ * writes. Does nothing without replicas.
+ */
+public class RecentWrites<K> {
+
+    private final long pinNanos;
+    private final Map<K, Long> pinnedUntil = new ConcurrentHashMap<>();
+
+    public RecentWrites(DatabasePool pool, int pinMillis) {
+        this.pinNanos = pool.hasReplicas() ? TimeUnit.MILLISECONDS.toNanos(pinMillis) : 0;
+    }
+
+    public void add(K key) {
+        addAll(List.of(key));
+    }
+
+    public void addAll(Collection<K> keys) {
+        if (pinNanos <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        pinnedUntil.values().removeIf(until -> until - now <= 0);
+        for (K key : keys) {
+            pinnedUntil.put(key, now + pinNanos);
+        }
+    }
+
+    public boolean contains(K key) {
+        Long until = pinnedUntil.get(key);
+        return until != null && until - System.nanoTime() > 0;
+    }
+}
@@ -0,0 +1,194 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Permanent protected blocks of a region of 32x32 chunks, like Minecraft's region files, mapped in memory.
+ * <p>
+ * Files are never changed once written, compaction writes the next generation next to it:
+ * <pre>
+ * int magic, int version, int palette size, int entry count
+ * palette: owner UUIDs (most and least significant bits)
+ * directory: first entry of each section, plus the entry count at the end
+ * entries: {@link RegionSection} entries in section order, owners are palette indexes
+ * </pre>
+ */
+public final class RegionFile {
+
+    public static final int REGION_BITS = 5;
+    public static final int MIN_SECTION_Y = -4;
+    public static final int SECTIONS_PER_CHUNK = 24;
+    public static final int SECTIONS = (1 << REGION_BITS * 2) * SECTIONS_PER_CHUNK;
+    public static final RegionFile EMPTY = new RegionFile(null, 0, new UUID[0], null, 0);
+
+    private static final int MAGIC = 0x50505246;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int UUID_SIZE = 16;
+
+    private final Path path;
+    private final int generation;
+    private final UUID[] palette;
+    private final ByteBuffer buffer;
+    private final int directoryOffset;
+
+    private RegionFile(Path path, int generation, UUID[] palette, ByteBuffer buffer, int directoryOffset) {
+        this.path = path;
+        this.generation = generation;
+        this.palette = palette;
+        this.buffer = buffer;
+        this.directoryOffset = directoryOffset;
+    }
+
+    /**
+     * @return index of the chunk section in the region, -1 if the section is out of the height supported
+     */
+    public static int getSectionIndex(int chunkX, int sectionY, int chunkZ) {
+        int y = sectionY - MIN_SECTION_Y;
+        if (y < 0 || y >= SECTIONS_PER_CHUNK) {
+            return -1;
+        }
+        int mask = (1 << REGION_BITS) - 1;
+        return (((chunkX & mask) << REGION_BITS) | (chunkZ & mask)) * SECTIONS_PER_CHUNK + y;
+    }
+
+    public static RegionFile open(Path path, int generation) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a protection region file: " + path);
+        }
+
+        UUID[] palette = new UUID[buffer.getInt(8)];
+        for (int i = 0; i < palette.length; i++) {
+            int offset = HEADER_SIZE + i * UUID_SIZE;
+            palette[i] = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+        }
+        return new RegionFile(path, generation, palette, buffer, HEADER_SIZE + palette.length * UUID_SIZE);
+    }
+
+    /**
+     * Writes the sections to a new file, replacing the file at the path atomically.
+     */
+    public static RegionFile write(Path path, int generation, RegionSection[] sections) throws IOException {
+        List<UUID> palette = new ArrayList<>();
+        Map<UUID, Integer> paletteIndexes = new HashMap<>();
+        int entryCount = 0;
+        for (RegionSection section : sections) {
+            // Sections copied from a file share its palette, only owners with entries are kept
+            for (int entry = 0; entry < section.getEntryCount(); entry++) {
+                UUID owner = section.getOwners()[section.getEntries().getInt(entry * RegionSection.ENTRY_SIZE)];
+                if (paletteIndexes.putIfAbsent(owner, palette.size()) == null) {
+                    palette.add(owner);
+                }
+            }
+            entryCount += section.getEntryCount();
+        }
+
+        int directoryOffset = HEADER_SIZE + palette.size() * UUID_SIZE;
+        int entriesOffset = directoryOffset + (SECTIONS + 1) * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(entriesOffset + entryCount * RegionSection.ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(palette.size()).putInt(entryCount);
+        for (UUID owner : palette) {
+            buffer.putLong(owner.getMostSignificantBits()).putLong(owner.getLeastSignificantBits());
+        }
+
+        int entry = 0;
+        for (int index = 0; index < SECTIONS; index++) {
+            buffer.putInt(directoryOffset + index * 4, entry);
+            RegionSection section = sections[index];
+            ByteBuffer entries = section.getEntries();
+            for (int sectionEntry = 0; sectionEntry < section.getEntryCount(); sectionEntry++) {
+                int from = sectionEntry * RegionSection.ENTRY_SIZE;
+                int to = entriesOffset + entry * RegionSection.ENTRY_SIZE;
+                buffer.put(to, entries, from, RegionSection.ENTRY_SIZE);
+                // Entries point to the section owners, the file has a palette of its own
+                buffer.putInt(to, paletteIndexes.get(section.getOwners()[entries.getInt(from)]));
+                entry++;
+            }
+        }
+        buffer.putInt(directoryOffset + SECTIONS * 4, entry);
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, generation);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return a copy of the section, to be written again
+     */
+    public RegionSection getSection(int index) {
+        if (buffer == null) {
+            return RegionSection.EMPTY;
+        }
+        int first = getFirstEntry(index);
+        int count = getFirstEntry(index + 1) - first;
+        if (count == 0) {
+            return RegionSection.EMPTY;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(count * RegionSection.ENTRY_SIZE);
+        entries.put(0, buffer, getEntryOffset(first), entries.capacity());
+        return new RegionSection(palette, entries);
+    }
+
+    /**
+     * @return palette index of an owner protecting the box inside the section, {@link RegionSection#NOT_FOUND} or
+     * {@link RegionSection#UNKNOWN}
+     */
+    public int findOwner(int index, Set<UUID> ignoredOwners, long expirationDate, int minX, int maxX, int minY,
+        int maxY, int minZ, int maxZ) {
+        if (buffer == null) {
+            return RegionSection.NOT_FOUND;
+        }
+        int first = getFirstEntry(index);
+        int count = getFirstEntry(index + 1) - first;
+        if (count == 0) {
+            return RegionSection.NOT_FOUND;
+        }
+        return RegionSection.findOwner(buffer, getEntryOffset(first), count, palette, ignoredOwners, expirationDate,
+            minX, maxX, minY, maxY, minZ, maxZ);
+    }
+
+    public UUID getOwner(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    private int getFirstEntry(int index) {
+        return buffer.getInt(directoryOffset + index * 4);
+    }
+
+    private int getEntryOffset(int entry) {
+        return directoryOffset + (SECTIONS + 1) * 4 + entry * RegionSection.ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,140 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the sections changed since region files were last compacted.
+ * <p>
+ * Compaction rotates the journal first, so every section changed after it is in the new journal and the old ones can
+ * be deleted once compaction is done.
+ */
+public class RegionJournal {
+
+    private static final String PREFIX = "journal.";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final List<Path> closedJournals = new ArrayList<>();
+    private DataOutputStream output;
+    private int number;
+
+    public RegionJournal(Path directory) throws IOException {
+        this.directory = directory;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(RegionJournal::isJournal)
+                 .sorted(Comparator.comparingInt(RegionJournal::getNumber))
+                 .forEach(closedJournals::add);
+        }
+        this.number = closedJournals.isEmpty() ? 0 : getNumber(closedJournals.get(closedJournals.size() - 1)) + 1;
+        open();
+    }
+
+    private void open() throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(directory.resolve(PREFIX + number + SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+    }
+
+    /**
+     * Reads the sections of every journal left by the last run, oldest first.
+     */
+    public synchronized void replay(SectionConsumer consumer) throws IOException {
+        for (Path journal : closedJournals) {
+            try (InputStream stream = Files.newInputStream(journal);
+                 DataInputStream input = new DataInputStream(new BufferedInputStream(stream))) {
+                while (true) {
+                    UUID worldId;
+                    try {
+                        worldId = new UUID(input.readLong(), input.readLong());
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int regionX = input.readInt();
+                    int regionZ = input.readInt();
+                    int index = input.readInt();
+                    UUID[] owners = new UUID[input.readInt()];
+                    for (int i = 0; i < owners.length; i++) {
+                        owners[i] = new UUID(input.readLong(), input.readLong());
+                    }
+                    byte[] entries = new byte[input.readInt()];
+                    input.readFully(entries);
+                    consumer.accept(worldId, regionX, regionZ, index,
+                        new RegionSection(owners, ByteBuffer.wrap(entries)));
+                }
+            }
+        }
+    }
+
+    public synchronized void append(UUID worldId, int regionX, int regionZ, int index, RegionSection section)
+        throws IOException {
+        output.writeLong(worldId.getMostSignificantBits());
+        output.writeLong(worldId.getLeastSignificantBits());
+        output.writeInt(regionX);
+        output.writeInt(regionZ);
+        output.writeInt(index);
+        output.writeInt(section.getOwners().length);
+        for (UUID owner : section.getOwners()) {
+            output.writeLong(owner.getMostSignificantBits());
+            output.writeLong(owner.getLeastSignificantBits());
+        }
+        ByteBuffer entries = section.getEntries();
+        output.writeInt(entries.capacity());
+        output.write(entries.array(), entries.arrayOffset(), entries.capacity());
+    }
+
+    /**
+     * Starts a new journal.
+     *
+     * @return journals that only have sections written before this call
+     */
+    public synchronized List<Path> rotate() throws IOException {
+        output.close();
+        closedJournals.add(directory.resolve(PREFIX + number + SUFFIX));
+        number++;
+        open();
+        return List.copyOf(closedJournals);
+    }
+
+    /**
+     * Deletes journals returned by {@link #rotate()} once their sections are in region files.
+     */
+    public synchronized void delete(List<Path> journals) throws IOException {
+        for (Path journal : journals) {
+            Files.deleteIfExists(journal);
+            closedJournals.remove(journal);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    private static boolean isJournal(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    private static int getNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    public interface SectionConsumer {
+        void accept(UUID worldId, int regionX, int regionZ, int index, RegionSection section) throws IOException;
+    }
+}
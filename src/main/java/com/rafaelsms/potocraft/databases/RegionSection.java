@@ -0,0 +1,167 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Permanent protected blocks of a chunk section, as one bitmap per owner.
+ * <p>
+ * Entries point to an array of owners, which may be shared with other sections when copied from a file.
+ * <p>
+ * Entries have the same layout in memory and in {@link RegionFile}s, so both are searched by
+ * {@link #findOwner(ByteBuffer, int, int, UUID[], Set, long, int, int, int, int, int, int)}:
+ * <pre>
+ * int  owner index in the palette
+ * int  block count
+ * long oldest dateModified
+ * long latest dateModified
+ * long[64] bitmap, bit (y * 16 + z) * 16 + x
+ * </pre>
+ */
+public final class RegionSection {
+
+    public static final int SIZE = 16;
+    public static final int NOT_FOUND = -1;
+    public static final int UNKNOWN = -2;
+    public static final RegionSection EMPTY = new RegionSection(new UUID[0], ByteBuffer.allocate(0));
+
+    static final int ENTRY_SIZE = 4 + 4 + 8 + 8 + 64 * 8;
+    private static final int OLDEST_DATE_OFFSET = 8;
+    private static final int LATEST_DATE_OFFSET = 16;
+    private static final int BITMAP_OFFSET = 24;
+
+    private final UUID[] owners;
+    private final ByteBuffer entries;
+
+    RegionSection(UUID[] owners, ByteBuffer entries) {
+        this.owners = owners;
+        this.entries = entries;
+    }
+
+    /**
+     * Builds the section from the blocks inside it, temporary blocks don't protect and are left out.
+     */
+    public static RegionSection of(Collection<ProtectedBlock> blocks) {
+        Map<UUID, List<ProtectedBlock>> ownerBlocks = new LinkedHashMap<>();
+        for (ProtectedBlock block : blocks) {
+            if (!block.temporary()) {
+                ownerBlocks.computeIfAbsent(block.ownerId(), ownerId -> new ArrayList<>()).add(block);
+            }
+        }
+        if (ownerBlocks.isEmpty()) {
+            return EMPTY;
+        }
+
+        UUID[] owners = ownerBlocks.keySet().toArray(UUID[]::new);
+        ByteBuffer entries = ByteBuffer.allocate(owners.length * ENTRY_SIZE);
+        for (int owner = 0; owner < owners.length; owner++) {
+            int offset = owner * ENTRY_SIZE;
+            long oldestDate = Long.MAX_VALUE, latestDate = Long.MIN_VALUE;
+            for (ProtectedBlock block : ownerBlocks.get(owners[owner])) {
+                int bit = getBit(Math.floorMod(block.x(), SIZE), Math.floorMod(block.y(), SIZE),
+                    Math.floorMod(block.z(), SIZE));
+                int wordOffset = offset + BITMAP_OFFSET + (bit >>> 6) * 8;
+                entries.putLong(wordOffset, entries.getLong(wordOffset) | 1L << (bit & 63));
+                oldestDate = Math.min(oldestDate, block.dateModified());
+                latestDate = Math.max(latestDate, block.dateModified());
+            }
+            entries.putInt(offset, owner);
+            entries.putInt(offset + 4, ownerBlocks.get(owners[owner]).size());
+            entries.putLong(offset + OLDEST_DATE_OFFSET, oldestDate);
+            entries.putLong(offset + LATEST_DATE_OFFSET, latestDate);
+        }
+        return new RegionSection(owners, entries);
+    }
+
+    public int getEntryCount() {
+        return entries.capacity() / ENTRY_SIZE;
+    }
+
+    public boolean isEmpty() {
+        return entries.capacity() == 0;
+    }
+
+    UUID[] getOwners() {
+        return owners;
+    }
+
+    ByteBuffer getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return index of an owner protecting the box, {@link #NOT_FOUND} or {@link #UNKNOWN}
+     * @see #findOwner(ByteBuffer, int, int, UUID[], Set, long, int, int, int, int, int, int)
+     */
+    public int findOwner(Set<UUID> ignoredOwners, long expirationDate, int minX, int maxX, int minY, int maxY,
+        int minZ, int maxZ) {
+        return findOwner(entries, 0, getEntryCount(), owners, ignoredOwners, expirationDate, minX, maxX, minY, maxY,
+            minZ, maxZ);
+    }
+
+    public UUID getOwner(int index) {
+        return owners[index];
+    }
+
+    /**
+     * Searches the box (in coordinates inside the section) for a block of an owner not ignored.
+     * <p>
+     * An owner is known to protect the box if even its oldest block in the section isn't expired. If only some of
+     * its blocks are expired, the bitmap can't tell which ones are inside the box.
+     *
+     * @return the palette index of the owner found, {@link #NOT_FOUND} if there is none or {@link #UNKNOWN} if the
+     * database must be asked
+     */
+    static int findOwner(ByteBuffer buffer, int offset, int count, UUID[] palette, Set<UUID> ignoredOwners,
+        long expirationDate, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        boolean wholeSection = minX == 0 && minY == 0 && minZ == 0 && maxX == SIZE - 1 && maxY == SIZE - 1 &&
+                               maxZ == SIZE - 1;
+        int result = NOT_FOUND;
+        for (int entry = 0; entry < count; entry++) {
+            int entryOffset = offset + entry * ENTRY_SIZE;
+            int owner = buffer.getInt(entryOffset);
+            if (buffer.getLong(entryOffset + LATEST_DATE_OFFSET) < expirationDate ||
+                ignoredOwners.contains(palette[owner])) {
+                continue;
+            }
+
+            boolean intersects = wholeSection ?
+                                 buffer.getInt(entryOffset + 4) > 0 :
+                                 intersects(buffer, entryOffset + BITMAP_OFFSET, minX, maxX, minY, maxY, minZ,
+                                     maxZ);
+            if (!intersects) {
+                continue;
+            }
+            if (buffer.getLong(entryOffset + OLDEST_DATE_OFFSET) >= expirationDate) {
+                return owner;
+            }
+            result = UNKNOWN;
+        }
+        return result;
+    }
+
+    private static boolean intersects(ByteBuffer buffer, int bitmapOffset, int minX, int maxX, int minY, int maxY,
+        int minZ, int maxZ) {
+        long rowMask = ((1L << (maxX - minX + 1)) - 1) << minX;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                int row = y * SIZE + z;
+                long word = buffer.getLong(bitmapOffset + (row >>> 2) * 8);
+                if ((word >>> ((row & 3) * SIZE) & rowMask) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int getBit(int x, int y, int z) {
+        return (y * SIZE + z) * SIZE + x;
+    }
+}
@@ -0,0 +1,523 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Copy of the permanent protected blocks in memory-mapped region files, so checks outside the cached chunks don't
+ * query the database.
+ * <p>
+ * The database is still written first and stays the source of truth: after each flush, the changed sections are read
+ * back, kept in memory over the region files and appended to a {@link RegionJournal}. A background task compacts them
+ * into the next generation of the region files.
+ * <p>
+ * Files are only reused after a clean shutdown, otherwise they are rebuilt from the database in the background while
+ * checks query it. Only one server may write to the database, blocks written by others are never seen.
+ */
+public class RegionStore {
+
+    private static final String CLEAN_FILE = "clean";
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.(\\d+)\\.bin");
+    private static final long PROTECTION_DURATION = TimeUnit.DAYS.toMillis(Configuration.DAYS_PROTECTED);
+    private static final int REGION_SHIFT = RegionFile.REGION_BITS + 4;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+    private static final int MIN_Y = RegionFile.MIN_SECTION_Y * RegionSection.SIZE;
+    private static final int MAX_Y = (RegionFile.MIN_SECTION_Y + RegionFile.SECTIONS_PER_CHUNK) * RegionSection.SIZE - 1;
+    private static final long REBUILD_DELAY_MILLIS = 50;
+    // Sections whose refresh failed, checked on the database until restart
+    private static final RegionSection STALE = new RegionSection(new UUID[0], ByteBuffer.allocate(0));
+
+    private final Map<UUID, Map<Long, Region>> worlds = new ConcurrentHashMap<>();
+    private final Set<UUID> unsupportedWorlds = ConcurrentHashMap.newKeySet();
+    private final AtomicLong overlaySections = new AtomicLong();
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "PotoCraft region store thread"));
+    private final Path directory;
+    private final DatabasePool pool;
+    private final ProtectionCache.AreaLoader loader;
+    private final int compactionSeconds;
+
+    private RegionJournal journal;
+    private volatile boolean complete = false;
+    private volatile boolean dirty = false;
+
+    public RegionStore(Configuration configuration, DatabasePool pool, ProtectionCache.AreaLoader loader) {
+        this.directory = Path.of(configuration.getRegionStoreDirectory()).toAbsolutePath();
+        this.pool = pool;
+        this.loader = loader;
+        this.compactionSeconds = configuration.getRegionCompactionSeconds();
+        pool.getMetrics().addGauge("region overlay sections", overlaySections::get);
+    }
+
+    /**
+     * Opens the files left by a clean shutdown or starts rebuilding them.
+     *
+     * @param regions regions with protected blocks of each world, to be rebuilt from the database
+     */
+    public void open(Map<UUID, Set<Long>> regions) throws IOException {
+        Files.createDirectories(directory);
+        boolean clean = Files.deleteIfExists(directory.resolve(CLEAN_FILE));
+        if (clean) {
+            try {
+                load();
+                complete = true;
+                pool.getLogger().info("Opened region files, {} sections to compact.", overlaySections.get());
+            } catch (IOException | RuntimeException e) {
+                pool.getLogger().warn("Failed to open region files, rebuilding them: ", e);
+                if (journal != null) {
+                    journal.close();
+                }
+                clean = false;
+            }
+        }
+        if (!clean) {
+            clear();
+            this.journal = new RegionJournal(directory);
+            executor.execute(() -> rebuild(regions));
+        }
+        executor.scheduleWithFixedDelay(this::compactQuietly, compactionSeconds, compactionSeconds,
+            TimeUnit.SECONDS);
+    }
+
+    private void load() throws IOException {
+        this.journal = new RegionJournal(directory);
+        try (Stream<Path> worldDirectories = Files.list(directory)) {
+            for (Path worldDirectory : worldDirectories.filter(Files::isDirectory).toList()) {
+                UUID worldId = UUID.fromString(worldDirectory.getFileName().toString());
+                for (Path path : getLatestGenerations(worldDirectory)) {
+                    Matcher matcher = REGION_FILE.matcher(path.getFileName().toString());
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    Region region = getOrCreateRegion(worldId, Integer.parseInt(matcher.group(1)),
+                        Integer.parseInt(matcher.group(2)));
+                    region.file = RegionFile.open(path, Integer.parseInt(matcher.group(3)));
+                }
+            }
+        }
+
+        journal.replay((worldId, regionX, regionZ, index, section) -> {
+            setSection(getOrCreateRegion(worldId, regionX, regionZ), index, section);
+        });
+        for (Map<Long, Region> regions : worlds.values()) {
+            for (Region region : regions.values()) {
+                if (region.file == null) {
+                    region.file = RegionFile.EMPTY;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the latest generation of each region, older ones are deleted
+     */
+    private static List<Path> getLatestGenerations(Path worldDirectory) throws IOException {
+        Map<String, Path> latest = new HashMap<>();
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(worldDirectory)) {
+            paths = files.filter(path -> REGION_FILE.matcher(path.getFileName().toString()).matches())
+                         .sorted(Comparator.comparingInt(RegionStore::getGeneration))
+                         .toList();
+        }
+        for (Path path : paths) {
+            Matcher matcher = REGION_FILE.matcher(path.getFileName().toString());
+            if (matcher.matches()) {
+                Path previous = latest.put(matcher.group(1) + "." + matcher.group(2), path);
+                if (previous != null) {
+                    Files.deleteIfExists(previous);
+                }
+            }
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    private static int getGeneration(Path path) {
+        Matcher matcher = REGION_FILE.matcher(path.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(3)) : -1;
+    }
+
+    private void clear() throws IOException {
+        worlds.clear();
+        overlaySections.set(0);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                if (!path.equals(directory)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private void rebuild(Map<UUID, Set<Long>> regions) {
+        long start = System.nanoTime();
+        int built = 0;
+        try {
+            for (Map.Entry<UUID, Set<Long>> entry : regions.entrySet()) {
+                UUID worldId = entry.getKey();
+                Files.createDirectories(directory.resolve(worldId.toString()));
+                for (long regionKey : entry.getValue()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+
+                    int regionX = (int) (regionKey >> 32), regionZ = (int) regionKey;
+                    Collection<ProtectedBlock> blocks = pool.executeFuture(connection -> {
+                        return loader.load(connection, worldId, regionX * REGION_SIZE,
+                            regionX * REGION_SIZE + REGION_SIZE - 1, regionZ * REGION_SIZE,
+                            regionZ * REGION_SIZE + REGION_SIZE - 1);
+                    });
+                    RegionSection[] sections = getSections(worldId, blocks);
+                    // Sections refreshed while reading are in the overlay, which is read before the file
+                    getOrCreateRegion(worldId, regionX, regionZ).file =
+                        RegionFile.write(getPath(worldId, regionX, regionZ, 0), 0, sections);
+
+                    if (++built % 100 == 0) {
+                        pool.getLogger().info("Built {} of the region files...", built);
+                    }
+                    Thread.sleep(REBUILD_DELAY_MILLIS);
+                }
+            }
+
+            completeRebuild();
+            pool.getLogger().info("Built {} region files in {}s, using them for protection checks.", built,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            pool.getLogger().info("Region files rebuild interrupted, it will restart on next start.");
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            pool.getLogger().warn("Failed to build region files, checking the database until restart: ", e);
+        }
+    }
+
+    private synchronized Region getOrCreateRegion(UUID worldId, int regionX, int regionZ) {
+        return worlds.computeIfAbsent(worldId, id -> new ConcurrentHashMap<>())
+                     .computeIfAbsent(getRegionKey(regionX, regionZ),
+                         key -> new Region(regionX, regionZ, complete ? RegionFile.EMPTY : null));
+    }
+
+    private synchronized void completeRebuild() {
+        // Regions created by writes during the rebuild had no blocks before
+        for (Map<Long, Region> regions : worlds.values()) {
+            for (Region region : regions.values()) {
+                if (region.file == null) {
+                    region.file = RegionFile.EMPTY;
+                }
+            }
+        }
+        complete = true;
+    }
+
+    /**
+     * @return sections of the region built from its blocks, empty ones included
+     */
+    private RegionSection[] getSections(UUID worldId, Collection<ProtectedBlock> blocks) {
+        Map<Integer, List<ProtectedBlock>> sectionBlocks = new HashMap<>();
+        for (ProtectedBlock block : blocks) {
+            int index = RegionFile.getSectionIndex(block.x() >> 4, block.y() >> 4, block.z() >> 4);
+            if (index < 0) {
+                markUnsupported(worldId);
+                continue;
+            }
+            sectionBlocks.computeIfAbsent(index, key -> new ArrayList<>()).add(block);
+        }
+
+        RegionSection[] sections = new RegionSection[RegionFile.SECTIONS];
+        for (int index = 0; index < sections.length; index++) {
+            List<ProtectedBlock> indexBlocks = sectionBlocks.get(index);
+            sections[index] = indexBlocks == null ? RegionSection.EMPTY : RegionSection.of(indexBlocks);
+        }
+        return sections;
+    }
+
+    private void markUnsupported(UUID worldId) {
+        if (unsupportedWorlds.add(worldId)) {
+            pool.getLogger().warn("World {} has blocks outside of the height of region files, checking the database " +
+                                  "there.", worldId);
+        }
+    }
+
+    /**
+     * Reads the cells again after their blocks were committed.
+     */
+    public void refresh(Connection connection, Collection<ProtectionCell> cells) throws Exception {
+        Map<ProtectionCell, List<ProtectionCell>> columns = new HashMap<>();
+        for (ProtectionCell cell : cells) {
+            columns.computeIfAbsent(new ProtectionCell(cell.worldId(), cell.x(), 0, cell.z()),
+                column -> new ArrayList<>()).add(cell);
+        }
+
+        for (Map.Entry<ProtectionCell, List<ProtectionCell>> entry : columns.entrySet()) {
+            ProtectionCell column = entry.getKey();
+            Map<Integer, List<ProtectedBlock>> blocksBySection = new HashMap<>();
+            for (ProtectedBlock block : loader.load(connection, column.worldId(), column.minX(),
+                column.minX() + RegionSection.SIZE - 1, column.minZ(), column.minZ() + RegionSection.SIZE - 1)) {
+                blocksBySection.computeIfAbsent(block.y() >> 4, key -> new ArrayList<>()).add(block);
+            }
+
+            Region region = getOrCreateRegion(column.worldId(), column.x() >> RegionFile.REGION_BITS,
+                column.z() >> RegionFile.REGION_BITS);
+            for (ProtectionCell cell : entry.getValue()) {
+                int index = RegionFile.getSectionIndex(cell.x(), cell.y(), cell.z());
+                if (index < 0) {
+                    if (blocksBySection.containsKey(cell.y())) {
+                        markUnsupported(cell.worldId());
+                    }
+                    continue;
+                }
+
+                RegionSection section = RegionSection.of(blocksBySection.getOrDefault(cell.y(), List.of()));
+                synchronized (region) {
+                    setSection(region, index, section);
+                    try {
+                        journal.append(cell.worldId(), region.regionX, region.regionZ, index, section);
+                    } catch (IOException e) {
+                        // Memory is up to date, but files can't be reused after restart
+                        if (!dirty) {
+                            pool.getLogger().warn("Failed to write region journal: ", e);
+                        }
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes checks around the cells query the database, after their refresh failed.
+     */
+    public void invalidate(Collection<ProtectionCell> cells) {
+        dirty = true;
+        for (ProtectionCell cell : cells) {
+            int index = RegionFile.getSectionIndex(cell.x(), cell.y(), cell.z());
+            if (index >= 0) {
+                Region region = getOrCreateRegion(cell.worldId(), cell.x() >> RegionFile.REGION_BITS,
+                    cell.z() >> RegionFile.REGION_BITS);
+                synchronized (region) {
+                    setSection(region, index, STALE);
+                }
+            }
+        }
+    }
+
+    private void setSection(Region region, int index, RegionSection section) {
+        AtomicReferenceArray<RegionSection> overlay = region.overlay;
+        if (overlay == null) {
+            overlay = new AtomicReferenceArray<>(RegionFile.SECTIONS);
+            region.overlay = overlay;
+        }
+        if (overlay.getAndSet(index, section) == null) {
+            overlaySections.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true once every region file is built
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Searches the box for a permanent block not expired of an owner not ignored.
+     *
+     * @return the owner found, empty if there is none or null if the database must be asked
+     */
+    public Optional<UUID> getBlockOwner(UUID worldId, int x, int y, int z, int radius, Set<UUID> ignoredOwners) {
+        if (unsupportedWorlds.contains(worldId)) {
+            return null;
+        }
+        Map<Long, Region> regions = worlds.get(worldId);
+        if (regions == null) {
+            return complete ? Optional.empty() : null;
+        }
+
+        int minX = x - radius, maxX = x + radius, minZ = z - radius, maxZ = z + radius;
+        int minY = Math.max(y - radius, MIN_Y), maxY = Math.min(y + radius, MAX_Y);
+        long expirationDate = System.currentTimeMillis() - PROTECTION_DURATION;
+        boolean unknown = false;
+        for (int regionX = minX >> REGION_SHIFT; regionX <= maxX >> REGION_SHIFT; regionX++) {
+            for (int regionZ = minZ >> REGION_SHIFT; regionZ <= maxZ >> REGION_SHIFT; regionZ++) {
+                Region region = regions.get(getRegionKey(regionX, regionZ));
+                if (region == null) {
+                    if (!complete) {
+                        return null;
+                    }
+                    continue;
+                }
+                RegionFile file = region.file;
+                if (file == null) {
+                    return null;
+                }
+                AtomicReferenceArray<RegionSection> overlay = region.overlay;
+
+                int regionMinX = regionX * REGION_SIZE, regionMinZ = regionZ * REGION_SIZE;
+                for (int chunkX = Math.max(minX, regionMinX) >> 4;
+                     chunkX <= Math.min(maxX, regionMinX + REGION_SIZE - 1) >> 4; chunkX++) {
+                    int chunkMinX = chunkX << 4;
+                    int boxMinX = Math.max(minX - chunkMinX, 0), boxMaxX = Math.min(maxX - chunkMinX, 15);
+                    for (int chunkZ = Math.max(minZ, regionMinZ) >> 4;
+                         chunkZ <= Math.min(maxZ, regionMinZ + REGION_SIZE - 1) >> 4; chunkZ++) {
+                        int chunkMinZ = chunkZ << 4;
+                        int boxMinZ = Math.max(minZ - chunkMinZ, 0), boxMaxZ = Math.min(maxZ - chunkMinZ, 15);
+                        for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+                            int sectionMinY = sectionY << 4;
+                            int boxMinY = Math.max(minY - sectionMinY, 0);
+                            int boxMaxY = Math.min(maxY - sectionMinY, 15);
+                            int index = RegionFile.getSectionIndex(chunkX, sectionY, chunkZ);
+
+                            RegionSection section = overlay == null ? null : overlay.get(index);
+                            int owner;
+                            if (section == STALE) {
+                                owner = RegionSection.UNKNOWN;
+                            } else if (section != null) {
+                                owner = section.findOwner(ignoredOwners, expirationDate, boxMinX, boxMaxX, boxMinY,
+                                    boxMaxY, boxMinZ, boxMaxZ);
+                                if (owner >= 0) {
+                                    return Optional.of(section.getOwner(owner));
+                                }
+                            } else {
+                                owner = file.findOwner(index, ignoredOwners, expirationDate, boxMinX, boxMaxX,
+                                    boxMinY, boxMaxY, boxMinZ, boxMaxZ);
+                                if (owner >= 0) {
+                                    return Optional.of(file.getOwner(owner));
+                                }
+                            }
+                            unknown |= owner == RegionSection.UNKNOWN;
+                        }
+                    }
+                }
+            }
+        }
+        return unknown ? null : Optional.empty();
+    }
+
+    private void compactQuietly() {
+        if (!complete || overlaySections.get() == 0) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            pool.getLogger().warn("Failed to compact region files, retrying later: ", e);
+        }
+    }
+
+    /**
+     * Writes the sections in memory to the next generation of their region files.
+     */
+    private void compact() throws IOException {
+        // Sections changed from now on are in the new journal
+        List<Path> journals = journal.rotate();
+        int compacted = 0;
+        for (Map.Entry<UUID, Map<Long, Region>> entry : worlds.entrySet()) {
+            for (Region region : entry.getValue().values()) {
+                AtomicReferenceArray<RegionSection> overlay = region.overlay;
+                if (overlay == null) {
+                    continue;
+                }
+
+                RegionFile file = region.file;
+                RegionSection[] snapshot = new RegionSection[RegionFile.SECTIONS];
+                RegionSection[] sections = new RegionSection[RegionFile.SECTIONS];
+                for (int index = 0; index < sections.length; index++) {
+                    RegionSection section = overlay.get(index);
+                    if (section != null && section != STALE) {
+                        snapshot[index] = section;
+                        sections[index] = section;
+                    } else {
+                        sections[index] = file.getSection(index);
+                    }
+                }
+
+                int generation = file.getPath() == null ? 0 : file.getGeneration() + 1;
+                Files.createDirectories(directory.resolve(entry.getKey().toString()));
+                region.file = RegionFile.write(getPath(entry.getKey(), region.regionX, region.regionZ, generation),
+                    generation, sections);
+                for (int index = 0; index < snapshot.length; index++) {
+                    if (snapshot[index] != null && overlay.compareAndSet(index, snapshot[index], null)) {
+                        overlaySections.decrementAndGet();
+                        compacted++;
+                    }
+                }
+                if (file.getPath() != null) {
+                    // The old mapping stays valid for checks still reading it
+                    Files.deleteIfExists(file.getPath());
+                }
+            }
+        }
+        journal.delete(journals);
+        pool.getLogger().debug("Compacted {} sections into region files.", compacted);
+    }
+
+    /**
+     * Stops the background tasks, files are reused on the next start if they are up to date.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                pool.getLogger().warn("Timeout waiting for region files, they will be rebuilt on next start.");
+                return;
+            }
+            if (journal == null) {
+                return;
+            }
+            journal.close();
+            if (complete && !dirty && unsupportedWorlds.isEmpty()) {
+                Files.createFile(directory.resolve(CLEAN_FILE));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            pool.getLogger().warn("Failed to close region files, they will be rebuilt on next start: ", e);
+        }
+    }
+
+    private Path getPath(UUID worldId, int regionX, int regionZ, int generation) {
+        return directory.resolve(worldId.toString()).resolve("r.%d.%d.%d.bin".formatted(regionX, regionZ,
+            generation));
+    }
+
+    public static long getRegionKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private static final class Region {
+
+        private final int regionX;
+        private final int regionZ;
+        // Null until built from the database
+        private volatile RegionFile file;
+        // Sections changed since the file was written, created on the first change
+        private volatile AtomicReferenceArray<RegionSection> overlay = null;
+
+        private Region(int regionX, int regionZ, RegionFile file) {
+            this.regionX = regionX;
+            this.regionZ = regionZ;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Table layout used by BlockDatabase and PlayerDatabase.
+ * <p>
+ * Queries of every schema take the same parameters in the same order, only how worlds and players are stored
+ * changes.
+ */
+public abstract class Schema {
+
+    /**
+     * @return statements that create the tables and indexes of this schema
+     */
+    public abstract List<String> getCreateStatements();
+
+    public abstract String getQuery(Query query);
+
+    public abstract void setWorldId(PreparedStatement preparedStatement, int index, UUID worldId) throws SQLException;
+
+    public abstract void setPlayerId(PreparedStatement preparedStatement, int index, UUID playerId)
+        throws SQLException;
+
+    public abstract UUID getPlayerId(ResultSet resultSet, int column) throws SQLException;
+
+    /**
+     * Reads a world UUID from queries that return it, such as SELECT_BLOCK_CHUNKS.
+     */
+    public abstract UUID getWorldUuid(ResultSet resultSet, int column) throws SQLException;
+
+    /**
+     * Binds the parameters of a box: world, x range, y range and z range.
+     *
+     * @return the last index bound
+     */
+    public int setBox(PreparedStatement preparedStatement, int index, UUID worldId, int minX, int maxX, int minY,
+        int maxY, int minZ, int maxZ) throws SQLException {
+        setWorldId(preparedStatement, ++index, worldId);
+        preparedStatement.setInt(++index, minX);
+        preparedStatement.setInt(++index, maxX);
+        preparedStatement.setInt(++index, minY);
+        preparedStatement.setInt(++index, maxY);
+        preparedStatement.setInt(++index, minZ);
+        preparedStatement.setInt(++index, maxZ);
+        return index;
+    }
+
+    /**
+     * Binds the parameters of a box searched for protection, by default the same as
+     * {@link #setBox(PreparedStatement, int, UUID, int, int, int, int, int, int)}.
+     *
+     * @return the last index bound
+     */
+    public int setProtectionBox(PreparedStatement preparedStatement, int index, UUID worldId, int minX, int maxX,
+        int minY, int maxY, int minZ, int maxZ) throws SQLException {
+        return setBox(preparedStatement, index, worldId, minX, maxX, minY, maxY, minZ, maxZ);
+    }
+
+    /**
+     * Binds a position of SELECT_EXPIRED_BLOCKS in the order of the primary key: world as read from the query, x, y
+     * and z by default.
+     *
+     * @return the last index bound
+     */
+    public int setExpiredPosition(PreparedStatement preparedStatement, int index, Object worldId, int x, int y, int z)
+        throws SQLException {
+        preparedStatement.setObject(++index, worldId);
+        preparedStatement.setInt(++index, x);
+        preparedStatement.setInt(++index, y);
+        preparedStatement.setInt(++index, z);
+        return index;
+    }
+
+    /**
+     * Recomputes aggregated data of the given cells after their blocks changed, if the schema keeps any.
+     */
+    public void refreshCells(Connection connection, Collection<ProtectionCell> cells) throws SQLException {
+    }
+
+    /**
+     * Makes sure the world can be referenced by this schema.
+     */
+    public void registerWorld(Connection connection, UUID worldId) throws SQLException {
+    }
+
+    public enum Query {
+        /**
+         * Parameters: protection box, days protected.
+         */
+        IS_PROTECTED_BY_ANY,
+        /**
+         * Get protected blocks by players other than who we're checking for.
+         * <p>
+         * Block's owner should not be the player itself or players that have allowed the player (trusted owners).
+         * <p>
+         * Formatted with a placeholder for each trusted owner. Parameters: protection box, days protected, trusted
+         * owners.
+         */
+        IS_PROTECTED_BY_OTHER_PLAYER,
+        /**
+         * Count protected blocks by players that are who we're searching for or players that the player is allowed
+         * for.
+         * <p>
+         * Formatted with a placeholder for each trusted owner. Parameters: box, trusted owners.
+         */
+        COUNT_NEARBY_BLOCKS,
+        /**
+         * Blocks are inserted as temporary unless the nearby block count is known from memory, otherwise it decides if
+         * they're promoted afterwards.
+         * <p>
+         * Formatted with ADD_BLOCKS_ROW for each row, each row takes world, x, y, z, temporary block, player.
+         */
+        ADD_BLOCKS,
+        ADD_BLOCKS_ROW,
+        /**
+         * Blocks moved by pistons keep their owner, date and if they're temporary.
+         * <p>
+         * Formatted with MOVE_BLOCKS_ROW for each row, each row takes world, x, y, z, temporary block, player, date
+         * modified.
+         */
+        MOVE_BLOCKS,
+        MOVE_BLOCKS_ROW,
+        /**
+         * Formatted with a placeholder for each trusted owner. Parameters: box, trusted owners.
+         */
+        UPDATE_TEMPORARY_NEARBY_BLOCKS,
+        /**
+         * Parameters: world, x range, z range. Columns: player, x, y, z, date modified, temporary block.
+         */
+        SELECT_AREA_BLOCKS,
+        /**
+         * Chunks with protected blocks. Columns: world UUID, chunk x, chunk z.
+         */
+        SELECT_BLOCK_CHUNKS,
+        /**
+         * Formatted with REMOVE_BLOCKS_ROW for each row, each row takes world, x, y, z.
+         */
+        REMOVE_BLOCKS,
+        REMOVE_BLOCKS_ROW,
+        /**
+         * Blocks that don't protect anymore: permanent blocks older than the days protected and temporary blocks older
+         * than the days temporary, in the order of the dateModified index and primary key.
+         * <p>
+         * Parameters: days protected, days temporary, last date modified twice, last position, limit. Columns: date
+         * modified, world as stored, x, y, z, temporary block, world UUID.
+         */
+        SELECT_EXPIRED_BLOCKS,
+        /**
+         * Removes the given blocks if they're still expired. Formatted with REMOVE_BLOCKS_ROW for each row, each row
+         * takes world as stored, x, y, z. Parameters after the rows: days protected, days temporary.
+         */
+        REMOVE_EXPIRED_BLOCKS,
+        /**
+         * Parameters: player, allowed player.
+         */
+        CHECK_PLAYER_ALLOWED_BY_PLAYER,
+        /**
+         * Parameters: player. Columns: allowed player.
+         */
+        CHECK_PLAYERS_ALLOWED_BY_PLAYER,
+        /**
+         * Columns: player, allowed player.
+         */
+        SELECT_ALLOWED_PLAYERS,
+        /**
+         * Parameters: player, allowed player.
+         */
+        ADD_ALLOWED_PLAYER,
+        /**
+         * Parameters: player, allowed player.
+         */
+        REMOVE_ALLOWED_PLAYER,
+        /**
+         * Parameters: player.
+         */
+        REMOVE_ALLOWED_PLAYERS,
+    }
+}
@@ -0,0 +1,489 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Chooses which schema the databases use and migrates the legacy schema to the compact one while the server runs.
+ * <p>
+ * While migrating, the legacy schema is read and both schemas are written in the same transaction. Rows are copied in
+ * small batches in primary key order (INSERT IGNORE, so rows written by the server are kept) and, after the last
+ * batch, reads and writes switch to the compact schema while writes are held.
+ * <p>
+ * Then protection cells are built in batches of whole cells. Writes already keep the cells they touch up to date, so
+ * protection checks use the cells as soon as every batch is done.
+ * <p>
+ * The embedded backend has a single schema of its own and nothing to migrate.
+ */
+public class SchemaMigration {
+
+    private static final int BATCH_SIZE = 5_000;
+    private static final long BATCH_DELAY_MILLIS = 50;
+    private static final int BATCHES_PER_LOG = 100;
+    private static final String SCHEMA_NAME = "protection";
+    private static final int LEGACY_VERSION = 1;
+    private static final int COMPACT_VERSION = 2;
+    private static final int CELLS_VERSION = 3;
+
+    private static final String CREATE_SCHEMA_TABLE = """
+        create table if not exists protectionSchema
+        (
+            name     varchar(32)  not null,
+            version  int          not null,
+            progress varchar(128) null,
+            primary key (name)
+        );
+        """;
+    private static final String SELECT_SCHEMA = """
+        SELECT version, progress
+        FROM protectionSchema
+        WHERE name = ?;
+        """;
+    private static final String SAVE_SCHEMA = """
+        INSERT INTO protectionSchema(name, version, progress)
+        VALUES (?, ?, ?)
+        ON DUPLICATE KEY UPDATE version = VALUES(version), progress = VALUES(progress);
+        """;
+    private static final String COUNT_LEGACY_TABLES = """
+        SELECT COUNT(*)
+        FROM information_schema.tables
+        WHERE table_schema = DATABASE()
+            AND table_name IN ('protectedBlocks', 'allowedPlayers');
+        """;
+
+    private static final String COPY_WORLDS = """
+        INSERT IGNORE INTO protectionWorlds(worldUuid)
+        SELECT DISTINCT UNHEX(REPLACE(worldId, '-', ''))
+        FROM protectedBlocks;
+        """;
+    private static final String AFTER_KEY = """
+        (worldId > ? OR (worldId = ? AND (x > ? OR (x = ? AND (y > ? OR (y = ? AND z > ?))))))""";
+    private static final String UP_TO_KEY = """
+        (worldId < ? OR (worldId = ? AND (x < ? OR (x = ? AND (y < ? OR (y = ? AND z <= ?))))))""";
+    private static final String SELECT_BATCH_END = """
+        SELECT worldId, x, y, z
+        FROM protectedBlocks
+        WHERE %s
+        ORDER BY worldId, x, y, z
+        LIMIT 1 OFFSET ?;
+        """.formatted(AFTER_KEY);
+    private static final String COPY_BLOCKS = """
+        INSERT IGNORE INTO protectedBlocksV2(worldId, x, y, z, playerId, dateModified, temporaryBlock)
+        SELECT protectionWorlds.id, x, y, z, UNHEX(REPLACE(playerId, '-', '')), dateModified, temporaryBlock
+        FROM protectedBlocks
+            JOIN protectionWorlds ON protectionWorlds.worldUuid = UNHEX(REPLACE(protectedBlocks.worldId, '-', ''))
+        WHERE %s;
+        """;
+    private static final String AFTER_CELL_KEY = """
+        (worldId > ? OR (worldId = ? AND x > ?))""";
+    private static final String UP_TO_CELL_KEY = """
+        (worldId < ? OR (worldId = ? AND x <= ?))""";
+    private static final String SELECT_CELL_BATCH_END = """
+        SELECT worldId, x
+        FROM protectedBlocksV2
+        WHERE %s
+        ORDER BY worldId, x
+        LIMIT 1 OFFSET ?;
+        """.formatted(AFTER_CELL_KEY);
+    private static final String BUILD_CELLS = """
+        INSERT INTO protectionCellsV2(worldId, cellX, cellZ, cellY, playerId, blockCount, latestDate)
+        SELECT worldId, FLOOR(x / %1$d), FLOOR(z / %1$d), FLOOR(y / %1$d), playerId, COUNT(*), MAX(dateModified)
+        FROM protectedBlocksV2
+        WHERE temporaryBlock = FALSE AND %%s
+        GROUP BY worldId, FLOOR(x / %1$d), FLOOR(z / %1$d), FLOOR(y / %1$d), playerId
+        ON DUPLICATE KEY UPDATE blockCount = VALUES(blockCount), latestDate = VALUES(latestDate);
+        """.formatted(ProtectionCell.SIZE);
+    private static final String COPY_ALLOWED_PLAYERS = """
+        INSERT IGNORE INTO allowedPlayersV2(playerId, allowedPlayerId, allowedDate)
+        SELECT UNHEX(REPLACE(playerId, '-', '')), UNHEX(REPLACE(allowedPlayerId, '-', '')), allowedDate
+        FROM allowedPlayers;
+        """;
+
+    private final LegacySchema legacySchema = new LegacySchema();
+    private final CompactSchema compactSchema = new CompactSchema();
+    private final CellSchema cellSchema = new CellSchema(compactSchema);
+    private final EmbeddedSchema embeddedSchema = new EmbeddedSchema();
+    // Writes hold the read lock, switching schemas holds the write lock
+    private final ReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private final DatabasePool pool;
+
+    private volatile Schema readSchema = cellSchema;
+    private volatile List<Schema> writeSchemas = List.of(cellSchema);
+    private MigrationKey progress = null;
+    private CellKey cellProgress = null;
+    private Thread thread = null;
+
+    public SchemaMigration(DatabasePool pool) throws ExecutionException {
+        this.pool = pool;
+        initialize();
+    }
+
+    private void initialize() throws ExecutionException {
+        if (pool.getBackend() == StorageBackend.EMBEDDED) {
+            this.readSchema = embeddedSchema;
+            this.writeSchemas = List.of(embeddedSchema);
+            pool.executeFuture(connection -> {
+                createTables(connection, embeddedSchema);
+            });
+            return;
+        }
+
+        pool.executeFuture(connection -> {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(CREATE_SCHEMA_TABLE)) {
+                preparedStatement.executeUpdate();
+            }
+
+            int version;
+            try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_SCHEMA)) {
+                preparedStatement.setString(1, SCHEMA_NAME);
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next()) {
+                        version = resultSet.getInt(1);
+                        if (version == LEGACY_VERSION) {
+                            progress = MigrationKey.parse(resultSet.getString(2)).orElse(null);
+                        } else if (version == COMPACT_VERSION) {
+                            cellProgress = CellKey.parse(resultSet.getString(2)).orElse(null);
+                        }
+                    } else {
+                        // Fresh install if there are no legacy tables
+                        version = hasLegacyTables(connection) ? LEGACY_VERSION : CELLS_VERSION;
+                        saveSchema(connection, version, null);
+                    }
+                }
+            }
+
+            createTables(connection, compactSchema);
+            if (version == LEGACY_VERSION) {
+                createTables(connection, legacySchema);
+                this.readSchema = legacySchema;
+                this.writeSchemas = List.of(legacySchema, compactSchema);
+                pool.getLogger().info("Using legacy protection schema until migration finishes.");
+            } else if (version == COMPACT_VERSION) {
+                this.readSchema = compactSchema;
+                this.writeSchemas = List.of(compactSchema);
+                pool.getLogger().info("Using protected blocks for checks until protection cells are built.");
+            }
+        });
+    }
+
+    private void createTables(Connection connection, Schema schema) throws SQLException {
+        for (String statement : schema.getCreateStatements()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(statement)) {
+                preparedStatement.executeUpdate();
+            }
+        }
+        pool.getLogger().info("Created tables and indexes for {}!", schema.getClass().getSimpleName());
+    }
+
+    /**
+     * Starts copying the legacy tables in the background, if needed.
+     */
+    public synchronized void start() {
+        if (readSchema == cellSchema || readSchema == embeddedSchema || thread != null) {
+            return;
+        }
+
+        thread = new Thread(this::migrate, "PotoCraft schema migration thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    public Schema getReadSchema() {
+        return readSchema;
+    }
+
+    public void registerWorld(Connection connection, UUID worldId) throws SQLException {
+        if (readSchema == embeddedSchema) {
+            embeddedSchema.registerWorld(connection, worldId);
+            return;
+        }
+        // The compact schema is written even before the switch
+        compactSchema.registerWorld(connection, worldId);
+    }
+
+    /**
+     * Runs a write on every schema in use, the first one is the schema being read.
+     */
+    public <T> T write(SchemaWriter<T> writer) throws Exception {
+        switchLock.readLock().lock();
+        try {
+            return writer.write(readSchema, writeSchemas);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+    }
+
+    private void migrate() {
+        try {
+            if (readSchema == legacySchema && !copyLegacyTables()) {
+                return;
+            }
+
+            int batches = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean hasMoreCells = pool.executeFuture(connection -> {
+                    return buildCellBatch(connection);
+                });
+                if (!hasMoreCells) {
+                    break;
+                }
+
+                if (++batches % BATCHES_PER_LOG == 0) {
+                    pool.getLogger().info("Built protection cells of {} protected blocks...", batches * BATCH_SIZE);
+                }
+                Thread.sleep(BATCH_DELAY_MILLIS);
+            }
+
+            if (!Thread.currentThread().isInterrupted()) {
+                pool.executeFuture(this::switchToCells);
+                pool.getLogger().info("Protection cells built, using them for protection checks.");
+            }
+        } catch (InterruptedException e) {
+            pool.getLogger().info("Schema migration interrupted, it will continue on next start.");
+        } catch (ExecutionException | RuntimeException e) {
+            pool.getLogger().warn("Schema migration failed, it will continue on next start: ", e);
+        }
+    }
+
+    /**
+     * @return true if the compact schema is in use
+     */
+    private boolean copyLegacyTables() throws ExecutionException, InterruptedException {
+        pool.executeFuture(connection -> {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(COPY_WORLDS)) {
+                preparedStatement.executeUpdate();
+            }
+        });
+
+        int batches = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            Optional<MigrationKey> batchEnd = pool.executeFuture(connection -> {
+                return copyBatch(connection);
+            });
+            if (batchEnd.isEmpty()) {
+                break;
+            }
+
+            if (++batches % BATCHES_PER_LOG == 0) {
+                pool.getLogger().info("Migrated {} protected blocks to the compact schema...", batches * BATCH_SIZE);
+            }
+            Thread.sleep(BATCH_DELAY_MILLIS);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        pool.executeFuture(this::switchSchema);
+        pool.getLogger().info("Migration finished, using compact protection schema.");
+        return true;
+    }
+
+    /**
+     * @return the last key copied, empty if the remaining rows are few enough to be copied while switching
+     */
+    private Optional<MigrationKey> copyBatch(Connection connection) throws SQLException {
+        MigrationKey start = progress == null ? MigrationKey.FIRST : progress;
+
+        MigrationKey end;
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_BATCH_END)) {
+            int i = start.setParameters(preparedStatement, 0);
+            preparedStatement.setInt(++i, BATCH_SIZE - 1);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Optional.empty();
+                }
+                end = new MigrationKey(resultSet.getString(1), resultSet.getInt(2), resultSet.getInt(3),
+                    resultSet.getInt(4));
+            }
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+            COPY_BLOCKS.formatted(AFTER_KEY + " AND " + UP_TO_KEY))) {
+            int i = start.setParameters(preparedStatement, 0);
+            end.setParameters(preparedStatement, i);
+            preparedStatement.executeUpdate();
+        }
+
+        saveSchema(connection, LEGACY_VERSION, end.toString());
+        progress = end;
+        return Optional.of(end);
+    }
+
+    private void switchSchema(Connection connection) throws SQLException {
+        switchLock.writeLock().lock();
+        try {
+            MigrationKey start = progress == null ? MigrationKey.FIRST : progress;
+            try (PreparedStatement preparedStatement = connection.prepareStatement(COPY_BLOCKS.formatted(AFTER_KEY))) {
+                start.setParameters(preparedStatement, 0);
+                preparedStatement.executeUpdate();
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement(COPY_ALLOWED_PLAYERS)) {
+                preparedStatement.executeUpdate();
+            }
+            saveSchema(connection, COMPACT_VERSION, null);
+
+            this.readSchema = compactSchema;
+            this.writeSchemas = List.of(compactSchema);
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds cells for a batch of whole cells (every y and z of their x range).
+     *
+     * @return true if there may be more cells to build
+     */
+    private boolean buildCellBatch(Connection connection) throws SQLException {
+        CellKey start = cellProgress == null ? CellKey.FIRST : cellProgress;
+
+        CellKey end = null;
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_CELL_BATCH_END)) {
+            int i = start.setParameters(preparedStatement, 0);
+            preparedStatement.setInt(++i, BATCH_SIZE - 1);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    // Round up to the end of the cell so it isn't split between batches
+                    int x = Math.floorDiv(resultSet.getInt(2), ProtectionCell.SIZE) * ProtectionCell.SIZE +
+                            ProtectionCell.SIZE - 1;
+                    end = new CellKey(resultSet.getInt(1), x);
+                }
+            }
+        }
+
+        String condition = end == null ? AFTER_CELL_KEY : AFTER_CELL_KEY + " AND " + UP_TO_CELL_KEY;
+        try (PreparedStatement preparedStatement = connection.prepareStatement(BUILD_CELLS.formatted(condition))) {
+            int i = start.setParameters(preparedStatement, 0);
+            if (end != null) {
+                end.setParameters(preparedStatement, i);
+            }
+            preparedStatement.executeUpdate();
+        }
+
+        if (end == null) {
+            return false;
+        }
+        saveSchema(connection, COMPACT_VERSION, end.toString());
+        cellProgress = end;
+        return true;
+    }
+
+    private void switchToCells(Connection connection) throws SQLException {
+        switchLock.writeLock().lock();
+        try {
+            saveSchema(connection, CELLS_VERSION, null);
+            this.readSchema = cellSchema;
+            this.writeSchemas = List.of(cellSchema);
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+    }
+
+    private static boolean hasLegacyTables(Connection connection) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(COUNT_LEGACY_TABLES);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next() && resultSet.getInt(1) > 0;
+        }
+    }
+
+    private static void saveSchema(Connection connection, int version, String progress) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SAVE_SCHEMA)) {
+            preparedStatement.setString(1, SCHEMA_NAME);
+            preparedStatement.setInt(2, version);
+            preparedStatement.setString(3, progress);
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    public interface SchemaWriter<T> {
+        T write(Schema readSchema, List<Schema> writeSchemas) throws Exception;
+    }
+
+    /**
+     * Primary key of the legacy protectedBlocks table.
+     */
+    private record MigrationKey(String worldId, int x, int y, int z) {
+
+        private static final MigrationKey FIRST = new MigrationKey("", Integer.MIN_VALUE, Integer.MIN_VALUE,
+            Integer.MIN_VALUE);
+
+        static Optional<MigrationKey> parse(String string) {
+            if (string == null) {
+                return Optional.empty();
+            }
+            String[] parts = string.split(";");
+            return Optional.of(new MigrationKey(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                Integer.parseInt(parts[3])));
+        }
+
+        int setParameters(PreparedStatement preparedStatement, int index) throws SQLException {
+            preparedStatement.setString(++index, worldId);
+            preparedStatement.setString(++index, worldId);
+            preparedStatement.setInt(++index, x);
+            preparedStatement.setInt(++index, x);
+            preparedStatement.setInt(++index, y);
+            preparedStatement.setInt(++index, y);
+            preparedStatement.setInt(++index, z);
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return "%s;%d;%d;%d".formatted(worldId, x, y, z);
+        }
+    }
+
+    /**
+     * Primary key prefix of protectedBlocksV2 up to which cells were built.
+     */
+    private record CellKey(int worldId, int x) {
+
+        private static final CellKey FIRST = new CellKey(-1, Integer.MIN_VALUE);
+
+        static Optional<CellKey> parse(String string) {
+            if (string == null) {
+                return Optional.empty();
+            }
+            String[] parts = string.split(";");
+            return Optional.of(new CellKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+        }
+
+        int setParameters(PreparedStatement preparedStatement, int index) throws SQLException {
+            preparedStatement.setInt(++index, worldId);
+            preparedStatement.setInt(++index, worldId);
+            preparedStatement.setInt(++index, x);
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return "%d;%d".formatted(worldId, x);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.rafaelsms.potocraft.databases;
+
+/**
+ * Where protections are stored, chosen by sql.backend in the configuration.
+ */
+public enum StorageBackend {
+
+    /**
+     * A MariaDB server, which may be shared by every server of the network.
+     */
+    MARIADB,
+    /**
+     * An H2 file inside the plugin folder, for a single server without a database server.
+     */
+    EMBEDDED,
+}
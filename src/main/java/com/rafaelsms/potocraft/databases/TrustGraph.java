@@ -0,0 +1,85 @@
+package com.rafaelsms.potocraft.databases;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who allowed whom, kept in memory in both directions.
+ * <p>
+ * Adjacency sets are immutable and replaced on every change, so they can be read from any thread without locking.
+ * Player ids are interned so each player is stored once however many edges they have.
+ */
+public class TrustGraph {
+
+    private final Map<UUID, UUID> playerIds = new ConcurrentHashMap<>();
+    // Player -> players they allowed
+    private final Map<UUID, Set<UUID>> allowedPlayers = new ConcurrentHashMap<>();
+    // Player -> players that allowed them
+    private final Map<UUID, Set<UUID>> allowingPlayers = new ConcurrentHashMap<>();
+
+    public void add(UUID playerId, UUID allowedPlayerId) {
+        UUID player = intern(playerId);
+        UUID allowedPlayer = intern(allowedPlayerId);
+        allowedPlayers.compute(player, (key, players) -> with(players, allowedPlayer));
+        allowingPlayers.compute(allowedPlayer, (key, players) -> with(players, player));
+    }
+
+    public void remove(UUID playerId, UUID allowedPlayerId) {
+        allowedPlayers.computeIfPresent(playerId, (key, players) -> without(players, allowedPlayerId));
+        allowingPlayers.computeIfPresent(allowedPlayerId, (key, players) -> without(players, playerId));
+    }
+
+    /**
+     * Removes every player allowed by the given player.
+     */
+    public void removeAll(UUID playerId) {
+        Set<UUID> players = allowedPlayers.remove(playerId);
+        if (players == null) {
+            return;
+        }
+        for (UUID allowedPlayer : players) {
+            allowingPlayers.computeIfPresent(allowedPlayer, (key, allowing) -> without(allowing, playerId));
+        }
+    }
+
+    /**
+     * @return players that allowed the given player
+     */
+    public Set<UUID> getAllowingPlayers(UUID allowedPlayerId) {
+        return allowingPlayers.getOrDefault(allowedPlayerId, Set.of());
+    }
+
+    /**
+     * @return the player and every player that allowed them, owners whose blocks don't protect against the player
+     */
+    public Set<UUID> getTrustedOwners(UUID playerId) {
+        Set<UUID> allowing = getAllowingPlayers(playerId);
+        Set<UUID> owners = new HashSet<>(allowing.size() + 1);
+        owners.addAll(allowing);
+        owners.add(playerId);
+        return owners;
+    }
+
+    private UUID intern(UUID playerId) {
+        return playerIds.computeIfAbsent(playerId, key -> key);
+    }
+
+    private static Set<UUID> with(Set<UUID> players, UUID playerId) {
+        if (players == null) {
+            return Set.of(playerId);
+        }
+        Set<UUID> newPlayers = new HashSet<>(players);
+        newPlayers.add(playerId);
+        return Set.copyOf(newPlayers);
+    }
+
+    private static Set<UUID> without(Set<UUID> players, UUID playerId) {
+        Set<UUID> newPlayers = new HashSet<>(players);
+        newPlayers.remove(playerId);
+        // Removing the key leaves no empty sets behind
+        return newPlayers.isEmpty() ? null : Set.copyOf(newPlayers);
+    }
+}
@@ -0,0 +1,76 @@
+package com.rafaelsms.potocraft.listeners;
+
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import com.rafaelsms.potocraft.databases.BlockPosition;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Collects the blocks removed by explosions during a tick and removes them together on the next one.
+ * <p>
+ * TNT chains fire hundreds of explosions in a single tick, often over the same blocks. Every exploded block is kept,
+ * whatever its material: a row may exist for any block (the material list may have changed since it was placed), and
+ * positions without rows are skipped by the presence filter when removed. Other writes and checks must call
+ * {@link #flush()} first, so they see the removals in the order they happened.
+ * <p>
+ * Only used on the main thread.
+ */
+public class BlockRemovalBuffer {
+
+    private final PotoCraftPlugin plugin;
+    private final Set<BlockPosition> removals = new LinkedHashSet<>();
+    private boolean flushScheduled = false;
+
+    public BlockRemovalBuffer(PotoCraftPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * @return false if the removals can't be queued, nothing is buffered and the explosion should be cancelled
+     */
+    public boolean addAll(List<Block> blocks) {
+        // Conservative: the whole buffer must fit in the write queue, even the positions that will be skipped
+        if (!plugin.getBlockDatabase().canQueueWrites(removals.size() + blocks.size())) {
+            return false;
+        }
+
+        for (Block block : blocks) {
+            removals.add(new BlockPosition(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ()));
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (!removals.isEmpty() && !flushScheduled) {
+            flushScheduled = true;
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                flushScheduled = false;
+                flush();
+            });
+        }
+    }
+
+    public void flush() {
+        if (removals.isEmpty()) {
+            return;
+        }
+
+        List<BlockPosition> positions = new ArrayList<>(removals);
+        removals.clear();
+        try {
+            plugin.getBlockDatabase().removeBlocks(positions);
+        } catch (ExecutionException e) {
+            // The blocks are gone: keep every position and try again next tick, queueing one already queued again
+            // only replaces it
+            plugin.logger().warn("Failed to remove {} exploded blocks, retrying: ", positions.size(), e);
+            removals.addAll(positions);
+            scheduleFlush();
+        }
+    }
+}
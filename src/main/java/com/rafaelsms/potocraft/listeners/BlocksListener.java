@@ -2,10 +2,14 @@ package com.rafaelsms.potocraft.listeners;
 
 import com.rafaelsms.potocraft.Permission;
 import com.rafaelsms.potocraft.PotoCraftPlugin;
+import com.rafaelsms.potocraft.databases.AttemptType;
+import com.rafaelsms.potocraft.databases.BlockPosition;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
@@ -32,11 +36,16 @@ import org.bukkit.event.player.PlayerBucketEmptyEvent;
 import org.bukkit.event.player.PlayerBucketEntityEvent;
 import org.bukkit.event.player.PlayerBucketFillEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.world.PortalCreateEvent;
 import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -61,9 +70,12 @@ public class BlocksListener implements Listener {
     private final Set<String> enabledWorldNames = new HashSet<>();
     private final Set<Material> protectedMaterials;
     private final PotoCraftPlugin plugin;
+    private final DenialNotifier denialNotifier;
+    private final BlockRemovalBuffer removalBuffer;
 
     public BlocksListener(PotoCraftPlugin plugin) {
         this.plugin = plugin;
+        this.denialNotifier = new DenialNotifier(plugin);
 
         // Prepare world name list
         this.enabledWorldNames.addAll(
@@ -93,6 +105,14 @@ public class BlocksListener implements Listener {
         // Prevent TNT from being in the list
         materialSet.remove(Material.TNT);
         this.protectedMaterials = Collections.unmodifiableSet(materialSet);
+        this.removalBuffer = new BlockRemovalBuffer(plugin);
+    }
+
+    /**
+     * Removes the blocks of explosions of this tick, should be called before the database is closed.
+     */
+    public void flushRemovals() {
+        removalBuffer.flush();
     }
 
     @EventHandler
@@ -101,16 +121,46 @@ public class BlocksListener implements Listener {
     }
 
     private void handleLoadedWorld(World world) {
-        if (enabledWorldNames.contains(world.getName().toLowerCase())) {
-            this.enabledWorldIds.add(world.getUID());
+        if (enabledWorldNames.contains(world.getName().toLowerCase()) && this.enabledWorldIds.add(world.getUID())) {
+            try {
+                plugin.getBlockDatabase().registerWorld(world.getUID());
+            } catch (ExecutionException e) {
+                plugin.logger().warn("Failed to register world {} (id = {}): ", world.getName(), world.getUID(), e);
+            }
+            // Chunks loaded before the world was enabled (spawn chunks) won't fire events for us
+            for (Chunk chunk : world.getLoadedChunks()) {
+                plugin.getBlockDatabase().loadChunk(world.getUID(), chunk.getX(), chunk.getZ());
+            }
             plugin.logger().info("Protecting world {} (id = {})", world.getName(), world.getUID());
         }
     }
 
-    private enum AttemptType {
-        NATURAL,
-        READ,
-        WRITE
+    @EventHandler
+    private void onQuit(PlayerQuitEvent event) {
+        denialNotifier.forget(event.getPlayer());
+    }
+
+    @EventHandler
+    private void onWorldUnload(WorldUnloadEvent event) {
+        if (this.enabledWorldIds.remove(event.getWorld().getUID())) {
+            plugin.getBlockDatabase().unloadWorld(event.getWorld().getUID());
+        }
+    }
+
+    @EventHandler
+    private void onChunkLoad(ChunkLoadEvent event) {
+        Chunk chunk = event.getChunk();
+        if (enabledWorldIds.contains(chunk.getWorld().getUID())) {
+            plugin.getBlockDatabase().loadChunk(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ());
+        }
+    }
+
+    @EventHandler
+    private void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        if (enabledWorldIds.contains(chunk.getWorld().getUID())) {
+            plugin.getBlockDatabase().unloadChunk(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ());
+        }
     }
 
     private void handleBlockAttempt(Player player, Location location, Cancellable cancellable,
@@ -125,16 +175,18 @@ public class BlocksListener implements Listener {
             return;
         }
 
-        try {
-            // Get player id if given
-            UUID playerId;
-            if (player != null) {
-                playerId = player.getUniqueId();
-            } else {
-                playerId = null;
-            }
+        // Get player id if given
+        UUID playerId;
+        if (player != null) {
+            playerId = player.getUniqueId();
+        } else {
+            playerId = null;
+        }
 
-            // Check database for permissions
+        long start = System.nanoTime();
+        try {
+            // Check database for permissions, after the removals of this tick
+            removalBuffer.flush();
             Optional<UUID> blockOwner;
             switch (attemptType) {
                 case NATURAL -> blockOwner = plugin.getBlockDatabase().getBlockOwnerToNaturalAction(location);
@@ -146,16 +198,20 @@ public class BlocksListener implements Listener {
             // If there is a protected block owner, deny event
             if (blockOwner.isPresent()) {
                 if (player != null) {
-                    player.sendActionBar(plugin.getMessages().getBlockNearbyHasOwner(blockOwner.get()));
+                    denialNotifier.notifyBlockOwner(player, blockOwner.get());
                 }
                 cancellable.setCancelled(true);
             }
         } catch (ExecutionException e) {
-            // If failed, send warning and deny event
-            if (player != null) {
-                player.sendActionBar(plugin.getMessages().getDatabaseAccessError());
+            // If failed, answer from the last known verdict or the policy, warning when denied
+            if (!plugin.getBlockDatabase().isAllowedWhileUnavailable(playerId, location, attemptType)) {
+                if (player != null) {
+                    denialNotifier.notifyDatabaseError(player);
+                }
+                cancellable.setCancelled(true);
             }
-            cancellable.setCancelled(true);
+        } finally {
+            plugin.getMetrics().getHistogram(attemptType.name(), cancellable.getClass()).recordSince(start);
         }
     }
 
@@ -173,9 +229,10 @@ public class BlocksListener implements Listener {
         }
 
         try {
+            removalBuffer.flush();
             plugin.getBlockDatabase().removeBlock(location);
         } catch (ExecutionException e) {
-            event.getPlayer().sendActionBar(plugin.getMessages().getDatabaseAccessError());
+            denialNotifier.notifyDatabaseError(event.getPlayer());
             event.setCancelled(true);
         }
     }
@@ -188,6 +245,7 @@ public class BlocksListener implements Listener {
         }
 
         try {
+            removalBuffer.flush();
             plugin.getBlockDatabase().removeBlock(event.getBlock().getLocation());
         } catch (ExecutionException e) {
             event.setCancelled(true);
@@ -214,10 +272,14 @@ public class BlocksListener implements Listener {
             return;
         }
 
+        long start = System.nanoTime();
         try {
-            plugin.getBlockDatabase().removeBlocks(mapToLocations(blockList));
-        } catch (ExecutionException e) {
-            cancellable.setCancelled(true);
+            // Like any other change, the explosion is cancelled if its removals can't be written
+            if (!removalBuffer.addAll(blockList)) {
+                cancellable.setCancelled(true);
+            }
+        } finally {
+            plugin.getMetrics().getHistogram("EXPLOSION", cancellable.getClass()).recordSince(start);
         }
     }
 
@@ -257,9 +319,10 @@ public class BlocksListener implements Listener {
         try {
             UUID playerId = event.getPlayer().getUniqueId();
             Location location = event.getBlock().getLocation();
+            removalBuffer.flush();
             plugin.getBlockDatabase().addProtectedBlock(playerId, location);
         } catch (ExecutionException e) {
-            event.getPlayer().sendActionBar(plugin.getMessages().getDatabaseAccessError());
+            denialNotifier.notifyDatabaseError(event.getPlayer());
             event.setCancelled(true);
         }
     }
@@ -382,17 +445,24 @@ public class BlocksListener implements Listener {
 
         // Check player permissions
         Player player = event.getPlayer();
+        long start = System.nanoTime();
         try {
+            removalBuffer.flush();
             Optional<UUID> blockOwner =
                 plugin.getBlockDatabase().getBlockOwnerToRead(player.getUniqueId(), block.getLocation());
 
             if (blockOwner.isPresent()) {
-                player.sendActionBar(plugin.getMessages().getBlockNearbyHasOwner(blockOwner.get()));
+                denialNotifier.notifyBlockOwner(player, blockOwner.get());
                 event.setUseInteractedBlock(Event.Result.DENY);
             }
         } catch (ExecutionException e) {
-            player.sendActionBar(plugin.getMessages().getDatabaseAccessError());
-            event.setUseInteractedBlock(Event.Result.DENY);
+            if (!plugin.getBlockDatabase()
+                       .isAllowedWhileUnavailable(player.getUniqueId(), block.getLocation(), AttemptType.READ)) {
+                denialNotifier.notifyDatabaseError(player);
+                event.setUseInteractedBlock(Event.Result.DENY);
+            }
+        } finally {
+            plugin.getMetrics().getHistogram("INTERACT", event.getClass()).recordSince(start);
         }
     }
 
@@ -520,11 +590,7 @@ public class BlocksListener implements Listener {
             return;
         }
 
-        try {
-            plugin.getBlockDatabase().removeBlocks(mapToLocations(event.getBlocks()));
-        } catch (ExecutionException e) {
-            event.setCancelled(true);
-        }
+        moveBlocks(event.getBlocks(), event.getDirection(), event);
     }
 
     @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
@@ -534,17 +600,34 @@ public class BlocksListener implements Listener {
             return;
         }
 
+        moveBlocks(event.getBlocks(), event.getDirection(), event);
+    }
+
+    /**
+     * @param direction where the blocks move to, for both extending and retracting pistons
+     */
+    private void moveBlocks(List<Block> blocks, BlockFace direction, Cancellable cancellable) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        List<BlockPosition> positions = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            positions.add(new BlockPosition(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ()));
+        }
+
+        long start = System.nanoTime();
         try {
-            plugin.getBlockDatabase().removeBlocks(mapToLocations(event.getBlocks()));
+            removalBuffer.flush();
+            plugin.getBlockDatabase()
+                  .moveBlocks(positions, direction.getModX(), direction.getModY(), direction.getModZ());
         } catch (ExecutionException e) {
-            event.setCancelled(true);
+            cancellable.setCancelled(true);
+        } finally {
+            plugin.getMetrics().getHistogram("PISTON", cancellable.getClass()).recordSince(start);
         }
     }
 
-    private static List<Location> mapToLocations(List<Block> blocks) {
-        return blocks.stream().map(Block::getLocation).toList();
-    }
-
     private static boolean containsInvalidPistonBlocks(List<Block> blocks) {
         for (Block block : blocks) {
             // Prevent recursive/moving contraptions
@@ -0,0 +1,126 @@
+package com.rafaelsms.potocraft.listeners;
+
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import net.kyori.adventure.text.Component;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Sends denial messages to the action bar, at most once per interval for the same message.
+ * <p>
+ * Players holding a click against a protected block are denied every tick. The first denial is shown right away, the
+ * ones repeated within the interval are counted and shown as a summary with the last message when it ends.
+ * <p>
+ * A different message within the interval sends the summary of the previous one right away. The new message is then
+ * counted and shown when the interval ends, so the summary isn't replaced as soon as it is shown.
+ * <p>
+ * Only used on the main thread.
+ */
+public class DenialNotifier {
+
+    private static final long SUMMARY_PERIOD_TICKS = 5;
+    private static final Object DATABASE_ERROR = new Object();
+
+    private final PotoCraftPlugin plugin;
+    private final long intervalMillis;
+    private final Map<UUID, Notification> notifications = new HashMap<>();
+
+    public DenialNotifier(PotoCraftPlugin plugin) {
+        this.plugin = plugin;
+        this.intervalMillis = plugin.getConfiguration().getDenialNotificationMillis();
+        plugin.getServer().getScheduler().runTaskTimer(plugin, this::sendSummaries, SUMMARY_PERIOD_TICKS,
+            SUMMARY_PERIOD_TICKS);
+    }
+
+    public void notifyBlockOwner(Player player, UUID owner) {
+        notify(player, owner, () -> plugin.getMessages().getBlockNearbyHasOwner(owner));
+    }
+
+    public void notifyDatabaseError(Player player) {
+        notify(player, DATABASE_ERROR, () -> plugin.getMessages().getDatabaseAccessError());
+    }
+
+    public void forget(Player player) {
+        notifications.remove(player.getUniqueId());
+    }
+
+    /**
+     * @param key identifies the message, so it is rendered only when sent
+     */
+    private void notify(Player player, Object key, Supplier<Component> message) {
+        long now = System.currentTimeMillis();
+        Notification notification = notifications.get(player.getUniqueId());
+        if (notification != null && notification.key.equals(key) && now < notification.intervalEnd) {
+            notification.repeated++;
+            return;
+        }
+
+        if (notification == null) {
+            notification = new Notification(player);
+            notifications.put(player.getUniqueId(), notification);
+        } else if (notification.repeated > 0 && now < notification.intervalEnd) {
+            sendSummary(notification);
+            notification.key = key;
+            notification.message = message.get();
+            notification.intervalEnd = now + intervalMillis;
+            notification.repeated = 1;
+            notification.shown = false;
+            return;
+        }
+        notification.key = key;
+        notification.message = message.get();
+        notification.intervalEnd = now + intervalMillis;
+        notification.repeated = 0;
+        notification.shown = true;
+        player.sendActionBar(notification.message);
+    }
+
+    private void sendSummaries() {
+        long now = System.currentTimeMillis();
+        Iterator<Notification> iterator = notifications.values().iterator();
+        while (iterator.hasNext()) {
+            Notification notification = iterator.next();
+            if (now < notification.intervalEnd) {
+                continue;
+            }
+            if (notification.repeated == 0) {
+                iterator.remove();
+                continue;
+            }
+
+            sendSummary(notification);
+            notification.intervalEnd = now + intervalMillis;
+            notification.repeated = 0;
+            notification.shown = false;
+        }
+    }
+
+    private void sendSummary(Notification notification) {
+        // Every attempt of the interval, including the one shown when it started
+        int attempts = notification.repeated + (notification.shown ? 1 : 0);
+        if (attempts == 1) {
+            notification.player.sendActionBar(notification.message);
+        } else {
+            notification.player.sendActionBar(plugin.getMessages().getAttemptsBlocked(notification.message, attempts));
+        }
+    }
+
+    private static class Notification {
+
+        private final Player player;
+        private Object key;
+        private Component message;
+        private long intervalEnd;
+        private int repeated;
+        private boolean shown;
+
+        private Notification(Player player) {
+            this.player = player;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.rafaelsms.potocraft.listeners;
+
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+public class PlayerNamesListener implements Listener {
+
+    private final PotoCraftPlugin plugin;
+
+    public PlayerNamesListener(PotoCraftPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onJoin(PlayerJoinEvent event) {
+        plugin.getPlayerNames().put(event.getPlayer().getUniqueId(), event.getPlayer().getName());
+    }
+}
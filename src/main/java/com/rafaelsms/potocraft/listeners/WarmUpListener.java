@@ -0,0 +1,114 @@
+package com.rafaelsms.potocraft.listeners;
+
+import com.rafaelsms.potocraft.PotoCraftPlugin;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads protections around spawn and the last positions of recently active players on start, so the first checks
+ * after a restart don't wait for the database.
+ */
+public class WarmUpListener implements Listener {
+
+    private static final String FILE_NAME = "recent_players.yml";
+    private static final long TICKS_PER_MINUTE = 20 * 60;
+
+    private final PotoCraftPlugin plugin;
+    private final File file;
+    private final YamlConfiguration recentPlayers;
+    private final Set<String> enabledWorldNames = new HashSet<>();
+
+    public WarmUpListener(PotoCraftPlugin plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), FILE_NAME);
+        this.recentPlayers = YamlConfiguration.loadConfiguration(file);
+        this.enabledWorldNames.addAll(
+            plugin.getConfiguration().getProtectedWorldList().stream().map(String::toLowerCase).toList());
+    }
+
+    /**
+     * Retains the areas of recent players for a while and loads everything retained since
+     * {@link com.rafaelsms.potocraft.databases.BlockDatabase#startWarmUp()} in the background.
+     */
+    public void warmUp() {
+        long oldestSeen = System.currentTimeMillis() -
+                          TimeUnit.HOURS.toMillis(plugin.getConfiguration().getWarmUpRecentPlayerHours());
+        long holdTicks = plugin.getConfiguration().getWarmUpHoldMinutes() * TICKS_PER_MINUTE;
+        int players = 0;
+        for (String playerId : recentPlayers.getKeys(false)) {
+            ConfigurationSection position = recentPlayers.getConfigurationSection(playerId);
+            if (position == null || position.getLong("seen") < oldestSeen) {
+                recentPlayers.set(playerId, null);
+                continue;
+            }
+
+            World world = plugin.getServer().getWorld(position.getString("world", ""));
+            if (world == null || !enabledWorldNames.contains(world.getName().toLowerCase())) {
+                continue;
+            }
+            int chunkX = position.getInt("x") >> 4;
+            int chunkZ = position.getInt("z") >> 4;
+            plugin.getBlockDatabase().loadChunk(world.getUID(), chunkX, chunkZ);
+            plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+                // Areas of unloaded worlds were already released
+                if (plugin.getServer().getWorld(world.getUID()) != null) {
+                    plugin.getBlockDatabase().unloadChunk(world.getUID(), chunkX, chunkZ);
+                }
+            }, holdTicks);
+            players++;
+        }
+        plugin.logger().info("Warming up protections around spawn and {} recent players", players);
+
+        int concurrency = plugin.getConfiguration().getWarmUpConcurrency();
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                plugin.getBlockDatabase().warmUp(concurrency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                plugin.logger().warn("Failed to warm up protections: ", e);
+            }
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onQuit(PlayerQuitEvent event) {
+        remember(event.getPlayer());
+    }
+
+    /**
+     * Remembers the positions of online players for the next start.
+     */
+    public void save() {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            remember(player);
+        }
+        try {
+            recentPlayers.save(file);
+        } catch (IOException e) {
+            plugin.logger().warn("Failed to save recent player positions: ", e);
+        }
+    }
+
+    private void remember(Player player) {
+        Location location = player.getLocation();
+        String playerId = player.getUniqueId().toString();
+        recentPlayers.set(playerId + ".world", location.getWorld().getName());
+        recentPlayers.set(playerId + ".x", location.getBlockX());
+        recentPlayers.set(playerId + ".z", location.getBlockZ());
+        recentPlayers.set(playerId + ".seen", System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,158 @@
+package com.rafaelsms.potocraft.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram over the last minute, in the spirit of HdrHistogram: buckets are linear within each power of two,
+ * so percentiles are within 1/32 of the real value.
+ * <p>
+ * Recording never locks nor allocates. The minute is split in windows that are cleared when reused, so readers and
+ * recorders racing with a clear may lose or see a few values.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to about 18 minutes
+    private static final int VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << VALUE_BITS) - 1;
+    private static final int BUCKETS = (VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final int WINDOWS = 6;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(WINDOWS * BUCKETS);
+    private final AtomicLongArray windowEpochs = new AtomicLongArray(WINDOWS);
+    private final AtomicLongArray windowTotals = new AtomicLongArray(WINDOWS);
+    private final AtomicLongArray windowMaximums = new AtomicLongArray(WINDOWS);
+    private final AtomicLongArray windowTickMaximums = new AtomicLongArray(WINDOWS);
+    private final AtomicLong tick = new AtomicLong();
+    private final AtomicLong tickTotal = new AtomicLong();
+    private final long creationNanos = System.nanoTime();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        for (int window = 0; window < WINDOWS; window++) {
+            windowEpochs.set(window, Long.MIN_VALUE);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        long now = System.nanoTime();
+        long value = Math.max(0, Math.min(now - startNanos, MAX_VALUE));
+
+        int window = getWindow(now);
+        counts.incrementAndGet(window * BUCKETS + getBucket(value));
+        windowTotals.addAndGet(window, value);
+        windowMaximums.accumulateAndGet(window, value, Math::max);
+
+        // Ticks are approximated by 50 ms of wall time
+        long currentTick = Math.floorDiv(now, TICK_NANOS);
+        long lastTick = tick.get();
+        if (lastTick != currentTick && tick.compareAndSet(lastTick, currentTick)) {
+            tickTotal.set(0);
+        }
+        long total = tickTotal.addAndGet(value);
+        windowTickMaximums.accumulateAndGet(window, total, Math::max);
+    }
+
+    private int getWindow(long now) {
+        long epoch = Math.floorDiv(now, WINDOW_NANOS);
+        int window = (int) Math.floorMod(epoch, WINDOWS);
+        long windowEpoch = windowEpochs.get(window);
+        if (windowEpoch != epoch && windowEpochs.compareAndSet(window, windowEpoch, epoch)) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts.set(window * BUCKETS + bucket, 0);
+            }
+            windowTotals.set(window, 0);
+            windowMaximums.set(window, 0);
+            windowTickMaximums.set(window, 0);
+        }
+        return window;
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle value of the bucket
+     */
+    private static long getBucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) / 2;
+    }
+
+    /**
+     * Sums the windows of the last minute.
+     */
+    public Snapshot getSnapshot() {
+        long now = System.nanoTime();
+        long epoch = Math.floorDiv(now, WINDOW_NANOS);
+        long[] bucketCounts = new long[BUCKETS];
+        long count = 0, total = 0, maximum = 0, tickMaximum = 0;
+        for (int window = 0; window < WINDOWS; window++) {
+            long windowEpoch = windowEpochs.get(window);
+            if (windowEpoch == Long.MIN_VALUE || epoch - windowEpoch >= WINDOWS) {
+                continue;
+            }
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long bucketCount = counts.get(window * BUCKETS + bucket);
+                bucketCounts[bucket] += bucketCount;
+                count += bucketCount;
+            }
+            total += windowTotals.get(window);
+            maximum = Math.max(maximum, windowMaximums.get(window));
+            tickMaximum = Math.max(tickMaximum, windowTickMaximums.get(window));
+        }
+
+        // The current window is only partially elapsed
+        long elapsed =
+            Math.min(now - creationNanos, (WINDOWS - 1) * WINDOW_NANOS + Math.floorMod(now, WINDOW_NANOS));
+        long ticks = Math.max(1, elapsed / TICK_NANOS);
+        return new Snapshot(name, count, getPercentile(bucketCounts, count, 0.5),
+            getPercentile(bucketCounts, count, 0.99), maximum, total / ticks, tickMaximum);
+    }
+
+    private static long getPercentile(long[] bucketCounts, long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+            seen += bucketCounts[bucket];
+            if (seen >= rank && seen > 0) {
+                return getBucketValue(bucket);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Values of the last minute, in nanoseconds.
+     *
+     * @param tickAverage time recorded per tick on average
+     * @param tickMaximum time recorded in the worst tick
+     */
+    public record Snapshot(String name, long count, long p50, long p99, long maximum, long tickAverage,
+                           long tickMaximum) {
+    }
+}
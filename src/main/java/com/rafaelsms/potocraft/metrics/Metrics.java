@@ -0,0 +1,70 @@
+package com.rafaelsms.potocraft.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms and gauges shown by /potocraft stats.
+ * <p>
+ * Histograms are created on first use and looked up without allocating afterwards, as long as the names are
+ * constants.
+ */
+public class Metrics {
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Map<Class<?>, LatencyHistogram>> typeHistograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    /**
+     * @return the histogram of the group for the given type, such as an event class
+     */
+    public LatencyHistogram getHistogram(String group, Class<?> type) {
+        Map<Class<?>, LatencyHistogram> groupHistograms = typeHistograms.get(group);
+        if (groupHistograms == null) {
+            groupHistograms = typeHistograms.computeIfAbsent(group, key -> new ConcurrentHashMap<>());
+        }
+        LatencyHistogram histogram = groupHistograms.get(type);
+        if (histogram != null) {
+            return histogram;
+        }
+        return groupHistograms.computeIfAbsent(type,
+            key -> getHistogram("%s %s".formatted(group, type.getSimpleName())));
+    }
+
+    public void addGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return histograms sorted by name
+     */
+    public List<LatencyHistogram.Snapshot> getSnapshots() {
+        List<LatencyHistogram.Snapshot> snapshots = new ArrayList<>();
+        for (LatencyHistogram histogram : histograms.values()) {
+            snapshots.add(histogram.getSnapshot());
+        }
+        snapshots.sort((a, b) -> a.name().compareTo(b.name()));
+        return snapshots;
+    }
+
+    /**
+     * @return current gauge values sorted by name
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new ConcurrentSkipListMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+}
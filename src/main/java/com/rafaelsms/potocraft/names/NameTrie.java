@@ -0,0 +1,113 @@
+package com.rafaelsms.potocraft.names;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Case-insensitive prefix tree of player names, for exact lookups and completion in alphabetical order.
+ * <p>
+ * Children are kept in sorted arrays: nodes of player names have few children, mostly from [a-z0-9_].
+ * Not thread-safe.
+ */
+class NameTrie {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node();
+
+    /**
+     * Sets the player of the name, replacing whoever had it before.
+     */
+    public void put(String name, UUID playerId) {
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.getOrAddChild(Character.toLowerCase(name.charAt(i)));
+        }
+        node.name = name;
+        node.playerId = playerId;
+    }
+
+    /**
+     * Removes the name if it still belongs to the player.
+     */
+    public void remove(String name, UUID playerId) {
+        Node node = find(name);
+        if (node != null && playerId.equals(node.playerId)) {
+            node.name = null;
+            node.playerId = null;
+        }
+    }
+
+    /**
+     * @return the player with the name ignoring case, null if none
+     */
+    public UUID get(String name) {
+        Node node = find(name);
+        return node == null ? null : node.playerId;
+    }
+
+    /**
+     * @return up to the limit of names starting with the prefix ignoring case, in alphabetical order
+     */
+    public List<String> complete(String prefix, int limit) {
+        List<String> names = new ArrayList<>();
+        Node node = find(prefix);
+        if (node != null) {
+            collect(node, names, limit);
+        }
+        return names;
+    }
+
+    private static void collect(Node node, List<String> names, int limit) {
+        if (node.name != null) {
+            names.add(node.name);
+        }
+        for (int i = 0; i < node.keys.length && names.size() < limit; i++) {
+            collect(node.children[i], names, limit);
+        }
+    }
+
+    private Node find(String name) {
+        Node node = root;
+        for (int i = 0; i < name.length() && node != null; i++) {
+            node = node.getChild(Character.toLowerCase(name.charAt(i)));
+        }
+        return node;
+    }
+
+    private static class Node {
+
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private String name = null;
+        private UUID playerId = null;
+
+        private Node getChild(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrAddChild(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                return children[index];
+            }
+
+            int insertion = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertion);
+            System.arraycopy(children, 0, newChildren, 0, insertion);
+            System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+            System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+            newKeys[insertion] = key;
+            newChildren[insertion] = new Node();
+            this.keys = newKeys;
+            this.children = newChildren;
+            return newChildren[insertion];
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.rafaelsms.potocraft.names;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Names of players that played on the server, so commands and messages never ask Mojang for a profile.
+ * <p>
+ * Filled from the server's player data on the first load, usercache.json and players joining, and saved to the plugin folder so names of players
+ * that left the usercache are kept. Methods may be called from any thread.
+ */
+public class PlayerNameIndex {
+
+    private static final String FILE_NAME = "player_names.txt";
+    private static final String USER_CACHE = "usercache.json";
+
+    private final JavaPlugin plugin;
+    private final Path path;
+    private final Map<UUID, String> names = new HashMap<>();
+    private final NameTrie playerIds = new NameTrie();
+    private boolean dirty = false;
+
+    public PlayerNameIndex(JavaPlugin plugin) {
+        this.plugin = plugin;
+        this.path = plugin.getDataFolder().toPath().resolve(FILE_NAME);
+    }
+
+    /**
+     * Reads the saved names, then the usercache, which has the latest names of players who joined recently.
+     * <p>
+     * Without saved names, every player that played before is read from the server's player data first, as the
+     * usercache only keeps recent players.
+     */
+    public void load() {
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator > 0) {
+                        put(UUID.fromString(line.substring(0, separator)), line.substring(separator + 1));
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                plugin.getSLF4JLogger().warn("Failed to read player names: ", e);
+            }
+        } else {
+            for (OfflinePlayer player : plugin.getServer().getOfflinePlayers()) {
+                String name = player.getName();
+                if (name != null) {
+                    put(player.getUniqueId(), name);
+                }
+            }
+        }
+
+        Path userCache = Path.of(USER_CACHE);
+        if (Files.exists(userCache)) {
+            try (BufferedReader reader = Files.newBufferedReader(userCache, StandardCharsets.UTF_8)) {
+                for (JsonElement element : JsonParser.parseReader(reader).getAsJsonArray()) {
+                    JsonObject profile = element.getAsJsonObject();
+                    UUID playerId = UUID.fromString(profile.get("uuid").getAsString());
+                    // The usercache also has profiles looked up by other plugins and commands
+                    if (plugin.getServer().getOfflinePlayer(playerId).hasPlayedBefore()) {
+                        put(playerId, profile.get("name").getAsString());
+                    }
+                }
+            } catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException e) {
+                plugin.getSLF4JLogger().warn("Failed to read the server usercache: ", e);
+            }
+        }
+        plugin.getSLF4JLogger().info("Loaded {} player names.", size());
+    }
+
+    /**
+     * Writes the names to a new file, replacing the saved one atomically.
+     */
+    public void save() {
+        Map<UUID, String> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = Map.copyOf(names);
+            dirty = false;
+        }
+
+        Path temporaryPath = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+                for (Map.Entry<UUID, String> entry : snapshot.entrySet()) {
+                    writer.write(entry.getKey() + " " + entry.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getSLF4JLogger().warn("Failed to save player names: ", e);
+        }
+    }
+
+    /**
+     * Sets the current name of the player, the name stops pointing to whoever had it before.
+     */
+    public synchronized void put(UUID playerId, String name) {
+        String previousName = names.put(playerId, name);
+        if (name.equals(previousName)) {
+            return;
+        }
+        if (previousName != null) {
+            playerIds.remove(previousName, playerId);
+        }
+        playerIds.put(name, playerId);
+        dirty = true;
+    }
+
+    /**
+     * @return the last known name of the player, null if they never joined
+     */
+    public synchronized String getName(UUID playerId) {
+        return names.get(playerId);
+    }
+
+    /**
+     * @return the player with the name ignoring case, null if no player that joined has it
+     */
+    public synchronized UUID getPlayerId(String name) {
+        return playerIds.get(name);
+    }
+
+    /**
+     * @return up to the limit of names starting with the prefix ignoring case, in alphabetical order
+     */
+    public synchronized List<String> complete(String prefix, int limit) {
+        return playerIds.complete(prefix, limit);
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,179 @@
+package com.rafaelsms.potocraft.databases;
+
+import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugin databases on one storage backend, starting from an empty database. They can be closed and opened again
+ * on the same data, as on a restart.
+ */
+public class ConformanceDatabase implements AutoCloseable {
+
+    private static final UUID WORLD_ID = new UUID(0x5EED, 0x5EED);
+    // Checks may wait for a cold database, missing a deadline would fail the test instead of answering
+    private static final int CHECK_DEADLINE_MILLIS = 30_000;
+
+    public enum Backend {
+        // Checks answered from memory, loaded from the embedded database
+        CACHE(StorageBackend.EMBEDDED, List.of("protectedBlocksH2.dateModified")),
+        EMBEDDED(StorageBackend.EMBEDDED, List.of("protectedBlocksH2.dateModified")),
+        LEGACY(StorageBackend.MARIADB, List.of("protectedBlocks.dateModified", "protectedBlocksV2.dateModified",
+            "protectionCellsV2.latestDate")),
+        COMPACT(StorageBackend.MARIADB, List.of("protectedBlocksV2.dateModified", "protectionCellsV2.latestDate")),
+        CELLS(StorageBackend.MARIADB, List.of("protectedBlocksV2.dateModified", "protectionCellsV2.latestDate"));
+
+        private final StorageBackend storageBackend;
+        // Date columns of every table that may answer a check
+        private final List<String> dateColumns;
+
+        Backend(StorageBackend storageBackend, List<String> dateColumns) {
+            this.storageBackend = storageBackend;
+            this.dateColumns = dateColumns;
+        }
+
+        public StorageBackend getStorageBackend() {
+            return storageBackend;
+        }
+    }
+
+    private final Backend backend;
+    private final Configuration configuration;
+    private final World world;
+    private DatabasePool pool;
+    private SchemaMigration migration;
+    private PlayerDatabase playerDatabase;
+    private BlockDatabase blockDatabase;
+
+    /**
+     * @param jdbcUrl       empty MariaDB database, unused by the embedded backends
+     * @param embeddedFile  path of the embedded database, unused by the MariaDB backends
+     */
+    public ConformanceDatabase(Backend backend, String jdbcUrl, Path embeddedFile) throws Exception {
+        this.backend = backend;
+        this.configuration = getConfiguration(backend, jdbcUrl, embeddedFile);
+        this.world = DatabaseFixtures.createWorld(WORLD_ID);
+
+        switch (backend) {
+            case LEGACY -> {
+                // Servers that ran before the compact schema have the legacy tables only
+                this.pool = createPool();
+                pool.executeFuture(connection -> {
+                    for (String statement : new LegacySchema().getCreateStatements()) {
+                        try (PreparedStatement preparedStatement = connection.prepareStatement(statement)) {
+                            preparedStatement.executeUpdate();
+                        }
+                    }
+                });
+                pool.close();
+            }
+            case COMPACT -> {
+                // Protected blocks were copied but the protection cells are still being built
+                open();
+                close();
+                this.pool = createPool();
+                pool.executeFuture(connection -> {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "UPDATE protectionSchema SET version = 2, progress = NULL;")) {
+                        preparedStatement.executeUpdate();
+                    }
+                });
+                pool.close();
+            }
+        }
+        open();
+    }
+
+    private static Configuration getConfiguration(Backend backend, String jdbcUrl, Path embeddedFile)
+        throws Exception {
+        YamlConfiguration yaml = DatabaseFixtures.getConfiguration(
+            backend.getStorageBackend() == StorageBackend.EMBEDDED ? "embedded" : "mariadb", embeddedFile.toString(),
+            jdbcUrl, 4);
+        yaml.set("protection.check_deadline_natural_millis", CHECK_DEADLINE_MILLIS);
+        yaml.set("protection.check_deadline_read_millis", CHECK_DEADLINE_MILLIS);
+        yaml.set("protection.check_deadline_write_millis", CHECK_DEADLINE_MILLIS);
+        // Nothing runs in the background but the write queue
+        yaml.set("protection.trust_refresh_seconds", 0);
+        yaml.set("protection.sweep_interval_minutes", 0);
+        return new Configuration(yaml);
+    }
+
+    private DatabasePool createPool() {
+        return new DatabasePool(configuration, new Metrics(), LoggerFactory.getLogger("PotoCraft"));
+    }
+
+    private void open() throws Exception {
+        this.pool = createPool();
+        this.migration = new SchemaMigration(pool);
+        this.playerDatabase = new PlayerDatabase(configuration, pool, migration);
+        this.blockDatabase = new BlockDatabase(configuration, pool, migration, playerDatabase);
+        blockDatabase.registerWorld(WORLD_ID);
+
+        if (backend == Backend.CACHE) {
+            // Every location the tests check is inside the chunks around the origin
+            blockDatabase.startWarmUp();
+            for (int chunkX = -1; chunkX <= 1; chunkX++) {
+                for (int chunkZ = -1; chunkZ <= 1; chunkZ++) {
+                    blockDatabase.loadChunk(WORLD_ID, chunkX, chunkZ);
+                }
+            }
+            blockDatabase.warmUp(1);
+        }
+    }
+
+    /**
+     * Writes every queued change and opens the databases again.
+     */
+    public void reopen() throws Exception {
+        close();
+        open();
+    }
+
+    /**
+     * Moves the date of every protected block back by the given number of days, as if they were last modified then.
+     */
+    public void age(int days) throws Exception {
+        blockDatabase.flushWrites();
+        Timestamp date = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+        pool.executeFuture(connection -> {
+            for (String dateColumn : backend.dateColumns) {
+                String[] tableColumn = dateColumn.split("\\.");
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "UPDATE %s SET %s = ?;".formatted(tableColumn[0], tableColumn[1]))) {
+                    preparedStatement.setTimestamp(1, date);
+                    preparedStatement.executeUpdate();
+                }
+            }
+        });
+    }
+
+    public Location getLocation(int x, int y, int z) {
+        return new Location(world, x, y, z);
+    }
+
+    public PlayerDatabase getPlayerDatabase() {
+        return playerDatabase;
+    }
+
+    public BlockDatabase getBlockDatabase() {
+        return blockDatabase;
+    }
+
+    @Override
+    public void close() throws Exception {
+        blockDatabase.close(1, TimeUnit.MINUTES);
+        playerDatabase.close();
+        migration.close();
+        pool.close();
+    }
+}
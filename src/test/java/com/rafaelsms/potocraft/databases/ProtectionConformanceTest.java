@@ -0,0 +1,187 @@
+package com.rafaelsms.potocraft.databases;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import com.rafaelsms.potocraft.Configuration;
+import com.rafaelsms.potocraft.databases.ConformanceDatabase.Backend;
+import org.bukkit.Location;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Every storage backend answers protection checks the same way: who owns a built area, which players are allowed in
+ * it and when its protection expires.
+ * <p>
+ * The MariaDB backends share an embedded server, each test gets an empty database of its own.
+ */
+class ProtectionConformanceTest {
+
+    private static final UUID OWNER = new UUID(1, 1);
+    private static final UUID ALLOWED = new UUID(2, 2);
+    private static final UUID STRANGER = new UUID(3, 3);
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @TempDir
+    static Path serverDirectory;
+    private static DB server;
+
+    @TempDir
+    Path directory;
+    private ConformanceDatabase database;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        DBConfigurationBuilder configuration = DBConfigurationBuilder.newBuilder();
+        configuration.setPort(0);
+        configuration.setBaseDir(serverDirectory.resolve("base").toString());
+        configuration.setDataDir(serverDirectory.resolve("data").toString());
+        // mysqld refuses to run as root unless told to, as in containers
+        if ("root".equals(System.getProperty("user.name"))) {
+            configuration.addArg("--user=root");
+        }
+        server = DB.newEmbeddedDB(configuration.build());
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    private ConformanceDatabase open(Backend backend) throws Exception {
+        String jdbcUrl = "jdbc:mariadb://127.0.0.1:%d/".formatted(server.getConfiguration().getPort());
+        String name = "conformance" + DATABASES.incrementAndGet();
+        if (backend.getStorageBackend() == StorageBackend.MARIADB) {
+            try (Connection connection = DriverManager.getConnection(jdbcUrl, "root", "");
+                 PreparedStatement preparedStatement = connection.prepareStatement("CREATE DATABASE " + name)) {
+                preparedStatement.executeUpdate();
+            }
+        }
+        this.database = new ConformanceDatabase(backend, jdbcUrl + name + "?useSSL=false",
+            directory.resolve("protection"));
+        return database;
+    }
+
+    /**
+     * Places a solid 3x3x3 cube, the 27 blocks are just enough together to be permanent.
+     */
+    private static void build(ConformanceDatabase database, UUID playerId) throws Exception {
+        for (int x = 0; x < 3; x++) {
+            for (int y = 64; y < 67; y++) {
+                for (int z = 0; z < 3; z++) {
+                    database.getBlockDatabase().addProtectedBlock(playerId, database.getLocation(x, y, z));
+                }
+            }
+        }
+        database.getBlockDatabase().flushWrites();
+    }
+
+    private static Optional<UUID> getOwnerToWrite(ConformanceDatabase database, UUID playerId, int x, int z)
+        throws Exception {
+        return database.getBlockDatabase().getBlockOwnerToWrite(playerId, database.getLocation(x, 64, z));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    void builtAreaIsProtectedFromOtherPlayers(Backend backend) throws Exception {
+        ConformanceDatabase database = open(backend);
+        build(database, OWNER);
+
+        BlockDatabase blockDatabase = database.getBlockDatabase();
+        Location near = database.getLocation(20, 64, 20);
+        assertEquals(Optional.of(OWNER), blockDatabase.getBlockOwnerToWrite(STRANGER, near));
+        assertEquals(Optional.of(OWNER), blockDatabase.getBlockOwnerToRead(STRANGER, near));
+        assertEquals(Optional.of(OWNER), blockDatabase.getBlockOwnerToWrite(near));
+        assertEquals(Optional.empty(), blockDatabase.getBlockOwnerToWrite(OWNER, near));
+
+        // Read protection reaches half as far as write protection
+        Location far = database.getLocation(Configuration.READ_DISTANCE_PROTECTION + 10, 64, 1);
+        assertEquals(Optional.of(OWNER), blockDatabase.getBlockOwnerToWrite(STRANGER, far));
+        assertEquals(Optional.empty(), blockDatabase.getBlockOwnerToRead(STRANGER, far));
+        assertEquals(Optional.empty(), getOwnerToWrite(database, STRANGER, 200, 200));
+
+        // Protection survives a restart
+        database.reopen();
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, STRANGER, 20, 20));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    void loneBlocksAreNotProtected(Backend backend) throws Exception {
+        ConformanceDatabase database = open(backend);
+        database.getBlockDatabase().addProtectedBlock(OWNER, database.getLocation(0, 64, 0));
+        database.getBlockDatabase().flushWrites();
+
+        assertEquals(Optional.empty(), getOwnerToWrite(database, STRANGER, 1, 1));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    void allowedPlayersAreNotProtectedAgainst(Backend backend) throws Exception {
+        ConformanceDatabase database = open(backend);
+        build(database, OWNER);
+        PlayerDatabase playerDatabase = database.getPlayerDatabase();
+
+        assertTrue(playerDatabase.addAllowedPlayer(OWNER, ALLOWED));
+        assertFalse(playerDatabase.addAllowedPlayer(OWNER, ALLOWED));
+        assertEquals(List.of(ALLOWED), playerDatabase.getPlayersAllowed(OWNER));
+        assertEquals(Optional.empty(), getOwnerToWrite(database, ALLOWED, 20, 20));
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, STRANGER, 20, 20));
+
+        // Allowed players are kept on restart
+        database.reopen();
+        playerDatabase = database.getPlayerDatabase();
+        assertEquals(Optional.empty(), getOwnerToWrite(database, ALLOWED, 20, 20));
+
+        assertTrue(playerDatabase.removeAllowedPlayer(OWNER, ALLOWED));
+        assertFalse(playerDatabase.removeAllowedPlayer(OWNER, ALLOWED));
+        assertEquals(List.of(), playerDatabase.getPlayersAllowed(OWNER));
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, ALLOWED, 20, 20));
+
+        playerDatabase.addAllowedPlayer(OWNER, ALLOWED);
+        playerDatabase.addAllowedPlayer(OWNER, STRANGER);
+        playerDatabase.removeAllowedPlayers(OWNER);
+        assertEquals(List.of(), playerDatabase.getPlayersAllowed(OWNER));
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, ALLOWED, 20, 20));
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, STRANGER, 20, 20));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    void protectionExpires(Backend backend) throws Exception {
+        ConformanceDatabase database = open(backend);
+        build(database, OWNER);
+
+        database.age(Configuration.DAYS_PROTECTED - 1);
+        database.reopen();
+        assertEquals(Optional.of(OWNER), getOwnerToWrite(database, STRANGER, 20, 20));
+
+        database.age(Configuration.DAYS_PROTECTED + 1);
+        database.reopen();
+        assertEquals(Optional.empty(), getOwnerToWrite(database, STRANGER, 20, 20));
+    }
+}
@@ -0,0 +1,59 @@
+package com.rafaelsms.potocraft.databases;
+
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Setup shared by the conformance tests and the benchmarks, which run the databases without a server.
+ */
+public final class DatabaseFixtures {
+
+    private DatabaseFixtures() {
+    }
+
+    /**
+     * @param backend      "mariadb" or "embedded"
+     * @param embeddedFile path of the embedded database, unused by MariaDB
+     * @param jdbcUrl      MariaDB database reached as root without a password, unused by the embedded database
+     * @return the default configuration on the given database, natural checks are never throttled
+     */
+    public static YamlConfiguration getConfiguration(String backend, String embeddedFile, String jdbcUrl,
+        int poolSize) throws IOException {
+        YamlConfiguration yaml;
+        try (Reader reader = new InputStreamReader(
+            Objects.requireNonNull(DatabaseFixtures.class.getResourceAsStream("/config.yml")),
+            StandardCharsets.UTF_8)) {
+            yaml = YamlConfiguration.loadConfiguration(reader);
+        }
+        yaml.set("sql.backend", backend);
+        yaml.set("sql.embeddedFile", embeddedFile);
+        yaml.set("sql.user", "root");
+        yaml.set("sql.password", "");
+        yaml.set("sql.jdbcUrl", jdbcUrl);
+        yaml.set("sql.poolSize", poolSize);
+        yaml.set("protection.natural_queries_per_tick", Integer.MAX_VALUE);
+        return yaml;
+    }
+
+    /**
+     * Locations only need the world id, every other world method fails.
+     */
+    public static World createWorld(UUID worldId) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class },
+            (proxy, method, arguments) -> switch (method.getName()) {
+                case "getUID" -> worldId;
+                case "hashCode" -> worldId.hashCode();
+                case "equals" -> proxy == arguments[0];
+                case "toString" -> "World " + worldId;
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+    }
+}